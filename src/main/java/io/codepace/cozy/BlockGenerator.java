@@ -1,5 +1,7 @@
 package io.codepace.cozy;
 
+import io.codepace.cozy.db.Block;
+
 import javax.xml.bind.DatatypeConverter;
 import java.security.MessageDigest;
 import java.util.ArrayList;
@@ -33,6 +35,33 @@ public class BlockGenerator {
      * @return String The string representation of the compiled block
      */
     public static String compileBlock(long timestamp, int blockNum, String previousBlockHash, long difficulty, int winningNonce, String ledgerHash, ArrayList<String> transactions, Certificate certificate, String signingAddress, String privateKey, long minerSignatureIndex) {
+        if (minerSignatureIndex < 0) {
+            minerSignatureIndex = 0;
+        }
+        PreparedSignature minerSignature = PreparedSignature.prepare(signingAddress, privateKey, minerSignatureIndex);
+        return compileBlock(timestamp, blockNum, previousBlockHash, difficulty, winningNonce, ledgerHash, transactions, certificate, minerSignature);
+    }
+
+    /**
+     * Compiles a block the same way as the method above, signing it with a signature prepared ahead of time. Once the block is hashed, signing
+     * only picks the Lamport reveals for the hash's bits, so a miner can seal a block as soon as it has won.
+     *
+     * @param timestamp         Timestamp of block
+     * @param blockNum          Number of block to create
+     * @param previousBlockHash The hash of the previous block
+     * @param difficulty        Difficulty to place into new block
+     * @param winningNonce      The nonce that mines the certificate under the difficulty of the previous block
+     * @param ledgerHash        Hash of the current ledger BEFORE transactions held in this block are applied
+     * @param transactions      {@link ArrayList} containing all transactions in order to be included in the block
+     * @param certificate       Certificate used to create the block
+     * @param minerSignature    Signature prepared for the redeemAddress of certificate, at the index to sign the block with
+     * @return String The string representation of the compiled block, or null if minerSignature is null
+     */
+    public static String compileBlock(long timestamp, int blockNum, String previousBlockHash, long difficulty, int winningNonce, String ledgerHash, ArrayList<String> transactions, Certificate certificate, PreparedSignature minerSignature) {
+        if (minerSignature == null) {
+            System.out.println("[CRITICAL ERROR] UNABLE TO SIGN A BLOCK!");
+            return null;
+        }
         System.out.println("Creating block...");
         System.out.println("timestamp: " + timestamp);
         System.out.println("blockNum: " + blockNum);
@@ -40,36 +69,23 @@ public class BlockGenerator {
         System.out.println("difficulty: " + difficulty);
         System.out.println("winningNonce: " + winningNonce);
         System.out.println("ledgerHash: " + ledgerHash);
-        System.out.println("signingAddress: " + signingAddress);
+        System.out.println("signingAddress: " + minerSignature.address);
         System.out.println("Certificate: " + certificate.getFullCertificate());
-        if (minerSignatureIndex < 0) {
-            minerSignatureIndex = 0;
-        }
-        System.out.println("minerSignatureIndex: " + minerSignatureIndex);
-        System.out.println("privateKey: " + privateKey);
-        //This String will be added to a lot.
-        String block = "";
-        block += "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{";
-        String transactionString = "";
-        for (int i = 0; i < transactions.size(); i++) {
-            if (transactions.get(i).length() > 10) {
-                transactionString += transactions.get(i) + "*";
-            }
-        }
-        if (transactionString.length() > 1) //Otherwise this will throw an indexOutOfBoundsError for blocks with no explicit transactions!
-        {
-            transactionString = transactionString.substring(0, transactionString.length() - 1);
-        }
-        block += transactionString + "}," + certificate.getFullCertificate();
+        System.out.println("minerSignatureIndex: " + minerSignature.index);
+        //This will be added to a lot.
+        StringBuilder block = new StringBuilder();
+        block.append('{').append(timestamp).append(':').append(blockNum).append(':').append(previousBlockHash).append(':').append(difficulty).append(':').append(winningNonce)
+                .append("},{").append(ledgerHash).append("},{").append(Block.joinTransactions(transactions)).append("},").append(certificate.getFullCertificate());
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            String blockHash = DatatypeConverter.printHexBinary(md.digest(block.getBytes("UTF-8")));
-            block += ",{" + blockHash + "}";
-            System.out.println("pre-block: " + block);
-            String signature = new MerkleAddressUtility().getMerkleSignature(block, privateKey, minerSignatureIndex, signingAddress);
+            String blockHash = DatatypeConverter.printHexBinary(md.digest(block.toString().getBytes("UTF-8")));
+            block.append(",{").append(blockHash).append('}');
+            String signedMessage = block.toString();
+            System.out.println("pre-block: " + signedMessage);
+            String signature = minerSignature.sign(signedMessage);
             System.out.println("signature: " + signature);
-            block += ",{" + signature + "},{" + minerSignatureIndex + "}";
-            return block;
+            block.append(",{").append(signature).append("},{").append(minerSignature.index).append('}');
+            return block.toString();
         } catch (Exception e) {
             System.out.println("[CRITICAL ERROR] UNABLE TO SIGN A BLOCK!");
             e.printStackTrace();
@@ -0,0 +1,111 @@
+package io.codepace.cozy;
+
+import io.codepace.cozy.db.CozyDatabaseMaster;
+import io.codepace.cozy.p2p.Peer;
+import io.codepace.cozy.p2p.PeerNetwork;
+
+import java.util.ArrayList;
+
+/**
+ * Serves ranged block requests (GET_BLOCKS from count). Blocks are read straight from the block store as they are stored on disk, in runs,
+ * and sent without being parsed. A range ends with BLOCKS_END from next, which tells the peer that the blocks from next onwards in the range
+ * it asked for aren't coming.
+ * <p>
+ * Ranges are streamed rather than queued all at once: a peer's range only advances while fewer than MAX_QUEUED_PER_PEER messages are waiting
+ * in its outbound queue, so a slow peer can't pin a large part of the chain in memory. The chain thread calls pump() between batches of tasks.
+ */
+public class BlockStreamer {
+    public static final int MAX_BLOCKS_PER_REQUEST = 500;
+    public static final int MAX_STREAMS_PER_PEER = 4;
+    public static final int MAX_QUEUED_PER_PEER = 32;
+
+    /**
+     * A range being streamed to a peer.
+     */
+    private static class Stream {
+        final Peer peer;
+        final int from;
+        int next;
+        final int end; //Exclusive
+
+        Stream(Peer peer, int from, int end) {
+            this.peer = peer;
+            this.from = from;
+            this.next = from;
+            this.end = end;
+        }
+    }
+
+    private CozyDatabaseMaster databaseMaster;
+    private PeerNetwork peerNetwork;
+    private ArrayList<Stream> streams = new ArrayList<>();
+
+    /**
+     * Constructor for BlockStreamer.
+     *
+     * @param databaseMaster Database to read blocks from
+     * @param peerNetwork    Network the requesting peers are on
+     */
+    public BlockStreamer(CozyDatabaseMaster databaseMaster, PeerNetwork peerNetwork) {
+        this.databaseMaster = databaseMaster;
+        this.peerNetwork = peerNetwork;
+    }
+
+    /**
+     * Starts streaming a range of blocks to a peer. Ranges longer than MAX_BLOCKS_PER_REQUEST are cut short.
+     *
+     * @param peer  Peer that requested the range
+     * @param from  Number of the first block
+     * @param count Number of blocks requested
+     */
+    public void request(Peer peer, int from, int count) {
+        int open = 0;
+        for (Stream stream : streams) {
+            if (stream.peer == peer) {
+                open++;
+            }
+        }
+        int end = from + Math.min(Math.max(count, 0), MAX_BLOCKS_PER_REQUEST);
+        if (open >= MAX_STREAMS_PER_PEER || from < 0) {
+            peer.send("BLOCKS_END " + from + " " + from);
+            return;
+        }
+        streams.add(new Stream(peer, from, end));
+        pump();
+    }
+
+    /**
+     * Sends the next blocks of every range, as far as each peer's outbound queue has room.
+     */
+    public void pump() {
+        int format = databaseMaster.getBlockStorageFormat();
+        for (int i = streams.size() - 1; i >= 0; i--) {
+            Stream stream = streams.get(i);
+            if (!peerNetwork.peerConnections.contains(stream.peer)) {
+                streams.remove(i);
+                continue;
+            }
+            int room = MAX_QUEUED_PER_PEER - stream.peer.getOutboundQueueDepth();
+            if (room <= 0) {
+                continue;
+            }
+            ArrayList<byte[]> records = databaseMaster.getStoredBlocks(stream.next, Math.min(room, stream.end - stream.next));
+            for (byte[] record : records) {
+                stream.peer.sendStoredBlock(record, format);
+            }
+            stream.next += records.size();
+            if (stream.next >= stream.end || records.isEmpty()) {
+                //Either the range is done, or the chain ended before it
+                stream.peer.send("BLOCKS_END " + stream.from + " " + stream.next);
+                streams.remove(i);
+            }
+        }
+    }
+
+    /**
+     * @return boolean Whether any range is still being streamed
+     */
+    public boolean isStreaming() {
+        return !streams.isEmpty();
+    }
+}
@@ -0,0 +1,165 @@
+package io.codepace.cozy;
+
+import io.codepace.cozy.db.Block;
+import io.codepace.cozy.db.ChainListener;
+import io.codepace.cozy.db.CozyDatabaseMaster;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static io.codepace.cozy.Util.*;
+
+/**
+ * The transactions the next block would include, kept ready to mine as transactions enter and leave the pending pool and as the tip changes,
+ * so building a block takes time proportional to the block rather than to the pool.
+ * <p>
+ * Pending transactions are grouped by sending address, ordered by signature index. From each group, the template selects the run of
+ * transactions that starts right after the address's signature index on the chain and whose total input fits in the address's confirmed
+ * balance--the same rules trypos and submit_cert used to apply to the whole pool every time. An event only reselects the groups it touches:
+ * the sender of a transaction entering or leaving the pool, and the addresses a connected or disconnected block sends from or to.
+ * <p>
+ * Transactions are only accepted into the pool with a valid signature, so the template doesn't check signatures again.
+ * <p>
+ * Registered with both the database and the pending transaction pool; only used on the chain thread.
+ */
+public class BlockTemplate extends ChainListener {
+    private final CozyDatabaseMaster databaseMaster;
+
+    //Pending transactions per sending address, by signature index, in the order the addresses first sent one
+    private LinkedHashMap<String, TreeMap<Long, String>> pendingBySender = new LinkedHashMap<>();
+    //Transactions selected from each address's pending transactions
+    private LinkedHashMap<String, ArrayList<String>> selectedBySender = new LinkedHashMap<>();
+    private int selectedCount = 0;
+
+    /**
+     * Constructor for BlockTemplate. Selects from the transactions already in the pool.
+     *
+     * @param databaseMaster              Database to check balances and signature indexes against
+     * @param pendingTransactionContainer Pool to select transactions from
+     */
+    public BlockTemplate(CozyDatabaseMaster databaseMaster, PendingTransactionContainer pendingTransactionContainer) {
+        this.databaseMaster = databaseMaster;
+        for (String transaction : pendingTransactionContainer.pendingTransactions) {
+            transactionAccepted(transaction);
+        }
+    }
+
+    /**
+     * @return ArrayList&lt;String&gt; A copy of the selected transactions, grouped by sending address and ordered by signature index, ready
+     * for BlockGenerator.compileBlock()
+     */
+    public ArrayList<String> getTransactions() {
+        ArrayList<String> transactions = new ArrayList<>(selectedCount);
+        for (ArrayList<String> selected : selectedBySender.values()) {
+            transactions.addAll(selected);
+        }
+        return transactions;
+    }
+
+    /**
+     * @return int Number of transactions the next block would include
+     */
+    public int getTransactionCount() {
+        return selectedCount;
+    }
+
+    public void transactionAccepted(String transaction) {
+        try {
+            String[] parts = transaction.split(";");
+            Long signatureIndex = Long.parseLong(parts[parts.length - 1]);
+            Long.parseLong(parts[1]); //Checked here, rather than when selecting
+            TreeMap<Long, String> group = pendingBySender.get(parts[0]);
+            if (group == null) {
+                group = new TreeMap<>();
+                pendingBySender.put(parts[0], group);
+            }
+            if (group.containsKey(signatureIndex)) {
+                return; //Double-signed transaction; the first one stays, as in TransactionUtility.sortTransactionsBySignatureIndex()
+            }
+            group.put(signatureIndex, transaction);
+            select(parts[0]);
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "[node] " + ANSI_RESET + "- Not adding a malformed transaction to the block template: " + e);
+        }
+    }
+
+    public void transactionRemoved(String transaction) {
+        try {
+            String[] parts = transaction.split(";");
+            TreeMap<Long, String> group = pendingBySender.get(parts[0]);
+            if (group != null && group.remove(Long.parseLong(parts[parts.length - 1]), transaction)) {
+                select(parts[0]);
+            }
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "[node] " + ANSI_RESET + "- Couldn't remove a transaction from the block template: " + e);
+        }
+    }
+
+    public void poolReset() {
+        pendingBySender = new LinkedHashMap<>();
+        selectedBySender = new LinkedHashMap<>();
+        selectedCount = 0;
+    }
+
+    public void blockConnected(Block block) {
+        reselectAddressesIn(block);
+    }
+
+    public void blockDisconnected(Block block) {
+        reselectAddressesIn(block);
+    }
+
+    /**
+     * Reselects every group whose address a block sends from or to, since the block changed its balance or signature index.
+     */
+    private void reselectAddressesIn(Block block) {
+        HashSet<String> addresses = new HashSet<>();
+        for (String transaction : block.getTransactions()) {
+            String[] parts = transaction.split(";");
+            addresses.add(parts[0]);
+            for (int i = 2; i < parts.length - 2; i += 2) {
+                addresses.add(parts[i]);
+            }
+        }
+        for (String address : addresses) {
+            if (pendingBySender.containsKey(address)) {
+                select(address);
+            }
+        }
+    }
+
+    /**
+     * Selects the transactions from one address that a block built on the current tip can include, dropping any whose signature index the
+     * chain has already used.
+     */
+    private void select(String address) {
+        TreeMap<Long, String> group = pendingBySender.get(address);
+        long signatureIndex = databaseMaster.getAddressSignatureIndex(address);
+        group.headMap(signatureIndex, true).clear(); //Already confirmed, or can never be
+        ArrayList<String> selected = new ArrayList<>();
+        long balance = databaseMaster.getAddressBalance(address);
+        long exitBalance = 0L;
+        for (Map.Entry<Long, String> entry : group.entrySet()) {
+            if (entry.getKey() != signatureIndex + 1) {
+                break; //Missing signature index; nothing after it can go in yet
+            }
+            exitBalance += Long.parseLong(entry.getValue().split(";")[1]);
+            if (exitBalance > balance) {
+                break;
+            }
+            selected.add(entry.getValue());
+            signatureIndex++;
+        }
+        ArrayList<String> previous;
+        if (group.isEmpty()) {
+            pendingBySender.remove(address);
+            previous = selectedBySender.remove(address);
+        } else {
+            previous = selectedBySender.put(address, selected);
+        }
+        selectedCount += selected.size() - (previous == null ? 0 : previous.size());
+    }
+}
@@ -1,5 +1,8 @@
 package io.codepace.cozy;
 
+import io.codepace.cozy.db.BlockFormatException;
+import io.codepace.cozy.db.BlockParser;
+
 import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
@@ -101,22 +104,36 @@ public class Certificate {
      * Alternate constructor to make a Certificate from the raw certificate string. See above constructor comment for more detailed information.
      *
      * @param rawCertificate String formatted as raw certificate data
+     * @throws BlockFormatException if the certificate is malformed
      */
     public Certificate(String rawCertificate) {
-        String[] certificateParts = rawCertificate.split(",");
-        String[] firstPartPart = certificateParts[0].replace("{", "").replace("}", "").split(":"); //At least I'm consistent
-        try {
-            this.redeemAddress = firstPartPart[0];
-            this.arbitraryData = firstPartPart[1];
-            this.maxNonce = Integer.parseInt(firstPartPart[2]);
-            this.authorityName = firstPartPart[3];
-            this.blockNum = Integer.parseInt(firstPartPart[4]);
-            this.prevBlockHash = firstPartPart[5];
-            this.signatureData = certificateParts[1].replace("{", "") + "," + certificateParts[2].replace("}", "");
-            this.signatureIndex = Long.parseLong(certificateParts[3].replace("{", "").replace("}", ""));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        BlockParser parser = new BlockParser(rawCertificate);
+        readFrom(parser);
+        parser.expectEnd();
+    }
+
+    /**
+     * Reads a Certificate from the current position of a parser, as done when parsing the certificate embedded in a block.
+     *
+     * @param parser Parser positioned at the opening brace of the certificate
+     * @throws BlockFormatException if the certificate is malformed
+     */
+    public Certificate(BlockParser parser) {
+        readFrom(parser);
+    }
+
+    private void readFrom(BlockParser parser) {
+        parser.expect('{');
+        this.redeemAddress = parser.readField(':');
+        this.arbitraryData = parser.readField(':');
+        this.maxNonce = parser.readInt(':');
+        this.authorityName = parser.readField(':');
+        this.blockNum = parser.readInt(':');
+        this.prevBlockHash = parser.readString('}');
+        parser.nextSection();
+        this.signatureData = parser.readString('}'); //Lamport signature and authentication path, separated by a comma
+        parser.nextSection();
+        this.signatureIndex = parser.readLong('}');
     }
 
     /**
@@ -158,9 +175,9 @@ public class Certificate {
      * When a peer checks a certificate for mining rights, it simply checks the nonce provided by a peer.
      * Theoretically, a certificate could have several nonces which solve a block, but it wouldn't matter.
      * <p>
-     * Performance is more than adequate for intended purpose. Anyone suggesting I multithread this will be ignored.
-     * As this is only called by the miner once, and then never used again for a given certificate, it just has to work well.
-     * On one core of an i7-3770K clocked at 3.9GHz, this can perform approximately 647,249 nonce checks per second. YMMV.
+     * The search itself is done by the {@link MiningEngine}, which splits the nonce range across all cores. It used to run on one thread,
+     * which was fine for the ~30,000 nonce certificates below, but PoS certificates get 100 nonces per coin held, so large holders have millions.
+     * On one core of an i7-3770K clocked at 3.9GHz, the original loop performed approximately 647,249 nonce checks per second. YMMV.
      * Using FAH as an example, say a WU was worth 30,000 'points' and for each point, FAH gave you one nonce in the certificate.
      * That seems reasonable.
      * So this method would take 0.04635 seconds on a high-end desktop. You ran a GPU for 6 hours to finish that WU.
@@ -183,47 +200,34 @@ public class Certificate {
      */
     public String getMinCertificateScoreWithNonce() {
         System.out.println("Checking up to " + maxNonce);
+        /*
+         * Quick lesson on binary.
+         * We get to invent the rules here, because difficulty targets is really an arbitrary idea. It could be implemented in a number of ways that are opposite of each other,
+         * and still work perfectly fine. That being said, my method seems simple. I take the first 8 bytes of the hash, and turn that into a number.
+         * You'll notice that the number is bigger for two same-length pieces of binary when the first digit is a zero.
+         * This means the most significant bit is the left-most-bit.
+         * The above are examples of UNSIGNED conversion.
+         * Cause negative numbers are occasionally useful, Java's Long is signed. That means the first bit dictates whether the number is positive or negative.
+         * In what might appear counter-intuitive at first, if the first digit is a 1, the long is negative. If it is a 0, the long is positive.
+         * As a result, the largest possible unsigned values will start with a 1 as that signed bit position (left-most-bit) normally represents 2^63 on its own.
+         * Since a hash can be simplified as a mental exercise to spit out 'random' or unpredictable data which has no propensity towards any patterns, this first
+         * bit has a 50 percent chance every hash to be a 1. If it's a 1, it's a huge number anyway (2^63 plus change).
+         * As a result, there's no reason to even care about any negative longs, as they actually represent the biggest numbers (if longs were unsigned).
+         *
+         * 111111111111111111111111111111111111111111111111111111111111 is actually a negative number when converted, because a long is signed.
+         * If a score is negative, it means its most significant bit is a 1, so if it wasn't signed, it would be huge.
+         * For this reason, it's incredibly safe to discard all negative numbers. If the Cozycoin network difficulty is so easy that a Long represented in binary
+         * starting with a 1 can solve it, I'll start folding on a raspberry pie and fix it. There would have to be, on average, only one certificate per three
+         * minutes, with only ONE allowed nonce (0) for the difficulty to drop this low. Aka Cozycoin would have to be abandoned. By everyone. At the same time.
+         * In that event, allowing the block time to slip to 6 minutes (the result of discarding a potential solution to the minimum difficulty 50 percent of the
+         * time) probably isn't the biggest concern.
+         */
         long score = Long.MAX_VALUE;
         int bestNonce = -1;
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            String certificateMessage = getCertificateMessage();
-            for (int i = 0; i < maxNonce; i++) {
-                String certificateWithNonce = certificateMessage + ",{" + i + "}"; //Nonce is added in {}'s to fullCertificate for mining.
-                //System.out.println(certificateWithNonce);
-                byte[] hash = md.digest(certificateWithNonce.getBytes("UTF-8"));
-                long tempScore = 0L;
-                for (int j = 0; j < 8; j++) {
-                    tempScore = (hash[j] & 0xff) + (tempScore << 8); //This takes the first 8 bytes of the hash, and turns it into a long. Works out nicely, as a Long is 64 bits.
-                }
-                /*
-                 * Quick lesson on binary.
-                 * We get to invent the rules here, because difficulty targets is really an arbitrary idea. It could be implemented in a number of ways that are opposite of each other,
-                 * and still work perfectly fine. That being said, my method seems simple. I take the first 8 bytes of the hash, and turn that into a number.
-                 * You'll notice that the number is bigger for two same-length pieces of binary when the first digit is a zero.
-                 * This means the most significant bit is the left-most-bit.
-                 * The above are examples of UNSIGNED conversion.
-                 * Cause negative numbers are occasionally useful, Java's Long is signed. That means the first bit dictates whether the number is positive or negative.
-                 * In what might appear counter-intuitive at first, if the first digit is a 1, the long is negative. If it is a 0, the long is positive.
-                 * As a result, the largest possible unsigned values will start with a 1 as that signed bit position (left-most-bit) normally represents 2^63 on its own.
-                 * Since a hash can be simplified as a mental exercise to spit out 'random' or unpredictable data which has no propensity towards any patterns, this first
-                 * bit has a 50 percent chance every hash to be a 1. If it's a 1, it's a huge number anyway (2^63 plus change).
-                 * As a result, there's no reason to even care about any negative longs, as they actually represent the biggest numbers (if longs were unsigned).
-                 *
-                 * 111111111111111111111111111111111111111111111111111111111111 is actually a negative number when converted, because a long is signed.
-                 * If tempDiff is negative, it means its most significant bit is a 1, so if it wasn't signed, it would be huge.
-                 * For this reason, it's incredibly safe to discard all negative numbers. If the Cozycoin network difficulty is so easy that a Long represented in binary
-                 * starting with a 1 can solve it, I'll start folding on a raspberry pie and fix it. There would have to be, on average, only one certificate per three
-                 * minutes, with only ONE allowed nonce (0) for the difficulty to drop this low. Aka Cozycoin would have to be abandoned. By everyone. At the same time.
-                 * In that event, allowing the block time to slip to 6 minutes (the result of discarding a potential solution to the minimum difficulty 50 percent of the
-                 * time) probably isn't the biggest concern.
-                 */
-                if (tempScore < score && tempScore > 0) //Longs are signed. Half of them will be negative, on average. Just throw out the negative ones. In unsigned-land, they're super huge and not suitable for mining anyhow. Read above. :)
-                {
-                    score = tempScore;
-                    bestNonce = i;
-                }
-            }
+            MiningEngine.Result result = MiningEngine.search(getCertificateMessage(), maxNonce); //Negative scores are thrown out. In unsigned-land, they're super huge and not suitable for mining anyhow. Read above. :)
+            score = result.score;
+            bestNonce = result.bestNonce;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,97 @@
+package io.codepace.cozy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Scores nonces of one certificate: the first 8 bytes, as a long, of SHA-256(prefix + nonce + "}"), where the prefix is the certificate
+ * text followed by ",{".
+ * <p>
+ * The prefix is the same for every nonce, so it is hashed once, and the digest's state after it (the midstate) is cloned for each nonce,
+ * which then only costs the final one or two 64-byte blocks holding the nonce and the padding. The longer the prefix, the more this saves:
+ * the certificate message is a few blocks long, the full certificate with its signature data a few hundred. If the SHA-256 provider can't
+ * clone a digest, the whole message is hashed for each nonce instead.
+ * <p>
+ * Not thread-safe; use one scorer per thread.
+ */
+public class CertificateScorer {
+    private final byte[] prefix;
+    private final MessageDigest midstate; //null if cloning isn't supported
+    private final MessageDigest digest;
+    private final byte[] suffix = new byte[11]; //Room for the largest int and the closing brace
+
+    /**
+     * Constructor for CertificateScorer.
+     *
+     * @param certificateText Certificate text the nonce is appended to; the message portion when mining
+     */
+    public CertificateScorer(String certificateText) {
+        this.prefix = (certificateText + ",{").getBytes(StandardCharsets.UTF_8); //Nonce is added in {}'s for mining.
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+            MessageDigest prefixState = MessageDigest.getInstance("SHA-256");
+            prefixState.update(prefix);
+            try {
+                prefixState.clone();
+            } catch (CloneNotSupportedException e) {
+                prefixState = null;
+            }
+            this.midstate = prefixState;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param nonce Non-negative nonce to score
+     * @return long First 8 bytes of the hash as a signed long. Negative scores are worthless; see Certificate.getMinCertificateScoreWithNonce()
+     */
+    public long score(int nonce) {
+        int length = writeNonce(suffix, nonce);
+        byte[] hash;
+        if (midstate != null) {
+            MessageDigest md;
+            try {
+                md = (MessageDigest) midstate.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e); //Cloned fine in the constructor
+            }
+            md.update(suffix, 0, length);
+            hash = md.digest();
+        } else {
+            digest.update(prefix);
+            digest.update(suffix, 0, length);
+            hash = digest.digest();
+        }
+        long score = 0L;
+        for (int j = 0; j < 8; j++) {
+            score = (hash[j] & 0xff) + (score << 8); //This takes the first 8 bytes of the hash, and turns it into a long.
+        }
+        return score;
+    }
+
+    /**
+     * @return boolean Whether nonces are scored from the prefix's midstate
+     */
+    public boolean usesMidstate() {
+        return midstate != null;
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative nonce and the closing brace into buffer.
+     *
+     * @return int Number of bytes written
+     */
+    private static int writeNonce(byte[] buffer, int nonce) {
+        int digits = 1;
+        for (int n = nonce; n >= 10; n /= 10) {
+            digits++;
+        }
+        for (int pos = digits - 1, n = nonce; pos >= 0; pos--, n /= 10) {
+            buffer[pos] = (byte) ('0' + n % 10);
+        }
+        buffer[digits] = '}';
+        return digits + 1;
+    }
+}
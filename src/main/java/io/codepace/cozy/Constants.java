@@ -11,4 +11,43 @@ public class Constants {
      * Current version of the project
      */
     public static final String VERSION = "0.2.0";
+
+    /**
+     * Highest p2p protocol version spoken by this node. Peers announce their version with VERSION when connecting; version 2 peers
+     * exchange blocks and transactions in the binary encoding.
+     */
+    public static final int PROTOCOL_VERSION = 2;
+
+    /**
+     * Format of the blockchain file: 1 for the text blockchain.dta, 2 for the binary blockchain.v2. Selected with -Dcozy.storageVersion=2
+     */
+    public static final int BLOCK_STORAGE_VERSION = Integer.getInteger("cozy.storageVersion", 1);
+
+    /**
+     * How peer sockets are served: "selector" (the default) multiplexes every peer on one thread, "threads" gives each peer its own threads.
+     * Selected with -Dcozy.transport=threads
+     */
+    public static final String PEER_TRANSPORT = System.getProperty("cozy.transport", "selector");
+
+    /**
+     * Whether connection handlers (RPC clients, and peers with the "threads" transport) run on virtual threads. Needs Java 21 or newer, falls back
+     * to platform threads otherwise. Selected with -Dcozy.virtualThreads=true
+     */
+    public static final boolean VIRTUAL_THREADS = Boolean.getBoolean("cozy.virtualThreads");
+
+    /**
+     * How many blocks or transactions the seen-message filters remember at least, before the oldest are forgotten. Selected with
+     * -Dcozy.seenFilterCapacity=100000
+     */
+    public static final int SEEN_FILTER_CAPACITY = Integer.getInteger("cozy.seenFilterCapacity", 100000);
+
+    /**
+     * Chance that the seen-message filters mistake a new block or transaction for one already seen. Selected with -Dcozy.seenFilterFpRate=0.0001
+     */
+    public static final double SEEN_FILTER_FP_RATE = Double.parseDouble(System.getProperty("cozy.seenFilterFpRate", "0.0001"));
+
+    /**
+     * Port of the HTTP JSON-RPC endpoint, served next to the line-based RPC on 8016. Selected with -Dcozy.rpcHttpPort=8017
+     */
+    public static final int RPC_HTTP_PORT = Integer.getInteger("cozy.rpcHttpPort", 8017);
 }
@@ -0,0 +1,32 @@
+package io.codepace.cozy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link LinkedHashMap} in access order that forgets its least recently used entry once it holds more than maxSize entries. Not
+ * thread-safe, like LinkedHashMap; even get() reorders entries.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class LruMap<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    /**
+     * Constructor for LruMap.
+     *
+     * @param maxSize Number of entries to keep
+     */
+    public LruMap(int maxSize) {
+        super(16, 0.75f, true);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxSize;
+    }
+}
@@ -207,36 +207,70 @@ public class MerkleAddressUtility
         {
             return null;
         }
+        //The 200 Lamport Private Key Parts, 100 of which will appear as-is in the final signature
+        String[] lamportPrivateKeyParts = getLamportPrivateKeyParts(privateKey, index);
+        String lamportSignature = getLamportSignature(message, getLamportReveals(lamportPrivateKeyParts));
+        //Now we need to get the authentication path
+        String merklePath = getAuthenticationPath(index, address);
+        if (merklePath == null)
+        {
+            return null;
+        }
+        return lamportSignature + "," + merklePath;
+    }
+
+    /**
+     * This method works out, for each pair of Lamport Private Key Parts, what a signature reveals for a 0 bit and for a 1 bit.
+     * For a 0 bit, the first part is revealed along with the hash of the second; for a 1 bit, the hash of the first along with the second.
+     * Only depends on the private key and index, so it can be done before the message to sign is known.
+     *
+     * @param lamportPrivateKeyParts The 200 Lamport Private Key Parts from getLamportPrivateKeyParts()
+     *
+     * @return String[] 200 Strings; element i*2 is what pair i reveals for a 0 bit, and element i*2+1 what it reveals for a 1 bit
+     */
+    public String[] getLamportReveals(String[] lamportPrivateKeyParts)
+    {
+        String[] reveals = new String[200];
+        for (int i = 0; i < 100; i++)
+        {
+            if (i == 99) //If it is part of the last pair, we want to use SHA512 (Full Length)
+            {
+                reveals[i*2] = lamportPrivateKeyParts[i*2] + ":" + SHA512(lamportPrivateKeyParts[i*2+1]);
+                reveals[i*2+1] = SHA512(lamportPrivateKeyParts[i*2]) + ":" + lamportPrivateKeyParts[i*2+1];
+            }
+            else //If it is any one of the other previous pairs, use SHA256Short
+            {
+                reveals[i*2] = lamportPrivateKeyParts[i*2] + ":" + SHA256Short(lamportPrivateKeyParts[i*2+1]);
+                reveals[i*2+1] = SHA256Short(lamportPrivateKeyParts[i*2]) + ":" + lamportPrivateKeyParts[i*2+1];
+            }
+        }
+        return reveals;
+    }
+
+    /**
+     * This method signs a message with a Lamport Keypair, picking the reveal of each pair according to the matching bit of the message's hash.
+     *
+     * @param message The message to sign
+     * @param lamportReveals The 200 reveals from getLamportReveals()
+     *
+     * @return String The 200-part Lamport Signature, without the authentication path
+     */
+    public String getLamportSignature(String message, String[] lamportReveals)
+    {
         //Lamport Signatures work with binary, so we need a binary string representing the hash of the message we want to sign
         String binaryToSign = SHA256Binary(message);
         //Cozycoin Lamport Signatures sign the first 100 bytes of the hash. To generate a message colliding with the signature, one would need on average 2^99 tries
         binaryToSign = binaryToSign.substring(0, 100);
-        //The 200 Lamport Private Key Parts, 100 of which will appear as-is in the final signature
-        String[] lamportPrivateKeyParts = getLamportPrivateKeyParts(privateKey, index);
-        String lamportSignature = "";
+        StringBuilder lamportSignature = new StringBuilder();
         for (int i = 0; i < binaryToSign.length(); i++) //Add a public and private key part to signature for each digit of signable binary
         {
             if (binaryToSign.charAt(i) == '0') //A zero means we reveal the first private key
             {
-                if (i == binaryToSign.length() - 1) //If it is part of the last pair, we want to use SHA512 (Full Length)
-                {
-                    lamportSignature += lamportPrivateKeyParts[i*2] + ":" + SHA512(lamportPrivateKeyParts[i*2+1]);
-                }
-                else
-                {
-                    lamportSignature += lamportPrivateKeyParts[i*2] + ":" + SHA256Short(lamportPrivateKeyParts[i*2+1]);
-                }
+                lamportSignature.append(lamportReveals[i*2]);
             }
             else if (binaryToSign.charAt(i) == '1')//A one means we reveal the second private key
             {
-                if (i == binaryToSign.length() - 1) //If it is part of the last pair, we want to use SHA512 (Full Length)
-                {
-                    lamportSignature += SHA512(lamportPrivateKeyParts[i*2]) + ":" + lamportPrivateKeyParts[i*2+1];
-                }
-                else //If it is any one of the other previous pairs, use SHA256Short
-                {
-                    lamportSignature += SHA256Short(lamportPrivateKeyParts[i*2]) + ":" + lamportPrivateKeyParts[i*2+1];
-                }
+                lamportSignature.append(lamportReveals[i*2+1]);
             }
             else //Something has gone terribly wrong, our binary string isn't made of binary.
             {
@@ -245,10 +279,27 @@ public class MerkleAddressUtility
             }
             if (i < binaryToSign.length() - 1) //Add a double-colon separator between pairs
             {
-                lamportSignature += "::";
+                lamportSignature.append("::");
             }
         }
-        //Now we need to get the authentication path
+        return lamportSignature.toString();
+    }
+
+    /**
+     * This method reads the authentication path for a Lamport Keypair from the address's layer files.
+     *
+     * @param index The index of the Lamport Keypair (position on bottom of Merkle tree)
+     * @param address The Cozycoin 0.2.0 address
+     *
+     * @return String The hashes of the authentication path, separated by colons, or null if the address's files can't be read
+     */
+    public String getAuthenticationPath(long index, String address)
+    {
+        File infoFile = new File("addresses/" + address + "/info.dta");
+        if (!infoFile.exists())
+        {
+            return null;
+        }
         String merklePath = "";
         int layers = -1;
         try
@@ -310,7 +361,7 @@ public class MerkleAddressUtility
                 return null;
             }
         }
-        return lamportSignature + "," + merklePath;
+        return merklePath;
     }
 
     /**
@@ -0,0 +1,42 @@
+package io.codepace.cozy;
+
+import io.codepace.cozy.p2p.PeerMessage;
+
+/**
+ * Handles one kind of peer message for the {@link NodeCore}.
+ * <p>
+ * handle() always runs on the chain thread, one message at a time, in the order the messages arrived, so it can read and change chain state
+ * freely. Work that doesn't need chain state, like decoding a payload or checking signatures, can be moved to prepare(), which runs on a
+ * worker thread before handle() is called. Its result is passed on to handle().
+ */
+public abstract class MessageHandler {
+
+    /**
+     * @return boolean Whether prepare() should be run on a worker thread before handle()
+     */
+    public boolean hasPrepareStep() {
+        return false;
+    }
+
+    /**
+     * Does the part of the work that doesn't touch chain state. Runs on a worker thread, possibly at the same time as other messages.
+     * Throwing drops the message.
+     *
+     * @param message Message being handled
+     * @param parts   Message split on spaces
+     * @return Object Passed to handle()
+     * @throws Exception if the message is malformed
+     */
+    public Object prepare(PeerMessage message, String[] parts) throws Exception {
+        return null;
+    }
+
+    /**
+     * Handles the message on the chain thread.
+     *
+     * @param message  Message being handled
+     * @param parts    Message split on spaces
+     * @param prepared Result of prepare(), or null if there is no prepare step
+     */
+    public abstract void handle(PeerMessage message, String[] parts, Object prepared);
+}
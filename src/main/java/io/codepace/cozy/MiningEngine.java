@@ -0,0 +1,175 @@
+package io.codepace.cozy;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches a certificate's nonce range for the best (lowest) score, on every core.
+ * <p>
+ * The range is split into slices that run on a shared pool of daemon threads, one per core. Each slice scores the certificate message
+ * with the nonce appended, exactly as {@link Certificate#getMinCertificateScoreWithNonce()} always has, with its own
+ * {@link CertificateScorer}, which hashes the message once and then only the nonce at its end. Slices keep the first nonce with their lowest
+ * score, and are combined lowest score first, then lowest nonce, so the result is the same as a scan from 0 upwards.
+ * <p>
+ * Ranges under MIN_NONCES_PER_SLICE nonces are searched on the calling thread.
+ * <p>
+ * A search can be followed and cancelled through a {@link Progress}; slices report to it every PROGRESS_INTERVAL nonces.
+ */
+public class MiningEngine {
+    public static final int MIN_NONCES_PER_SLICE = 65536;
+    public static final int SLICES_PER_THREAD = 4; //More slices than threads, so a slow thread doesn't hold up the whole search
+    public static final int PROGRESS_INTERVAL = 16384;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService pool;
+
+    /**
+     * The best nonce of a search and its score. bestNonce is -1, and score Long.MAX_VALUE, if no nonce scored above zero.
+     */
+    public static class Result {
+        public final int bestNonce;
+        public final long score;
+
+        public Result(int bestNonce, long score) {
+            this.bestNonce = bestNonce;
+            this.score = score;
+        }
+
+        /**
+         * @return boolean Whether this result beats other: a lower score, or the same score at a lower nonce
+         */
+        boolean beats(Result other) {
+            if (score != other.score) {
+                return score < other.score;
+            }
+            return bestNonce >= 0 && (other.bestNonce < 0 || bestNonce < other.bestNonce);
+        }
+    }
+
+    /**
+     * How far a search has got, and a way to stop it.
+     */
+    public static class Progress {
+        public final AtomicLong noncesChecked = new AtomicLong();
+        private volatile boolean cancelled = false;
+
+        /**
+         * Stops the search at the next progress report; it then throws a CancellationException.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Finds the nonce from 0 (inclusive) to maxNonce (exclusive) whose hash scores lowest.
+     *
+     * @param certificateMessage Message portion of the certificate; see {@link Certificate#getCertificateMessage()}
+     * @param maxNonce           Number of nonces to check
+     * @return Result Best nonce and its score
+     */
+    public static Result search(String certificateMessage, int maxNonce) {
+        return search(certificateMessage, maxNonce, new Progress());
+    }
+
+    /**
+     * Finds the nonce from 0 (inclusive) to maxNonce (exclusive) whose hash scores lowest, reporting to progress as it goes.
+     *
+     * @param certificateMessage Message portion of the certificate; see {@link Certificate#getCertificateMessage()}
+     * @param maxNonce           Number of nonces to check
+     * @param progress           Counts the nonces checked, and can cancel the search
+     * @return Result Best nonce and its score
+     * @throws CancellationException if progress was cancelled before the search finished
+     */
+    public static Result search(final String certificateMessage, int maxNonce, final Progress progress) {
+        if (maxNonce < MIN_NONCES_PER_SLICE * 2 || THREADS == 1) {
+            return searchSlice(certificateMessage, 0, Math.max(maxNonce, 0), progress);
+        }
+        int sliceCount = Math.min(THREADS * SLICES_PER_THREAD, maxNonce / MIN_NONCES_PER_SLICE);
+        ArrayList<Future<Result>> slices = new ArrayList<>(sliceCount);
+        ExecutorService pool = getPool();
+        for (int i = 0; i < sliceCount; i++) {
+            final int from = (int) ((long) maxNonce * i / sliceCount);
+            final int to = (int) ((long) maxNonce * (i + 1) / sliceCount);
+            slices.add(pool.submit(new Callable<Result>() {
+                public Result call() {
+                    return searchSlice(certificateMessage, from, to, progress);
+                }
+            }));
+        }
+        Result best = new Result(-1, Long.MAX_VALUE);
+        try {
+            for (Future<Result> slice : slices) {
+                Result result = slice.get();
+                if (result.beats(best)) {
+                    best = result;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Result> slice : slices) {
+                slice.cancel(true);
+            }
+            throw new IllegalStateException("Interrupted while searching nonces");
+        } catch (ExecutionException e) {
+            for (Future<Result> slice : slices) {
+                slice.cancel(true);
+            }
+            if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw new IllegalStateException("Nonce search failed", e.getCause());
+        }
+        return best;
+    }
+
+    /**
+     * Scans nonces from (inclusive) to to (exclusive), keeping the first nonce with the lowest positive score.
+     */
+    static Result searchSlice(String certificateMessage, int from, int to, Progress progress) {
+        CertificateScorer scorer = new CertificateScorer(certificateMessage);
+        long score = Long.MAX_VALUE;
+        int bestNonce = -1;
+        for (int i = from; i < to; i++) {
+            if ((i - from) % PROGRESS_INTERVAL == PROGRESS_INTERVAL - 1) {
+                progress.noncesChecked.addAndGet(PROGRESS_INTERVAL);
+                if (progress.isCancelled()) {
+                    throw new CancellationException("Nonce search cancelled");
+                }
+            }
+            long tempScore = scorer.score(i);
+            if (tempScore < score && tempScore > 0) { //Negative scores are huge in unsigned-land; see Certificate.getMinCertificateScoreWithNonce()
+                score = tempScore;
+                bestNonce = i;
+            }
+        }
+        progress.noncesChecked.addAndGet((to - from) % PROGRESS_INTERVAL);
+        return new Result(bestNonce, score);
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "miner-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,70 @@
+package io.codepace.cozy;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A block being mined in the background by the {@link MiningJobManager}: the nonce search, and compiling and signing the block, happen in
+ * work(), on a mining thread. Only submitting the finished block happens on the chain thread.
+ * <p>
+ * A job builds on the chain tip it was started on. Everything work() needs from chain state is captured by the job when it is created, on the
+ * chain thread; work() may only make thread-safe reads of the ledger besides, since the chain thread keeps changing state while it runs.
+ * If the tip changes, the job is cancelled, and its block would not be submitted anyway.
+ */
+public abstract class MiningJob {
+    public static final String SEARCHING = "searching";
+    public static final String COMPILING = "compiling";
+    public static final String SUBMITTING = "submitting";
+    public static final String DONE = "done";
+    public static final String CANCELLED = "cancelled";
+    public static final String FAILED = "failed";
+
+    public final String description;
+    public final String previousBlockHash;
+    public final int maxNonce;
+    public final MiningEngine.Progress progress = new MiningEngine.Progress();
+    //Completed with the response for the RPC client once the job is over
+    public final CompletableFuture<String> result = new CompletableFuture<>();
+
+    volatile int id;
+    volatile String state = SEARCHING;
+
+    //Set by work(): the response if there is no block to submit, or the response once the block it returns is added
+    protected String message;
+
+    /**
+     * Constructor for MiningJob.
+     *
+     * @param description       What the job is, for getminingjobs
+     * @param previousBlockHash Hash of the chain tip the block builds on
+     * @param maxNonce          Number of nonces the job searches
+     */
+    protected MiningJob(String description, String previousBlockHash, int maxNonce) {
+        this.description = description;
+        this.previousBlockHash = previousBlockHash;
+        this.maxNonce = maxNonce;
+    }
+
+    /**
+     * Runs on a mining thread. Searches for the best nonce (through {@link MiningEngine#search(String, int, MiningEngine.Progress)} with this
+     * job's progress) and, if it wins, compiles the block from the transactions the {@link BlockTemplate} had selected when the job was created. Call compiling() once the search is over.
+     *
+     * @return String The compiled block to submit, or null if the certificate didn't win; message is set either way
+     * @throws Exception if the block can't be built; a CancellationException if the job was cancelled
+     */
+    protected abstract String work() throws Exception;
+
+    /**
+     * Marks the end of the nonce search.
+     */
+    protected void compiling() {
+        state = COMPILING;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getState() {
+        return state;
+    }
+}
@@ -0,0 +1,252 @@
+package io.codepace.cozy;
+
+import io.codepace.cozy.db.Block;
+import io.codepace.cozy.db.ChainListener;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.codepace.cozy.Util.*;
+
+/**
+ * Runs {@link MiningJob}s in the background, so a long nonce search or block signing never holds up the chain thread, and with it block
+ * relay for every peer. Each job's work() runs on its own mining thread; when it returns a block, the block is queued for the chain thread,
+ * which submits it if the tip is still the one the job built on.
+ * <p>
+ * Registered as a {@link ChainListener}: whenever the tip changes, jobs still searching or compiling are cancelled, since their block could
+ * no longer be added. The RPC client that started a job gets its response once the job is over, from the job's result future.
+ * <p>
+ * The miner signature for the next block is prepared in the background (see {@link PreparedSignature}): when a job starts, alongside its
+ * nonce search, and again whenever a block uses up the signature index it was prepared for.
+ */
+public class MiningJobManager extends ChainListener {
+    public static final int MAX_FINISHED_JOBS = 20; //Kept for getminingjobs
+
+    private final NodeCore node;
+    private final ExecutorService executor;
+    private LinkedHashMap<Integer, MiningJob> jobs = new LinkedHashMap<>();
+    private int nextId = 1;
+    //The miner signature prepared for the next block, so a job that wins doesn't have to derive it; see prepareSignature()
+    private String preparedAddress;
+    private String preparedPrivateKey;
+    private long preparedIndex;
+    private Future<PreparedSignature> preparedSignature;
+
+    /**
+     * Constructor for MiningJobManager.
+     *
+     * @param node Node to submit finished blocks through
+     */
+    public MiningJobManager(NodeCore node) {
+        this.node = node;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mining-job-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts a job. Called on the chain thread, right after the job has captured the state it needs.
+     *
+     * @param job Job to start
+     * @return {@link CompletableFuture} The job's result
+     */
+    public CompletableFuture<String> start(final MiningJob job) {
+        synchronized (this) {
+            job.id = nextId++;
+            jobs.put(job.id, job);
+            pruneFinishedJobs();
+        }
+        System.out.println(ANSI_YELLOW + "[node] " + ANSI_RESET + "- Started mining job " + job.id + ": " + job.description);
+        executor.execute(new Runnable() {
+            public void run() {
+                runJob(job);
+            }
+        });
+        return job.result;
+    }
+
+    /**
+     * @return String One line per recent job: id, description, state, and nonces checked out of the job's range
+     */
+    public synchronized String describeJobs() {
+        if (jobs.isEmpty()) {
+            return "No mining jobs";
+        }
+        StringBuilder res = new StringBuilder();
+        for (MiningJob job : jobs.values()) {
+            if (res.length() > 0) {
+                res.append('\n');
+            }
+            res.append(job.id).append(' ').append(job.description).append(' ').append(job.state).append(' ')
+                    .append(Math.min(job.progress.noncesChecked.get(), job.maxNonce)).append('/').append(job.maxNonce);
+        }
+        return res.toString();
+    }
+
+    /**
+     * Starts preparing the signature for a block signed by address at index, unless it is already prepared or being prepared. Called on the
+     * chain thread.
+     *
+     * @param address    Address to sign the block with
+     * @param privateKey Private key of address
+     * @param index      Signature index to sign the block with; block signature indexes start at 0
+     * @return Future&lt;PreparedSignature&gt; The prepared signature, null if the address's files can't be read
+     */
+    public synchronized Future<PreparedSignature> prepareSignature(final String address, final String privateKey, long index) {
+        final long signatureIndex = Math.max(index, 0);
+        if (preparedSignature != null && address.equals(preparedAddress) && privateKey.equals(preparedPrivateKey) && signatureIndex == preparedIndex) {
+            return preparedSignature;
+        }
+        preparedAddress = address;
+        preparedPrivateKey = privateKey;
+        preparedIndex = signatureIndex;
+        preparedSignature = executor.submit(new Callable<PreparedSignature>() {
+            public PreparedSignature call() {
+                return PreparedSignature.prepare(address, privateKey, signatureIndex);
+            }
+        });
+        return preparedSignature;
+    }
+
+    public void blockConnected(Block block) {
+        cancelRunningJobs();
+        prepareNextSignature();
+    }
+
+    public void blockDisconnected(Block block) {
+        cancelRunningJobs();
+        prepareNextSignature();
+    }
+
+    /**
+     * Prepares the signature for the mining address's current signature index, if a block has moved it on from the prepared one.
+     */
+    private void prepareNextSignature() {
+        String address;
+        String privateKey;
+        synchronized (this) {
+            if (preparedSignature == null) {
+                return; //Nothing has been mined yet
+            }
+            address = preparedAddress;
+            privateKey = preparedPrivateKey;
+        }
+        prepareSignature(address, privateKey, node.databaseMaster.getAddressSignatureIndex(address));
+    }
+
+    /**
+     * Cancels every job that is still searching or compiling. A job that is submitting its block is on the chain thread, which is what
+     * connected the block in the first place.
+     */
+    private synchronized void cancelRunningJobs() {
+        for (MiningJob job : jobs.values()) {
+            if (job.state.equals(MiningJob.SEARCHING) || job.state.equals(MiningJob.COMPILING)) {
+                job.progress.cancel();
+            }
+        }
+    }
+
+    private void runJob(final MiningJob job) {
+        final String rawBlock;
+        try {
+            rawBlock = job.work();
+        } catch (CancellationException e) {
+            finish(job, MiningJob.CANCELLED, "Mining job " + job.id + " cancelled: the chain tip changed");
+            return;
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "[node] " + ANSI_RESET + "- Mining job " + job.id + " failed: " + e);
+            e.printStackTrace();
+            finish(job, MiningJob.FAILED, "Failure to construct certificate!");
+            return;
+        }
+        if (rawBlock == null) {
+            finish(job, MiningJob.DONE, job.message);
+            return;
+        }
+        try {
+            node.submit(new Runnable() {
+                public void run() {
+                    submitBlock(job, rawBlock);
+                }
+            });
+        } catch (InterruptedException e) {
+            finish(job, MiningJob.CANCELLED, "Node is shutting down");
+        }
+    }
+
+    /**
+     * Adds and relays a job's block. Runs on the chain thread.
+     */
+    private void submitBlock(MiningJob job, String rawBlock) {
+        synchronized (this) {
+            if (job.progress.isCancelled() || !node.databaseMaster.getLatestBlock().blockHash.equals(job.previousBlockHash)) {
+                job.state = MiningJob.CANCELLED;
+            } else {
+                job.state = MiningJob.SUBMITTING; //From here on, connecting the block doesn't cancel the job
+            }
+        }
+        if (job.state.equals(MiningJob.CANCELLED)) {
+            finish(job, MiningJob.CANCELLED, "Mining job " + job.id + " cancelled: the chain tip changed");
+            return;
+        }
+        try {
+            //We finally have the full block. Now to submit it to ourselves...
+            Block toAdd = new Block(rawBlock);
+            boolean success = node.databaseMaster.addBlock(toAdd);
+            System.out.println("Block add success: " + success);
+            if (success) //The block appears legitimate to ourselves! Send it to others!
+            {
+                node.peerNetwork.relayBlock(toAdd, null);
+                System.out.println("Block added to network successfully!");
+                node.pendingTransactionContainer.reset(); //Any transactions left in node.pendingTransactionContainer that didn't get submitted into the block should be cleared anyway--they probably aren't valid for some reason, likely balance issues.
+                node.addressManager.resetDefaultAddressIndexOffset();
+                finish(job, MiningJob.DONE, job.message);
+            } else {
+                System.out.println("Block was not added successfully! :(");
+                finish(job, MiningJob.FAILED, "Block was not added successfully!");
+            }
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "[node] " + ANSI_RESET + "- Mining job " + job.id + " failed to submit its block: " + e);
+            e.printStackTrace();
+            finish(job, MiningJob.FAILED, "Failure to construct certificate!");
+        }
+    }
+
+    private void finish(MiningJob job, String state, String message) {
+        synchronized (this) {
+            job.state = state;
+        }
+        System.out.println(ANSI_YELLOW + "[node] " + ANSI_RESET + "- Mining job " + job.id + " " + state);
+        job.result.complete(message);
+    }
+
+    /**
+     * Forgets the oldest finished jobs beyond MAX_FINISHED_JOBS. Called with the lock held.
+     */
+    private void pruneFinishedJobs() {
+        ArrayList<Integer> finished = new ArrayList<>();
+        for (MiningJob job : jobs.values()) {
+            if (job.state.equals(MiningJob.DONE) || job.state.equals(MiningJob.CANCELLED) || job.state.equals(MiningJob.FAILED)) {
+                finished.add(job.id);
+            }
+        }
+        Iterator<Integer> oldest = finished.iterator();
+        for (int excess = finished.size() - MAX_FINISHED_JOBS; excess > 0 && oldest.hasNext(); excess--) {
+            jobs.remove(oldest.next());
+        }
+    }
+}
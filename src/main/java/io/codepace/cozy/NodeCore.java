@@ -0,0 +1,548 @@
+package io.codepace.cozy;
+
+import io.codepace.cozy.address.AddressManager;
+import io.codepace.cozy.db.CozyDatabaseMaster;
+import io.codepace.cozy.p2p.PeerMessage;
+import io.codepace.cozy.p2p.PeerNetwork;
+import io.codepace.cozy.p2p.RPC;
+import io.codepace.cozy.p2p.RPCHandler;
+import io.codepace.cozy.p2p.SeenFilter;
+import io.codepace.cozy.p2p.Subscription;
+import io.codepace.cozy.p2p.SubscriptionManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static io.codepace.cozy.Util.*;
+
+/**
+ * Runs the node: takes the messages peers send and the requests RPC clients make, and hands each to the handler registered for it.
+ * <p>
+ * Everything that reads or changes chain state runs on a single chain thread, one task at a time, so none of it needs locking. Nothing polls:
+ * the dispatcher thread waits on the network's inbound queue and the chain thread waits on its task queue, and both sleep until there is work.
+ * The chain thread only wakes up on its own to stream blocks to peers (every 10 ms while a range is being streamed) and to check on a
+ * running sync (every second).
+ * <p>
+ * The dispatcher looks up the {@link MessageHandler} for each message. If the handler has a prepare step, that is run on the worker pool,
+ * so decoding and signature checks for many messages happen in parallel, off the chain thread. The message is queued for the chain thread
+ * right away in either case, so messages are still handled in the order they arrived; the chain thread waits for a message's prepare step
+ * when it gets to it. When the worker pool or the chain queue is full, the dispatcher stops taking messages, the network's inbound queue
+ * fills up, and peers stop being read from.
+ * <p>
+ * RPC requests are answered with a future. Commands that change state are queued for the chain thread like peer messages, and their future
+ * completes once they have run, or, for trypos and submit_cert, once the {@link MiningJob} they start in the background is over (see
+ * {@link MiningJobManager}). Read-only commands (see {@link RPCCommand#isReadOnly()}) don't wait for the chain thread: they run on the
+ * thread that made the request, many at a time, under the read side of a lock the chain thread holds for writing while it runs each task.
+ * They never see state halfway through a task, and slow ones don't hold up other commands. Streaming commands (see
+ * {@link RPCCommand#isStreaming()}) take the read lock once per chunk of their response, and write each chunk out with the lock released.
+ * Lock-free commands (see {@link RPCCommand#isLockFree()}) skip the lock, so they answer even while the chain thread is importing a block.
+ * <p>
+ * RPC clients can also subscribe to events (see {@link SubscriptionManager}), which the chain thread raises as it changes state.
+ * <p>
+ * The time from a message being read off the socket to it being handled is recorded per message type; see getmessagestats.
+ */
+public class NodeCore {
+    public static final int CHAIN_QUEUE_CAPACITY = 4096;
+    public static final int WORKER_QUEUE_CAPACITY = 1024;
+    public static final int MAX_TASKS_PER_BATCH = 256;
+
+    public final CozyDatabaseMaster databaseMaster;
+    public final PendingTransactionContainer pendingTransactionContainer;
+    public final PeerNetwork peerNetwork;
+    public final AddressManager addressManager;
+    public final SyncManager syncManager;
+    public final BlockStreamer blockStreamer;
+    public final SeenFilter seenBlocks = new SeenFilter(Constants.SEEN_FILTER_CAPACITY, Constants.SEEN_FILTER_FP_RATE);
+    public final SeenFilter seenTransactions = new SeenFilter(Constants.SEEN_FILTER_CAPACITY, Constants.SEEN_FILTER_FP_RATE);
+    public final SubscriptionManager subscriptions = new SubscriptionManager();
+    public final MiningJobManager miningJobs;
+    public final BlockTemplate blockTemplate;
+    public final ArrayList<String> peers;
+    public final File peerFile;
+    //Only used on the chain thread
+    public boolean catchupMode = true;
+
+    private HashMap<String, MessageHandler> messageHandlers = new HashMap<>();
+    private HashMap<String, RPCCommand> rpcCommands = new HashMap<>();
+    private LinkedBlockingQueue<Runnable> chainTasks = new LinkedBlockingQueue<>(CHAIN_QUEUE_CAPACITY);
+    private ThreadPoolExecutor workers;
+    private TreeMap<String, MessageStats> messageStats = new TreeMap<>();
+    //Held for writing by the chain thread while it runs a task, and for reading by read-only RPC commands
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private volatile boolean shouldRun = true;
+    public final RPCHandler rpcHandler = new ChainRPCHandler();
+
+    /**
+     * Latency of one message type, from arrival to being handled.
+     */
+    private static class MessageStats {
+        long count;
+        long totalNanos;
+        long maxNanos;
+    }
+
+    /**
+     * Constructor for NodeCore.
+     *
+     * @param databaseMaster              Database holding the chain
+     * @param pendingTransactionContainer Transactions waiting to go into a block
+     * @param peerNetwork                 Network to take peer messages from
+     * @param addressManager              Addresses of this node's wallet
+     * @param peers                       Known peers, as host:port
+     * @param peerFile                    File the known peers are saved to
+     */
+    public NodeCore(CozyDatabaseMaster databaseMaster, PendingTransactionContainer pendingTransactionContainer, PeerNetwork peerNetwork, AddressManager addressManager, ArrayList<String> peers, File peerFile) {
+        this.databaseMaster = databaseMaster;
+        this.pendingTransactionContainer = pendingTransactionContainer;
+        this.peerNetwork = peerNetwork;
+        this.addressManager = addressManager;
+        this.peers = peers;
+        this.peerFile = peerFile;
+        this.syncManager = new SyncManager(databaseMaster, peerNetwork);
+        this.blockStreamer = new BlockStreamer(databaseMaster, peerNetwork);
+        databaseMaster.addChainListener(subscriptions);
+        this.miningJobs = new MiningJobManager(this);
+        databaseMaster.addChainListener(miningJobs);
+        pendingTransactionContainer.addListener(subscriptions);
+        this.blockTemplate = new BlockTemplate(databaseMaster, pendingTransactionContainer);
+        databaseMaster.addChainListener(blockTemplate);
+        pendingTransactionContainer.addListener(blockTemplate);
+        int workerCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(WORKER_QUEUE_CAPACITY), new NamedThreadFactory("validator"), new ThreadPoolExecutor.CallerRunsPolicy());
+        ProtocolHandlers.registerAll(this);
+        RPCCommands.registerAll(this);
+    }
+
+    /**
+     * Registers the handler for a peer message.
+     *
+     * @param command First word of the message; matched case-insensitively
+     * @param handler Handler for the message
+     */
+    public void registerMessageHandler(String command, MessageHandler handler) {
+        messageHandlers.put(command.toUpperCase(), handler);
+    }
+
+    /**
+     * Registers an RPC command.
+     *
+     * @param name    Name of the command; matched case-insensitively
+     * @param command Handler for the command
+     */
+    public void registerRPCCommand(String name, RPCCommand command) {
+        rpcCommands.put(name.toLowerCase(), command);
+    }
+
+    /**
+     * Starts the dispatcher and chain threads, and starts taking requests from the RPC server. Call before the RPC server is started.
+     *
+     * @param rpc RPC server to take requests from
+     */
+    public void start(RPC rpc) {
+        rpc.handler = rpcHandler;
+        Thread chainThread = new Thread() {
+            public void run() {
+                runChain();
+            }
+        };
+        chainThread.setName("chain");
+        chainThread.start();
+        Thread dispatcherThread = new Thread() {
+            public void run() {
+                runDispatcher();
+            }
+        };
+        dispatcherThread.setName("dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+    /**
+     * Stops the node after the tasks already queued.
+     */
+    public void shutdown() {
+        shouldRun = false;
+        chainTasks.offer(new Runnable() {
+            public void run() {
+                //Wakes the chain thread up to notice shouldRun
+            }
+        });
+        workers.shutdown();
+    }
+
+    /**
+     * Queues a task for the chain thread, waiting while the queue is full.
+     *
+     * @param task Task to run on the chain thread
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void submit(Runnable task) throws InterruptedException {
+        chainTasks.put(task);
+    }
+
+    /**
+     * @return String Per message type, how many were handled and their average and worst latency from arrival to being handled
+     */
+    public String getMessageStats() {
+        StringBuilder res = new StringBuilder("Messages handled: ");
+        long total = 0;
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, MessageStats> entry : messageStats.entrySet()) {
+            MessageStats stats = entry.getValue();
+            total += stats.count;
+            lines.append('\n').append(entry.getKey()).append(": ").append(stats.count)
+                    .append(" avg ").append(String.format("%.3f", stats.totalNanos / 1e6 / stats.count)).append(" ms")
+                    .append(" max ").append(String.format("%.3f", stats.maxNanos / 1e6)).append(" ms");
+        }
+        return res.append(total).append(lines).toString();
+    }
+
+    /**
+     * Takes peer messages off the network's inbound queue, starts their prepare step on the worker pool, and queues them for the chain thread.
+     */
+    private void runDispatcher() {
+        try {
+            while (shouldRun) {
+                PeerMessage message = peerNetwork.inbound.take();
+                String data = message.data;
+                if (data.length() > 60) {
+                    System.out.println("Got data: " + data.substring(0, 30) + "..." + data.substring(data.length() - 30, data.length()));
+                } else {
+                    System.out.println("Got data: " + data);
+                }
+                String[] parts = data.split(" ");
+                MessageHandler handler = messageHandlers.get(parts[0].toUpperCase());
+                if (handler == null) {
+                    continue;
+                }
+                Future<Object> prepared = null;
+                if (handler.hasPrepareStep()) {
+                    prepared = workers.submit(new PrepareTask(handler, message, parts));
+                }
+                chainTasks.put(new MessageTask(handler, message, parts, prepared));
+            }
+        } catch (InterruptedException e) {
+            System.out.println(ANSI_RED + "[node] " + ANSI_RESET + "- Dispatcher interrupted, no longer taking peer messages.");
+        }
+    }
+
+    /**
+     * Runs chain tasks as they are queued, streaming blocks and advancing the sync between batches.
+     */
+    private void runChain() {
+        while (shouldRun) {
+            stateLock.writeLock().lock();
+            try {
+                savePeers();
+                blockStreamer.pump();
+                if (syncManager.tick()) {
+                    catchupMode = true;
+                } else {
+                    if (catchupMode) {
+                        System.out.println(ANSI_CYAN + "[p2p] " + ANSI_RESET + "- Caught up with network.");
+                    }
+                    catchupMode = false;
+                }
+            } finally {
+                stateLock.writeLock().unlock();
+            }
+
+            Runnable task;
+            try {
+                if (blockStreamer.isStreaming()) {
+                    task = chainTasks.poll(10, TimeUnit.MILLISECONDS);
+                } else if (syncManager.isSyncing()) {
+                    task = chainTasks.poll(1000, TimeUnit.MILLISECONDS);
+                } else {
+                    task = chainTasks.take();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (int i = 0; task != null; i++) {
+                if (task instanceof MessageTask) {
+                    //Readers aren't locked out while a worker is still preparing the message
+                    ((MessageTask) task).awaitPrepared();
+                }
+                stateLock.writeLock().lock();
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    System.out.println(ANSI_RED + "[node] " + ANSI_RESET + "- Task failed on the chain thread: " + e);
+                    e.printStackTrace();
+                } finally {
+                    stateLock.writeLock().unlock();
+                }
+                task = i + 1 < MAX_TASKS_PER_BATCH ? chainTasks.poll() : null;
+            }
+        }
+    }
+
+    /**
+     * Saves any peers the network has connected to since the last call.
+     */
+    private void savePeers() {
+        if (peerNetwork.newPeers.size() > 0) {
+            for (int i = 0; i < peerNetwork.newPeers.size(); i++) {
+                if (peers.indexOf(peerNetwork.newPeers.get(i)) < 0) {
+                    peers.add(peerNetwork.newPeers.get(i));
+                }
+            }
+
+            peerNetwork.newPeers = new ArrayList<>();
+            try {
+                PrintWriter writePeerFile = new PrintWriter(peerFile);
+                for (int i = 0; i < peers.size(); i++) {
+                    writePeerFile.println(peers.get(i));
+                }
+                writePeerFile.close();
+            } catch (Exception e) {
+                System.out.println("Error: Unable to write to peer file.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void recordLatency(String command, long receivedAt) {
+        long nanos = System.nanoTime() - receivedAt;
+        MessageStats stats = messageStats.get(command);
+        if (stats == null) {
+            stats = new MessageStats();
+            messageStats.put(command, stats);
+        }
+        stats.count++;
+        stats.totalNanos += nanos;
+        stats.maxNanos = Math.max(stats.maxNanos, nanos);
+    }
+
+    /**
+     * Runs a handler's prepare step on a worker thread.
+     */
+    private static class PrepareTask implements Callable<Object> {
+        private final MessageHandler handler;
+        private final PeerMessage message;
+        private final String[] parts;
+
+        PrepareTask(MessageHandler handler, PeerMessage message, String[] parts) {
+            this.handler = handler;
+            this.message = message;
+            this.parts = parts;
+        }
+
+        public Object call() throws Exception {
+            return handler.prepare(message, parts);
+        }
+    }
+
+    /**
+     * Handles a peer message on the chain thread, once its prepare step is done.
+     */
+    private class MessageTask implements Runnable {
+        private final MessageHandler handler;
+        private final PeerMessage message;
+        private final String[] parts;
+        private final Future<Object> prepared;
+        private Object result;
+        private boolean dropped;
+
+        MessageTask(MessageHandler handler, PeerMessage message, String[] parts, Future<Object> prepared) {
+            this.handler = handler;
+            this.message = message;
+            this.parts = parts;
+            this.prepared = prepared;
+        }
+
+        /**
+         * Waits for the prepare step, if there is one.
+         */
+        void awaitPrepared() {
+            if (prepared == null) {
+                return;
+            }
+            try {
+                result = prepared.get();
+            } catch (ExecutionException e) {
+                System.out.println("Discarding malformed " + parts[0].toUpperCase() + " from " + message.peer.getAddress() + ": " + e.getCause().getMessage());
+                dropped = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped = true;
+            }
+        }
+
+        public void run() {
+            if (!dropped) {
+                handler.handle(message, parts, result);
+            }
+            recordLatency(parts[0].toUpperCase(), message.receivedAt);
+        }
+    }
+
+    /**
+     * Hands RPC requests to the node.
+     */
+    private class ChainRPCHandler extends RPCHandler {
+        public CompletableFuture<String> handle(String request) {
+            return executeRPC(request);
+        }
+
+        public boolean stream(String request, Writer out) throws IOException {
+            return streamRPC(request, out);
+        }
+
+        public Subscription subscribe(String request) {
+            return subscriptions.subscribe(request);
+        }
+
+        public void unsubscribe(Subscription subscription) {
+            subscriptions.unsubscribe(subscription);
+        }
+
+        public boolean isCommand(String name) {
+            return rpcCommands.containsKey(name.toLowerCase());
+        }
+    }
+
+    /**
+     * Runs a streaming RPC request on the calling thread, writing each chunk of the response to out as soon as it is computed.
+     *
+     * @param request Request as sent by the client
+     * @param out     Client to write the response to
+     * @return boolean Whether the request was for a streaming command; if not, nothing was written, and it should go to executeRPC()
+     * @throws IOException if the client can not be written to
+     */
+    public boolean streamRPC(String request, Writer out) throws IOException {
+        String[] parts = request.split(" ");
+        parts[0] = parts[0].toLowerCase();
+        RPCCommand command = rpcCommands.get(parts[0]);
+        if (command == null || !command.isStreaming() || !command.isReadOnly()) {
+            return false;
+        }
+        for (int chunk = 0; ; chunk++) {
+            String text;
+            boolean failed = false;
+            stateLock.readLock().lock();
+            try {
+                text = command.executeChunk(parts, chunk);
+            } catch (Exception e) {
+                System.out.println(ANSI_RED + "[rpc] " + ANSI_RESET + "- " + parts[0] + " failed: " + e);
+                e.printStackTrace();
+                text = "Error: " + parts[0] + " failed: " + e.getMessage() + "\n";
+                failed = true;
+            } finally {
+                stateLock.readLock().unlock();
+            }
+            if (text == null) {
+                return true;
+            }
+            out.write(text);
+            out.flush();
+            if (failed) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Runs an RPC request. Read-only commands run right away on the calling thread; others are queued for the chain thread.
+     *
+     * @param request Request as sent by the client
+     * @return {@link CompletableFuture} Completed with the response for the client
+     */
+    public CompletableFuture<String> executeRPC(String request) {
+        final String[] parts = request.split(" ");
+        parts[0] = parts[0].toLowerCase();
+        final RPCCommand command = rpcCommands.get(parts[0]);
+        if (command == null) {
+            return CompletableFuture.completedFuture("Unknown command: \"" + parts[0] + "\"");
+        }
+        if (command.isReadOnly() && command.isLockFree()) {
+            return CompletableFuture.completedFuture(execute(command, parts));
+        }
+        if (command.isReadOnly()) {
+            stateLock.readLock().lock();
+            try {
+                return CompletableFuture.completedFuture(execute(command, parts));
+            } finally {
+                stateLock.readLock().unlock();
+            }
+        }
+        final CompletableFuture<String> response = new CompletableFuture<>();
+        try {
+            submit(new Runnable() {
+                public void run() {
+                    start(command, parts).whenComplete(new BiConsumer<String, Throwable>() {
+                        public void accept(String result, Throwable failure) {
+                            response.complete(failure == null ? result : "Error: " + parts[0] + " failed: " + failure.getMessage());
+                        }
+                    });
+                }
+            });
+        } catch (InterruptedException e) {
+            response.complete("Node is shutting down");
+        }
+        return response;
+    }
+
+    /**
+     * Starts an RPC command on the chain thread, turning any failure to start into an error response.
+     */
+    private CompletableFuture<String> start(RPCCommand command, String[] parts) {
+        try {
+            return command.start(parts);
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "[rpc] " + ANSI_RESET + "- " + parts[0] + " failed: " + e);
+            e.printStackTrace();
+            return CompletableFuture.completedFuture("Error: " + parts[0] + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs an RPC command, turning any failure into an error response.
+     */
+    private String execute(RPCCommand command, String[] parts) {
+        try {
+            return command.execute(parts);
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "[rpc] " + ANSI_RESET + "- " + parts[0] + " failed: " + e);
+            e.printStackTrace();
+            return "Error: " + parts[0] + " failed: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Names worker threads, and keeps them from holding the JVM open.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
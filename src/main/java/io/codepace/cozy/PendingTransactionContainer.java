@@ -1,9 +1,11 @@
 package io.codepace.cozy;
 
 import io.codepace.cozy.db.Block;
+import io.codepace.cozy.db.ChainListener;
 import io.codepace.cozy.db.CozyDatabaseMaster;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * This class offers basic functionality for storing transactions until they make it into a block.
@@ -17,6 +19,11 @@ public class PendingTransactionContainer {
     //ArrayList holding objects that pair addresses with their pending transaction amounts, so transactions above an account's spendable balance are rejected.
     public ArrayList<StringLongPair> accountBalanceDeltaTables;
 
+    //Net pending change per address, kept up to date as transactions come and go, so a pending balance is a lookup rather than a scan of the pool
+    private HashMap<String, Long> pendingChanges;
+
+    private ArrayList<ChainListener> listeners = new ArrayList<>();
+
     /**
      * Constructor for PendingTransactionContainer sets up required ArrayList for holding transactions. The database manager object is passed in, for checking balances
      * when a transaction is being added.
@@ -26,6 +33,7 @@ public class PendingTransactionContainer {
         this.databaseMaster = databaseMaster;
         this.pendingTransactions = new ArrayList<>();
         this.accountBalanceDeltaTables = new ArrayList<>();
+        this.pendingChanges = new HashMap<>();
     }
 
     /**
@@ -74,6 +82,10 @@ public class PendingTransactionContainer {
                 accountBalanceDeltaTables.add(new StringLongPair(inputAddress, inputAmount)); //No existing entry in the pending delta tables, so we create an ew one
             }
             pendingTransactions.add(transaction); //Can only get to here if the transaction is valid, accounted for, and the balance checks out.
+            applyPendingChanges(transaction, 1);
+            for (ChainListener listener : listeners) {
+                listener.transactionAccepted(transaction);
+            }
             System.out.println("Added transaction " + transaction.substring(0, 20) + "..." + transaction.substring(transaction.length() - 20, transaction.length()));
         } catch (Exception e) {
             System.out.println("An exception has occurred...");
@@ -84,12 +96,25 @@ public class PendingTransactionContainer {
         return true;
     }
 
+    /**
+     * Registers a listener to be told about every transaction accepted into or removed from the pool from now on.
+     *
+     * @param listener Listener to add
+     */
+    public void addListener(ChainListener listener) {
+        listeners.add(listener);
+    }
+
     /**
      * Self-explanatory method called whenever the daemon desires to reset the pending transaction pool to be blank.
      */
     public void reset() {
         pendingTransactions = new ArrayList<>();
         accountBalanceDeltaTables = new ArrayList<>();
+        pendingChanges = new HashMap<>();
+        for (ChainListener listener : listeners) {
+            listener.poolReset();
+        }
     }
 
     /**
@@ -102,6 +127,10 @@ public class PendingTransactionContainer {
         for (int i = 0; i < pendingTransactions.size(); i++) {
             if (pendingTransactions.get(i).equals(transaction)) {
                 pendingTransactions.remove(i);
+                applyPendingChanges(transaction, -1);
+                for (ChainListener listener : listeners) {
+                    listener.transactionRemoved(transaction);
+                }
                 return true;
             }
         }
@@ -133,7 +162,7 @@ public class PendingTransactionContainer {
             if (!tempBlock.validateBlock(databaseMaster.blockchain)) {
                 return false; //No transactions remove at all!
             }
-            ArrayList<String> transactions = tempBlock.transactions;
+            ArrayList<String> transactions = tempBlock.getTransactions();
             boolean allSuccessful = true;
             for (int i = 0; i < transactions.size(); i++) {
                 if (!removeTransaction(transactions.get(i))) {
@@ -148,35 +177,44 @@ public class PendingTransactionContainer {
     }
 
     /**
-     * This method scans through all of the pending transactions to calculate the total (net) balance change pending on an address. A negative value represents
-     * coins that were sent from the address in question, and a positive value represents coins awaiting confirmations to arrive.
+     * Returns the total (net) balance change pending on an address. A negative value represents coins that were sent from the address in question,
+     * and a positive value represents coins awaiting confirmations to arrive.
      *
      * @param address Cozycoin 2.0 address to search the pending transaction pool for
      * @return long The pending total (net) change for the address in question
      */
     public long getPendingBalance(String address) {
-        long totalChange = 0L;
-        for (int i = 0; i < pendingTransactions.size(); i++) {
-            String transaction = pendingTransactions.get(i);
-            try {
-                if (transaction.contains(address)) {
-                    String[] transactionParts = transaction.split(";");
-                    String senderAddress = transactionParts[0];
-                    if (senderAddress.equals(address)) {
-                        totalChange -= Long.parseLong(transactionParts[1]);
-                    }
-                    for (int j = 2; j < transactionParts.length - 2; j += 2) {
-                        if (transactionParts[j].equals(address)) {
-                            totalChange += Long.parseLong(transactionParts[j + 1]);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.err.println("Major problem: Transaction in the pending transaction pool is incorrectly formatted!");
-                System.err.println("Transaction in question: " + transaction);
+        Long change = pendingChanges.get(address);
+        return change == null ? 0L : change;
+    }
+
+    /**
+     * Adds (direction 1) or takes back (direction -1) the balance changes a pending transaction makes to the pendingChanges index.
+     *
+     * @param transaction Transaction entering or leaving the pool
+     * @param direction   1 when the transaction is added, -1 when it is removed
+     */
+    private void applyPendingChanges(String transaction, long direction) {
+        try {
+            String[] transactionParts = transaction.split(";");
+            adjustPendingChange(transactionParts[0], -direction * Long.parseLong(transactionParts[1]));
+            for (int j = 2; j < transactionParts.length - 2; j += 2) {
+                adjustPendingChange(transactionParts[j], direction * Long.parseLong(transactionParts[j + 1]));
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Major problem: Transaction in the pending transaction pool is incorrectly formatted!");
+            System.err.println("Transaction in question: " + transaction);
+        }
+    }
+
+    private void adjustPendingChange(String address, long adjustment) {
+        Long change = pendingChanges.get(address);
+        long newChange = (change == null ? 0L : change) + adjustment;
+        if (newChange == 0L) {
+            pendingChanges.remove(address); //Keeps the index from growing with every address that has ever had a pending transaction
+        } else {
+            pendingChanges.put(address, newChange);
         }
-        return totalChange;
     }
 }
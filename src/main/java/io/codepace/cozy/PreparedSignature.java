@@ -0,0 +1,51 @@
+package io.codepace.cozy;
+
+/**
+ * Everything needed to sign with one Lamport Keypair of an address, worked out before the message is known: what each of the 100 pairs
+ * reveals for a 0 bit and for a 1 bit, and the authentication path up the Merkle Tree.
+ * <p>
+ * Deriving the keypair replays the address's PRNG up to the signature index, and the authentication path is read from the layer files; a
+ * miner prepares both while it searches for a nonce, so sealing a block only hashes the block and picks 100 reveals. The result is the same
+ * signature {@link MerkleAddressUtility#getMerkleSignature(String, String, long, String)} gives.
+ * <p>
+ * Only sign one message with a prepared signature; a Lamport Keypair is good for a single signature.
+ */
+public class PreparedSignature {
+    public final String address;
+    public final long index;
+    private final String[] lamportReveals;
+    private final String authenticationPath;
+
+    private PreparedSignature(String address, long index, String[] lamportReveals, String authenticationPath) {
+        this.address = address;
+        this.index = index;
+        this.lamportReveals = lamportReveals;
+        this.authenticationPath = authenticationPath;
+    }
+
+    /**
+     * Derives the Lamport Keypair at index and reads its authentication path. Takes as long as getMerkleSignature() does.
+     *
+     * @param address    Address to sign with
+     * @param privateKey Private key of address
+     * @param index      Index of the Lamport Keypair to sign with
+     * @return PreparedSignature The prepared signature, or null if the address's files can't be read
+     */
+    public static PreparedSignature prepare(String address, String privateKey, long index) {
+        MerkleAddressUtility merkleAddressUtility = new MerkleAddressUtility();
+        String authenticationPath = merkleAddressUtility.getAuthenticationPath(index, address);
+        if (authenticationPath == null) {
+            return null;
+        }
+        String[] lamportReveals = merkleAddressUtility.getLamportReveals(merkleAddressUtility.getLamportPrivateKeyParts(privateKey, index));
+        return new PreparedSignature(address, index, lamportReveals, authenticationPath);
+    }
+
+    /**
+     * @param message The message to sign
+     * @return String The Merkle Signature of message: the 200-part Lamport Signature followed by the authentication path
+     */
+    public String sign(String message) {
+        return new MerkleAddressUtility().getLamportSignature(message, lamportReveals) + "," + authenticationPath;
+    }
+}
@@ -0,0 +1,423 @@
+package io.codepace.cozy;
+
+import io.codepace.cozy.db.Block;
+import io.codepace.cozy.db.BlockCodec;
+import io.codepace.cozy.db.BlockFormatException;
+import io.codepace.cozy.db.ChainTip;
+import io.codepace.cozy.p2p.Inventory;
+import io.codepace.cozy.p2p.Peer;
+import io.codepace.cozy.p2p.PeerMessage;
+
+import java.io.PrintWriter;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Handlers for the messages of the peer protocol.
+ */
+public class ProtocolHandlers {
+
+    /**
+     * Registers a handler for every peer message with the node.
+     *
+     * @param node Node to register with
+     */
+    public static void registerAll(NodeCore node) {
+        node.registerMessageHandler("VERSION", new Version());
+        node.registerMessageHandler("NETWORK_STATE", new NetworkState(node));
+        node.registerMessageHandler("REQUEST_NET_STATE", new RequestNetState(node));
+        BlockHandler blockHandler = new BlockHandler(node);
+        node.registerMessageHandler("BLOCK", blockHandler);
+        node.registerMessageHandler("BLOCK2", blockHandler);
+        TransactionHandler transactionHandler = new TransactionHandler(node);
+        node.registerMessageHandler("TRANSACTION", transactionHandler);
+        node.registerMessageHandler("TRANSACTION2", transactionHandler);
+        InventoryHandler inventoryHandler = new InventoryHandler(node);
+        node.registerMessageHandler("INV", inventoryHandler);
+        node.registerMessageHandler("GETDATA", inventoryHandler);
+        node.registerMessageHandler("PEER", new PeerAddress(node));
+        node.registerMessageHandler("GET_PEER", new GetPeer(node));
+        node.registerMessageHandler("GET_HEADERS", new GetHeaders(node));
+        node.registerMessageHandler("HEADERS", new Headers(node));
+        node.registerMessageHandler("GET_BLOCKS", new GetBlocks(node));
+        node.registerMessageHandler("BLOCKS_END", new BlocksEnd(node));
+        node.registerMessageHandler("GET_BLOCK", new GetBlock(node));
+    }
+
+    /**
+     * VERSION version: the protocol version the peer speaks.
+     */
+    static class Version extends MessageHandler {
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            try {
+                message.peer.protocolVersion = Math.min(Integer.parseInt(parts[1]), Constants.PROTOCOL_VERSION);
+            } catch (Exception e) {
+                System.out.println("Ignoring bad VERSION from peer: " + message.data);
+            }
+        }
+    }
+
+    /**
+     * NETWORK_STATE height hash: the height of the peer's chain.
+     */
+    static class NetworkState extends MessageHandler {
+        private final NodeCore node;
+
+        NetworkState(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            try {
+                node.syncManager.setPeerHeight(message.peer, Integer.parseInt(parts[1]));
+            } catch (Exception e) {
+                System.out.println("Ignoring bad NETWORK_STATE from peer: " + message.data);
+            }
+        }
+    }
+
+    /**
+     * REQUEST_NET_STATE: asks for our chain height, and the transactions waiting to go into a block.
+     */
+    static class RequestNetState extends MessageHandler {
+        private final NodeCore node;
+
+        RequestNetState(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            ChainTip tip = node.databaseMaster.getChainTip();
+            System.out.println("DBLEN: " + tip.height);
+            System.out.println("HASH: " + tip.hash);
+            message.peer.send("NETWORK_STATE " + tip.height + " " + tip.hash);
+            for (int k = 0; k < node.pendingTransactionContainer.pendingTransactions.size(); k++) {
+                message.peer.send("TRANSACTION " + node.pendingTransactionContainer.pendingTransactions.get(k));
+            }
+        }
+    }
+
+    /**
+     * A block received in full, decoded by prepare().
+     */
+    static class PreparedBlock {
+        final String rawBlock;
+        //Null if the block was already seen when it was prepared, and didn't need to be decoded to find its text
+        final Block block;
+
+        PreparedBlock(String rawBlock, Block block) {
+            this.rawBlock = rawBlock;
+            this.block = block;
+        }
+    }
+
+    /**
+     * BLOCK rawBlock, or BLOCK2 base64: a block, in the text or the binary encoding. Decoding and parsing happen on a worker thread.
+     */
+    static class BlockHandler extends MessageHandler {
+        private final NodeCore node;
+
+        BlockHandler(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean hasPrepareStep() {
+            return true;
+        }
+
+        public Object prepare(PeerMessage message, String[] parts) throws Exception {
+            if (parts[0].equalsIgnoreCase("BLOCK2")) {
+                Block decodedBlock = BlockCodec.decodeBlock(Base64.getDecoder().decode(parts[1]));
+                return new PreparedBlock(decodedBlock.getRawBlock(), decodedBlock);
+            }
+            if (node.seenBlocks.contains(parts[1])) {
+                return new PreparedBlock(parts[1], null);
+            }
+            return new PreparedBlock(parts[1], new Block(parts[1]));
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            Peer peer = message.peer;
+            PreparedBlock preparedBlock = (PreparedBlock) prepared;
+            String rawBlock = preparedBlock.rawBlock;
+            if (preparedBlock.block != null) {
+                node.peerNetwork.inventory.received(preparedBlock.block.blockHash);
+                peer.addKnownInventory(preparedBlock.block.blockHash);
+            }
+            if (!node.seenBlocks.add(rawBlock)) {
+                return;
+            }
+            System.out.println("Adding new block from network...");
+            System.out.println("Block: ");
+            System.out.println(rawBlock.substring(0, 30) + "...");
+            Block blockToAdd = preparedBlock.block;
+            if (blockToAdd == null) {
+                //Forgotten by the seen filter between prepare() and now
+                try {
+                    blockToAdd = new Block(rawBlock);
+                } catch (BlockFormatException e) {
+                    System.out.println("Discarding malformed block from network: " + e.getMessage());
+                    return;
+                }
+            }
+            if (node.syncManager.blockReceived(peer, blockToAdd)) {
+                //Part of the chain being synced; connected in height order by the sync manager
+                node.pendingTransactionContainer.removeTransactionsInBlock(rawBlock);
+                return;
+            }
+            if (node.databaseMaster.addBlock(blockToAdd) && !node.catchupMode) {
+                System.out.println("Added block " + blockToAdd.blockNum + " with hash: [" + blockToAdd.blockHash.substring(0, 30) + "..." + blockToAdd.blockHash.substring(blockToAdd.blockHash.length() - 30, blockToAdd.blockHash.length() - 1) + "]");
+                node.peerNetwork.relayBlock(blockToAdd, peer);
+            }
+            node.pendingTransactionContainer.removeTransactionsInBlock(rawBlock);
+        }
+    }
+
+    /**
+     * A transaction received in full, decoded and checked by prepare().
+     */
+    static class PreparedTransaction {
+        final String transaction;
+        //Null if the transaction was already seen when it was prepared, and wasn't checked
+        final Boolean valid;
+
+        PreparedTransaction(String transaction, Boolean valid) {
+            this.transaction = transaction;
+            this.valid = valid;
+        }
+    }
+
+    /**
+     * TRANSACTION tx, or TRANSACTION2 base64: a transaction, in the text or the binary encoding. Decoding and the signature check happen on
+     * a worker thread.
+     */
+    static class TransactionHandler extends MessageHandler {
+        private final NodeCore node;
+
+        TransactionHandler(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean hasPrepareStep() {
+            return true;
+        }
+
+        public Object prepare(PeerMessage message, String[] parts) throws Exception {
+            String transaction = parts[1];
+            if (parts[0].equalsIgnoreCase("TRANSACTION2")) {
+                transaction = BlockCodec.decodeTransaction(Base64.getDecoder().decode(parts[1]));
+            }
+            if (node.seenTransactions.contains(transaction)) {
+                return new PreparedTransaction(transaction, null);
+            }
+            return new PreparedTransaction(transaction, TransactionUtility.isTransactionValid(transaction));
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            PreparedTransaction preparedTransaction = (PreparedTransaction) prepared;
+            String transaction = preparedTransaction.transaction;
+            String txHash = Inventory.transactionHash(transaction);
+            node.peerNetwork.inventory.received(txHash);
+            message.peer.addKnownInventory(txHash);
+            if (node.seenTransactions.add(transaction)) {
+                node.pendingTransactionContainer.addTransaction(transaction);
+                boolean valid = preparedTransaction.valid != null ? preparedTransaction.valid : TransactionUtility.isTransactionValid(transaction);
+                if (valid) {
+                    System.out.println("New tx on network: ");
+                    String[] txParts = transaction.split("::");
+                    for (int k = 2; k < txParts.length - 2; k += 2) {
+                        System.out.println("     " + txParts[k + 1] + " cozy(s) from " + txParts[0] + " to " + txParts[k]);
+                    }
+                    System.out.println("Total cozy sent: " + txParts[1]);
+                    node.peerNetwork.relayTransaction(transaction, message.peer);
+                } else {
+                    System.out.println("Invalid transaction: " + transaction);
+                }
+            }
+        }
+    }
+
+    /**
+     * INV type hashes, and GETDATA type hashes: inventory announcements, and requests for the announced items.
+     */
+    static class InventoryHandler extends MessageHandler {
+        private final NodeCore node;
+
+        InventoryHandler(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            if (parts.length < 3) {
+                System.out.println("Ignoring bad " + parts[0] + " from peer: " + message.data);
+                return;
+            }
+            if (parts[0].equalsIgnoreCase("INV")) {
+                node.peerNetwork.inventoryAnnounced(message.peer, parts[1], parts[2].split(","));
+            } else {
+                node.peerNetwork.dataRequested(message.peer, parts[1], parts[2].split(","));
+            }
+        }
+    }
+
+    /**
+     * PEER host:port: a peer to connect to.
+     */
+    static class PeerAddress extends MessageHandler {
+        private final NodeCore node;
+
+        PeerAddress(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            boolean exists = false;
+            for (int k = 0; k < node.peers.size(); k++) {
+                if (node.peers.get(k).equals(parts[1] + ":" + parts[2])) {
+                    exists = true;
+                }
+            }
+
+            if (!exists) {
+                try {
+                    String peerAddr = parts[1].substring(0, parts[1].indexOf(":"));
+                    int peerPort = Integer.parseInt(parts[1].substring(parts[1].indexOf(":") + 1));
+                    node.peerNetwork.connectToPeer(peerAddr, peerPort);
+                    node.peers.add(parts[1]);
+                    PrintWriter out = new PrintWriter(node.peerFile);
+                    for (int k = 0; k < node.peers.size(); k++) {
+                        out.println(node.peers.get(k));
+                    }
+                    out.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * GET_PEER: asks for a peer to connect to.
+     */
+    static class GetPeer extends MessageHandler {
+        private final NodeCore node;
+        private final Random random = new Random();
+
+        GetPeer(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            message.peer.send("PEER " + node.peers.get(random.nextInt(node.peers.size())));
+        }
+    }
+
+    /**
+     * GET_HEADERS from count: asks for the hashes of a range of blocks.
+     */
+    static class GetHeaders extends MessageHandler {
+        private final NodeCore node;
+
+        GetHeaders(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            try {
+                int from = Integer.parseInt(parts[1]);
+                int to = Math.min(node.databaseMaster.getBlockchainLength(), from + Math.min(Integer.parseInt(parts[2]), SyncManager.MAX_HEADERS_PER_MESSAGE));
+                StringBuilder hashes = new StringBuilder();
+                for (int k = Math.max(from, 0); k < to; k++) {
+                    if (hashes.length() > 0) {
+                        hashes.append(',');
+                    }
+                    hashes.append(node.databaseMaster.getBlock(k).blockHash);
+                }
+                message.peer.send("HEADERS " + from + " " + hashes);
+            } catch (Exception e) {
+                System.out.println("Ignoring bad GET_HEADERS from peer: " + message.data);
+            }
+        }
+    }
+
+    /**
+     * HEADERS from hashes: the hashes asked for with GET_HEADERS.
+     */
+    static class Headers extends MessageHandler {
+        private final NodeCore node;
+
+        Headers(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            try {
+                String[] hashes = parts.length > 2 ? parts[2].split(",") : new String[0];
+                node.syncManager.headersReceived(message.peer, Integer.parseInt(parts[1]), hashes);
+            } catch (NumberFormatException e) {
+                System.out.println("Ignoring bad HEADERS from peer: " + message.data.substring(0, Math.min(message.data.length(), 60)));
+            }
+        }
+    }
+
+    /**
+     * GET_BLOCKS from count: asks for a range of blocks, streamed by the {@link BlockStreamer}.
+     */
+    static class GetBlocks extends MessageHandler {
+        private final NodeCore node;
+
+        GetBlocks(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            try {
+                node.blockStreamer.request(message.peer, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            } catch (Exception e) {
+                System.out.println("Ignoring bad GET_BLOCKS from peer: " + message.data);
+            }
+        }
+    }
+
+    /**
+     * BLOCKS_END from next: the blocks from next onwards in the range asked for aren't coming.
+     */
+    static class BlocksEnd extends MessageHandler {
+        private final NodeCore node;
+
+        BlocksEnd(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            try {
+                node.syncManager.rangeEnded(message.peer, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            } catch (Exception e) {
+                System.out.println("Ignoring bad BLOCKS_END from peer: " + message.data);
+            }
+        }
+    }
+
+    /**
+     * GET_BLOCK height: asks for a single block.
+     */
+    static class GetBlock extends MessageHandler {
+        private final NodeCore node;
+
+        GetBlock(NodeCore node) {
+            this.node = node;
+        }
+
+        public void handle(PeerMessage message, String[] parts, Object prepared) {
+            try {
+                Block block = node.databaseMaster.getBlock(Integer.parseInt(parts[1]));
+                if (block != null) {
+                    System.out.println("Sending block " + parts[1] + " to peer");
+                    message.peer.sendBlock(block);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package io.codepace.cozy;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Handles one RPC command for the {@link NodeCore}. Commands run on the chain thread, one at a time, between peer messages, unless they
+ * are read-only.
+ */
+public abstract class RPCCommand {
+
+    /**
+     * Read-only commands run on the RPC client's own thread, alongside other read-only commands, and must not change any state.
+     *
+     * @return boolean Whether the command only reads state
+     */
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Lock-free commands are read-only commands that only read values published for other threads, like the chain tip snapshot, so they don't
+     * take the state lock at all and never wait on the chain thread.
+     *
+     * @return boolean Whether the command can run without the state lock
+     */
+    public boolean isLockFree() {
+        return false;
+    }
+
+    /**
+     * Streaming commands answer in chunks, each written to the client as soon as it is computed; see executeChunk(). Only read-only commands
+     * can stream.
+     *
+     * @return boolean Whether the command streams its response
+     */
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Computes one chunk of a streaming command's response. The state lock is taken for each chunk on its own, so a large response never holds
+     * up the chain thread for long, and a client that reads slowly never holds it up at all.
+     *
+     * @param parts Request split on spaces, with the command name lowercased
+     * @param chunk Index of the chunk, from 0
+     * @return String The chunk, or null once the response is complete
+     */
+    public String executeChunk(String[] parts, int chunk) {
+        return null;
+    }
+
+    /**
+     * Runs the command.
+     *
+     * @param parts Request split on spaces, with the command name lowercased
+     * @return String Response sent back to the RPC client
+     */
+    public abstract String execute(String[] parts);
+
+    /**
+     * Starts the command, for commands that finish after they return, like mining jobs. This is what the node calls for commands that aren't
+     * read-only; the chain thread moves on as soon as it returns, and the client gets its response when the future completes. The default
+     * runs execute().
+     *
+     * @param parts Request split on spaces, with the command name lowercased
+     * @return {@link CompletableFuture} Completed with the response sent back to the RPC client
+     */
+    public CompletableFuture<String> start(String[] parts) {
+        return CompletableFuture.completedFuture(execute(parts));
+    }
+}
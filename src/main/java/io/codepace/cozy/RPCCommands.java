@@ -0,0 +1,524 @@
+package io.codepace.cozy;
+
+import io.codepace.cozy.db.BlockFormatException;
+import io.codepace.cozy.db.ChainTip;
+import io.codepace.cozy.p2p.Peer;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * The commands served by the RPC daemon.
+ */
+public class RPCCommands {
+
+    /**
+     * Registers every RPC command with the node.
+     *
+     * @param node Node to register with
+     */
+    public static void registerAll(NodeCore node) {
+        node.registerRPCCommand("getbalance", new GetBalance(node));
+        node.registerRPCCommand("getinfo", new GetInfo(node));
+        node.registerRPCCommand("getpeerinfo", new GetPeerInfo(node));
+        node.registerRPCCommand("getmessagestats", new GetMessageStats(node));
+        node.registerRPCCommand("send", new Send(node));
+        node.registerRPCCommand("submit_tx", new SubmitTx(node));
+        node.registerRPCCommand("trypos", new TryPos(node));
+        node.registerRPCCommand("submit_cert", new SubmitCert(node));
+        node.registerRPCCommand("getminingjobs", new GetMiningJobs(node));
+        node.registerRPCCommand("get_history", new GetHistory(node));
+        node.registerRPCCommand("get_pending", new GetPending(node));
+        node.registerRPCCommand("getbalances", new GetBalances(node));
+        node.registerRPCCommand("subscribe", new Subscribe());
+    }
+
+    /**
+     * getbalance [address]: confirmed balance of an address, or of the default address.
+     */
+    static class GetBalance extends RPCCommand {
+        private final NodeCore node;
+
+        GetBalance(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public String execute(String[] parts) {
+            String res = null;
+            if (parts.length > 1){
+                res = node.databaseMaster.getAddressBalance(parts[1]) + "";
+            } else {
+                res = node.databaseMaster.getAddressBalance(node.addressManager.getDefaultAddress()) + "";
+            }
+            return res;
+        }
+    }
+
+    /**
+     * getinfo: chain height, tip, difficulty and the default address. Reads the chain tip snapshot, so it doesn't wait for block imports;
+     * the balance comes straight from the ledger's concurrent map.
+     */
+    static class GetInfo extends RPCCommand {
+        private final NodeCore node;
+
+        GetInfo(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public boolean isLockFree() {
+            return true;
+        }
+
+        public String execute(String[] parts) {
+            // TODO have this give more info
+            ChainTip tip = node.databaseMaster.getChainTip();
+            String res = "Blocks: " + tip.height;
+            res += "\nLast block hash: " + tip.hash;
+            res += "\nDifficulty: " + tip.difficulty;
+            res += "\nLedger hash: " + tip.ledgerHash;
+            res += "\nMain address (default): " + node.addressManager.getDefaultAddress();
+            res += "\nMain address balance: " + node.databaseMaster.getAddressBalance(node.addressManager.getDefaultAddress());
+            res += "\nLatest transaction: " + (tip.latestTransaction == null ? "none" : tip.latestTransaction);
+            return res;
+        }
+    }
+
+    /**
+     * getpeerinfo: connected peers, with their outbound queue depth and bytes sent.
+     */
+    static class GetPeerInfo extends RPCCommand {
+        private final NodeCore node;
+
+        GetPeerInfo(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public String execute(String[] parts) {
+            String res = "Peers: " + node.peerNetwork.peerConnections.size();
+            for (Peer peer : node.peerNetwork.peerConnections) {
+                res += "\n" + peer.getAddress() + " protocol: " + peer.protocolVersion + " queued: " + peer.getOutboundQueueDepth() + " bytes sent: " + peer.getBytesSent();
+            }
+            return res;
+        }
+    }
+
+    /**
+     * send amount dest: signs and relays a transaction from the default address.
+     */
+    static class Send extends RPCCommand {
+        private final NodeCore node;
+
+        Send(NodeCore node) {
+            this.node = node;
+        }
+
+        public String execute(String[] parts) {
+            String res = null;
+            try{
+                long amount = Long.parseLong(parts[1]);
+                String destAddr = parts[2];
+                String addr = node.addressManager.getDefaultAddress();
+                String fullTx = node.addressManager.getSignedTransaction(destAddr, amount, node.databaseMaster.getAddressSignatureIndex(addr) + node.addressManager.getDefaultAddressIndexOffset());
+                node.addressManager.incrementDefaultAddressIndexOffset();
+                System.out.println("Trying to verify transaction... " + TransactionUtility.isTransactionValid(fullTx));
+                if (TransactionUtility.isTransactionValid(fullTx)){
+                    node.pendingTransactionContainer.addTransaction(fullTx);
+                    node.peerNetwork.relayTransaction(fullTx, null);
+                    System.out.println("Sending " + amount + " to " + destAddr + " from " + addr);
+                    res = "Sent " + amount + " from " + addr + " to " + destAddr;
+                } else {
+                    res = "Unable to send: invalid transaction :(";
+                }
+            } catch (Exception e){
+                res = "Syntax (no '<' or '>'): send <amount> <dest>";
+            }
+            return res;
+        }
+    }
+
+    /**
+     * submit_tx rawTx: relays a signed transaction.
+     */
+    static class SubmitTx extends RPCCommand {
+        private final NodeCore node;
+
+        SubmitTx(NodeCore node) {
+            this.node = node;
+        }
+
+        public String execute(String[] parts) {
+            String res = null;
+            if(TransactionUtility.isTransactionValid(parts[1])){
+                node.pendingTransactionContainer.addTransaction(parts[0]);
+                node.peerNetwork.relayTransaction(parts[1], null);
+                res = "Sent raw tx.";
+            } else {
+                res = "Invalid transaction";
+            }
+            return res;
+        }
+    }
+
+    /**
+     * trypos: attempts a PoS block with the default address. The nonce search and block building run as a {@link MiningJob}; the response
+     * comes once the job is over.
+     */
+    static class TryPos extends RPCCommand {
+        private final NodeCore node;
+
+        TryPos(NodeCore node) {
+            this.node = node;
+        }
+
+        public String execute(String[] parts) {
+            CompletableFuture<String> result = start(parts);
+            return result.isDone() ? result.join() : "Started a PoS mining job; see getminingjobs";
+        }
+
+        public CompletableFuture<String> start(String[] parts) {
+            String res = null;
+            // Address can not have mined a PoS block or sent a transaction in the last 50 blocks
+
+            String PoSAddress = node.addressManager.getDefaultAddress();
+
+            int lastPoSHeight = node.databaseMaster.getLastPoSHeight(PoSAddress, node.databaseMaster.getBlockchainLength());
+            int lastSendHeight = node.databaseMaster.getLastSendHeight(PoSAddress, node.databaseMaster.getBlockchainLength());
+            if (lastPoSHeight >= 0)
+            {
+                // Address has mined PoS block too recently!
+                res = "A PoS block was mined too recently: " + lastPoSHeight;
+                return CompletableFuture.completedFuture(res);
+            }
+            else if (lastSendHeight >= 0)
+            {
+                // Address has sent coins too recently!
+                res = "Coins were sent from this address too recently: " + lastSendHeight;
+                return CompletableFuture.completedFuture(res);
+            }
+
+            System.out.println("Last block: " + node.databaseMaster.getBlockchainLength());
+            System.out.println("That block's hash: " + node.databaseMaster.getLatestBlock().blockHash);
+            double currentBalance = node.databaseMaster.getAddressBalance(PoSAddress);
+            Certificate certificate = new Certificate(PoSAddress, "0", (int)currentBalance * 100, "0", node.databaseMaster.getBlockchainLength() + 1, node.databaseMaster.getLatestBlock().blockHash, 0, "0,0");
+            return node.miningJobs.start(new PosJob(node, certificate));
+        }
+    }
+
+    /**
+     * The PoS block trypos attempts. Captures what it needs from the chain on the chain thread, when it is created.
+     */
+    static class PosJob extends MiningJob {
+        private final NodeCore node;
+        private final Certificate certificate;
+        private final int blockNum;
+        private final ArrayList<String> transactions;
+        private final Future<PreparedSignature> minerSignature;
+
+        PosJob(NodeCore node, Certificate certificate) {
+            super("trypos", node.databaseMaster.getLatestBlock().blockHash, certificate.maxNonce);
+            this.node = node;
+            this.certificate = certificate;
+            //node.databaseMaster.getBlockchainLength() doesn't have one added to it to account for starting from 0!
+            this.blockNum = node.databaseMaster.getBlockchainLength();
+            this.transactions = node.blockTemplate.getTransactions();
+            this.minerSignature = node.miningJobs.prepareSignature(certificate.redeemAddress, node.addressManager.getDefaultPrivateKey(), node.databaseMaster.getAddressSignatureIndex(certificate.redeemAddress));
+        }
+
+        protected String work() throws Exception {
+            System.out.println("Checking up to " + certificate.maxNonce);
+            MiningEngine.Result best = MiningEngine.search(certificate.getCertificateMessage(), certificate.maxNonce, progress);
+            compiling();
+            int bestNonce = best.bestNonce;
+            long lowestScore = best.score;
+            System.out.println("Best nonce: " + bestNonce + " with score: " + lowestScore);
+            long target = Long.MAX_VALUE/(100000/2); // Hard-coded PoS difficulty for this test
+            if (lowestScore >= target)
+            {
+                message = "Pos mining failed with target score " + lowestScore + "\nWhich is above target " + target;
+                return null;
+            }
+            //Great, certificate is a winning certificate! The transactions were selected by the block template when the job started.
+            if (progress.isCancelled())
+            {
+                throw new CancellationException("Mining job cancelled");
+            }
+            //We have the transaction list; now we need to assemble the block.
+            String fullBlock = BlockGenerator.compileBlock(System.currentTimeMillis(), blockNum, previousBlockHash, 100000 /*fixed testnet PoS difficulty for now...*/, bestNonce, "0000000000000000000000000000000000000000000000000000000000000000", transactions, certificate, minerSignature.get());
+            if (fullBlock == null)
+            {
+                throw new IllegalStateException("Unable to sign the block with " + certificate.redeemAddress);
+            }
+
+            System.out.println("Compiled PoS block: " + fullBlock);
+            message = "Successfully submitted block! \nCertificate earned score " + lowestScore + "\nWhich is below target " + target + " so earned PoS!";
+            return fullBlock;
+        }
+    }
+
+    /**
+     * submit_cert cert: builds, adds and relays a block for a winning certificate. The nonce search and block building run as a
+     * {@link MiningJob}; the response comes once the job is over.
+     */
+    static class SubmitCert extends RPCCommand {
+        private final NodeCore node;
+
+        SubmitCert(NodeCore node) {
+            this.node = node;
+        }
+
+        public String execute(String[] parts) {
+            CompletableFuture<String> result = start(parts);
+            return result.isDone() ? result.join() : "Started a certificate mining job; see getminingjobs";
+        }
+
+        public CompletableFuture<String> start(String[] parts) {
+            /*
+             * We have seven things to do:
+             * 1.) Check certificate for all nonces
+             * If 1. shows a difficulty above the network difficulty (below the target), proceed with creating a block:
+             * 2.) Gather all transactions from the pending transaction pool. Test all for validity. Test all under a max balance test.
+             * 3.) Put correct transactions in any arbitrary order, except for multiple transactions from the same address, which are ordered by signature index.
+             * 4.) Input the ledger hash (In 0.2.05, this is 0000000000000000000000000000000000000000000000000000000000000000, as ledger hashing isn't fully implemented)
+             * 5.) Hash the block
+             * 6.) Sign the block
+             * 7.) Return full block
+             * Steps 2 and 3 are kept up to date by the node's BlockTemplate, the rest run in a CertificateJob, and 5 and 6 are handled by a static method inside BlockGenerator.
+             */
+            Certificate certificate;
+            try{
+                certificate = new Certificate(parts[1]);
+            } catch (BlockFormatException e){
+                return CompletableFuture.completedFuture("Malformed certificate: " + e.getMessage());
+            }
+            return node.miningJobs.start(new CertificateJob(node, certificate));
+        }
+    }
+
+    /**
+     * The PoW block submit_cert builds. Captures what it needs from the chain on the chain thread, when it is created.
+     */
+    static class CertificateJob extends MiningJob {
+        private final NodeCore node;
+        private final Certificate certificate;
+        private final long target;
+        private final int blockNum;
+        private final ArrayList<String> transactions;
+        private final Future<PreparedSignature> minerSignature;
+
+        CertificateJob(NodeCore node, Certificate certificate) {
+            super("submit_cert", node.databaseMaster.getLatestBlock().blockHash, certificate.maxNonce);
+            this.node = node;
+            this.certificate = certificate;
+            this.target = Long.MAX_VALUE/(node.databaseMaster.getDifficulty()/2); //Difficulty and target have an inverse relationship.
+            this.blockNum = node.databaseMaster.getBlockchainLength();
+            this.transactions = node.blockTemplate.getTransactions();
+            this.minerSignature = node.miningJobs.prepareSignature(certificate.redeemAddress, node.addressManager.getDefaultPrivateKey(), node.databaseMaster.getAddressSignatureIndex(certificate.redeemAddress));
+        }
+
+        protected String work() throws Exception {
+            //First, we'll check for the max difficulty.
+            System.out.println("Checking up to " + certificate.maxNonce);
+            MiningEngine.Result best = MiningEngine.search(certificate.getCertificateMessage(), certificate.maxNonce, progress);
+            compiling();
+            int bestNonce = best.bestNonce;
+            long lowestScore = best.score;
+            System.out.println("Best nonce: " + bestNonce + " with score: " + lowestScore);
+            if (lowestScore >= target)
+            {
+                message = "Certificate failed with target score " + lowestScore + "\nWhich is above target " + target;
+                return null;
+            }
+            //Great, certificate is a winning certificate! The transactions were selected by the block template when the job started.
+            if (progress.isCancelled())
+            {
+                throw new CancellationException("Mining job cancelled");
+            }
+            String fullBlock = BlockGenerator.compileBlock(System.currentTimeMillis(), blockNum, previousBlockHash, 150000, bestNonce, "0000000000000000000000000000000000000000000000000000000000000000", transactions, certificate, minerSignature.get());
+            if (fullBlock == null)
+            {
+                throw new IllegalStateException("Unable to sign the block with " + certificate.redeemAddress);
+            }
+            message = "Successfully submitted block! \nCertificate earned target score " + lowestScore + "\nWhich is below target " + target;
+            return fullBlock;
+        }
+    }
+
+    /**
+     * getminingjobs: recent mining jobs, with their state and how many of their nonces have been checked.
+     */
+    static class GetMiningJobs extends RPCCommand {
+        private final NodeCore node;
+
+        GetMiningJobs(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public boolean isLockFree() {
+            return true;
+        }
+
+        public String execute(String[] parts) {
+            return node.miningJobs.describeJobs();
+        }
+    }
+
+    /**
+     * get_history address [fromHeight] [limit]: transactions involving an address, oldest first.
+     */
+    static class GetHistory extends RPCCommand {
+        private final NodeCore node;
+
+        GetHistory(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public String execute(String[] parts) {
+            String res = null;
+            if (parts.length > 1){
+                try{
+                    int fromHeight = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+                    int limit = parts.length > 3 ? Integer.parseInt(parts[3]) : Integer.MAX_VALUE;
+                    ArrayList<String> transactions = node.databaseMaster.getTransactionsInvolvingAddress(parts[1], fromHeight, limit);
+                    StringBuilder transactionsFlat = new StringBuilder();
+                    for (int j = 0; j < transactions.size(); j++) {
+                        transactionsFlat.append(transactions.get(j)).append('\n');
+                    }
+                    res = transactionsFlat.toString();
+                } catch (NumberFormatException e){
+                    res = "Syntax: get_history <address> [fromHeight] [limit]";
+                }
+            } else {
+                res = "Syntax: get_history <address> [fromHeight] [limit]";
+            }
+            return res;
+        }
+    }
+
+    /**
+     * get_pending address: balance of an address counting pending transactions.
+     */
+    static class GetPending extends RPCCommand {
+        private final NodeCore node;
+
+        GetPending(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public String execute(String[] parts) {
+            String res = null;
+            if(parts.length > 1){
+                res = "" + node.pendingTransactionContainer.getPendingBalance(parts[1]);
+            } else res = "get_pending <address>";
+            return res;
+        }
+    }
+
+    /**
+     * getbalances address [address...]: one "address confirmed pending" line per address, where pending is the net change waiting in the
+     * pending transaction pool, as get_pending gives it. Both are lookups in an index, so each address costs the same however big the ledger and
+     * the pool are. Over the line protocol the lines are streamed, BALANCES_PER_CHUNK at a time.
+     */
+    static class GetBalances extends RPCCommand {
+        public static final int BALANCES_PER_CHUNK = 1000;
+
+        private final NodeCore node;
+
+        GetBalances(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public boolean isStreaming() {
+            return true;
+        }
+
+        public String executeChunk(String[] parts, int chunk) {
+            if (parts.length < 2) {
+                return chunk == 0 ? "getbalances <address> [address...]\n" : null;
+            }
+            int from = 1 + chunk * BALANCES_PER_CHUNK;
+            if (from >= parts.length) {
+                return null;
+            }
+            int to = Math.min(from + BALANCES_PER_CHUNK, parts.length);
+            StringBuilder res = new StringBuilder((to - from) * 64);
+            for (int i = from; i < to; i++) {
+                res.append(parts[i]).append(' ')
+                        .append(node.databaseMaster.getAddressBalance(parts[i])).append(' ')
+                        .append(node.pendingTransactionContainer.getPendingBalance(parts[i])).append('\n');
+            }
+            return res.toString();
+        }
+
+        public String execute(String[] parts) {
+            StringBuilder res = new StringBuilder();
+            String text;
+            for (int chunk = 0; (text = executeChunk(parts, chunk)) != null; chunk++) {
+                res.append(text);
+            }
+            return res.substring(0, res.length() - 1); //Without the last newline
+        }
+    }
+
+    /**
+     * subscribe: only reached when a subscribe request has no topics, or comes over JSON-RPC, which can't hold a connection open for events.
+     * Subscriptions themselves are started by the RPC thread; see {@link io.codepace.cozy.p2p.SubscriptionManager}.
+     */
+    static class Subscribe extends RPCCommand {
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public String execute(String[] parts) {
+            return "subscribe <blocks|transactions|address> [...] - only available on the line protocol port";
+        }
+    }
+
+    /**
+     * getmessagestats: how many of each peer message were handled, and how long they took from arrival.
+     */
+    static class GetMessageStats extends RPCCommand {
+        private final NodeCore node;
+
+        GetMessageStats(NodeCore node) {
+            this.node = node;
+        }
+
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        public String execute(String[] parts) {
+            return node.getMessageStats();
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package io.codepace.cozy;
+
+import io.codepace.cozy.db.Block;
+import io.codepace.cozy.db.CozyDatabaseMaster;
+import io.codepace.cozy.p2p.Peer;
+import io.codepace.cozy.p2p.PeerNetwork;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+import static io.codepace.cozy.Util.*;
+
+/**
+ * Downloads the blocks this node is missing when peers report a longer chain, headers first.
+ * <p>
+ * Catching up used to mean asking every peer for every missing block, again on every pass of the main loop. Instead, the hashes of the missing
+ * blocks are first fetched from the peer with the longest chain (GET_HEADERS/HEADERS, in chunks). The missing heights are then split into small
+ * ranges, and each range is requested from a single peer that has it, with one GET_BLOCKS message (version 1 peers get a GET_BLOCK per
+ * height instead). Only a window of heights above the local chain is requested at a time,
+ * every peer has a limit on outstanding ranges, and a range that isn't delivered in time is handed to another peer, with a strike against the
+ * one that stalled. Blocks are held until every block below them has arrived, and connected to the chain in height order; each has to match
+ * the hash it was announced with.
+ * <p>
+ * Peers still on protocol version 1 don't know GET_HEADERS. If none of the peers ahead of us speaks version 2, ranges are downloaded without
+ * announced hashes, and blocks are only checked by {@link CozyDatabaseMaster#addBlock(Block)} as they are connected.
+ */
+public class SyncManager {
+    public static final int MAX_HEADERS_PER_MESSAGE = 2000;
+    //Headers are only fetched this far ahead of the local chain, so the hash map stays small on a long chain
+    public static final int MAX_HEADERS_AHEAD = 10000;
+    public static final int BLOCKS_PER_REQUEST = 64;
+    public static final int WINDOW_BLOCKS = 1024;
+    public static final int MAX_REQUESTS_PER_PEER = 2;
+    public static final long REQUEST_TIMEOUT_MS = 15000;
+    public static final int MAX_STRIKES = 3;
+
+    /**
+     * A range of heights requested from a single peer.
+     */
+    private static class Request {
+        final int start;
+        final int end; //Exclusive
+        Peer peer;
+        long sentAt;
+
+        Request(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private CozyDatabaseMaster databaseMaster;
+    private PeerNetwork peerNetwork;
+
+    private HashMap<Peer, Integer> peerHeights = new HashMap<>();
+    private HashMap<Peer, Integer> strikes = new HashMap<>();
+
+    //Announced hashes of the blocks being downloaded, by height, and the height just past the last one announced
+    private HashMap<Integer, String> headerHashes = new HashMap<>();
+    private int headersEnd = -1;
+    private Peer headerPeer;
+    private Peer lastHeaderPeer;
+    private long headersRequestedAt;
+
+    private ArrayList<Request> inFlight = new ArrayList<>();
+    private ArrayDeque<Request> unassigned = new ArrayDeque<>();
+    private int nextUnrequested = -1;
+    private TreeMap<Integer, Block> downloaded = new TreeMap<>();
+    private boolean syncing = false;
+
+    /**
+     * Constructor for SyncManager.
+     *
+     * @param databaseMaster Database that downloaded blocks are added to
+     * @param peerNetwork    Network to request blocks from
+     */
+    public SyncManager(CozyDatabaseMaster databaseMaster, PeerNetwork peerNetwork) {
+        this.databaseMaster = databaseMaster;
+        this.peerNetwork = peerNetwork;
+    }
+
+    /**
+     * Records the height of a peer's chain, as reported in NETWORK_STATE or implied by a block it relayed.
+     *
+     * @param peer   Peer that reported the height
+     * @param height Length of the peer's chain
+     */
+    public void setPeerHeight(Peer peer, int height) {
+        Integer known = peerHeights.get(peer);
+        if (known == null || height > known) {
+            peerHeights.put(peer, height);
+        }
+    }
+
+    /**
+     * @return int Length of the longest chain reported by any peer
+     */
+    public int getBestPeerHeight() {
+        int best = 0;
+        for (int height : peerHeights.values()) {
+            best = Math.max(best, height);
+        }
+        return best;
+    }
+
+    /**
+     * @return boolean Whether blocks are currently being downloaded
+     */
+    public boolean isSyncing() {
+        return syncing;
+    }
+
+    /**
+     * Requests headers and block ranges as needed, and re-assigns ranges that timed out. Called by the chain thread between batches of tasks.
+     *
+     * @return boolean Whether the node is still catching up
+     */
+    public boolean tick() {
+        long now = System.currentTimeMillis();
+        forgetDisconnectedPeers();
+        int localHeight = databaseMaster.getBlockchainLength();
+        int bestHeight = getBestPeerHeight();
+        if (bestHeight <= localHeight && inFlight.isEmpty()) {
+            if (syncing) {
+                reset();
+            }
+            return false;
+        }
+        if (!syncing) {
+            System.out.println(ANSI_CYAN + "[p2p] " + ANSI_RESET + "- Syncing from height " + localHeight + " to " + bestHeight);
+            syncing = true;
+            headersEnd = localHeight;
+            nextUnrequested = localHeight;
+        }
+        //Blocks may also have been connected by the regular relay path
+        headersEnd = Math.max(headersEnd, localHeight);
+        nextUnrequested = Math.max(nextUnrequested, localHeight);
+        downloaded.headMap(localHeight).clear();
+        for (Iterator<Integer> it = headerHashes.keySet().iterator(); it.hasNext(); ) {
+            if (it.next() < localHeight - 1) {
+                it.remove(); //The hash just below the local height is kept to check the next block against
+            }
+        }
+
+        int downloadLimit = requestHeaders(now, localHeight, bestHeight);
+
+        for (Iterator<Request> it = inFlight.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (request.end <= localHeight) {
+                it.remove(); //Filled in by relayed blocks
+            } else if (now - request.sentAt > REQUEST_TIMEOUT_MS) {
+                System.out.println(ANSI_CYAN + "[p2p] " + ANSI_RESET + "- " + request.peer.getAddress() + " didn't deliver blocks " + request.start + "-" + (request.end - 1) + " in time");
+                strike(request.peer);
+                it.remove();
+                unassigned.addFirst(request);
+            }
+        }
+        assignRequests(now, localHeight, downloadLimit);
+        return true;
+    }
+
+    /**
+     * Handles a HEADERS reply.
+     *
+     * @param peer   Peer that sent the headers
+     * @param from   Height of the first hash
+     * @param hashes Block hashes, in height order
+     */
+    public void headersReceived(Peer peer, int from, String[] hashes) {
+        if (peer != headerPeer || from != headersEnd) {
+            return; //Unsolicited, or a late reply that was already re-requested
+        }
+        headerPeer = null;
+        lastHeaderPeer = peer;
+        if (hashes.length == 0) {
+            //The peer doesn't have the blocks it claimed
+            peerHeights.put(peer, from);
+            return;
+        }
+        for (int i = 0; i < hashes.length; i++) {
+            headerHashes.put(from + i, hashes[i]);
+        }
+        headersEnd = from + hashes.length;
+        setPeerHeight(peer, headersEnd);
+    }
+
+    /**
+     * Offers a block received from a peer to the sync. Blocks inside the range being synced are held and connected in height order.
+     *
+     * @param peer  Peer the block came from
+     * @param block Block received
+     * @return boolean Whether the block was taken by the sync; if not, it should be handled as a regular relayed block
+     */
+    public boolean blockReceived(Peer peer, Block block) {
+        int localHeight = databaseMaster.getBlockchainLength();
+        if (block.blockNum >= localHeight) {
+            setPeerHeight(peer, block.blockNum + 1);
+        }
+        if (!syncing || block.blockNum < localHeight || block.blockNum >= nextUnrequested) {
+            return false;
+        }
+        String expected = headerHashes.get(block.blockNum);
+        if (expected != null && !expected.equals(block.blockHash)) {
+            return false; //Not the block we asked for, possibly a competing block being relayed
+        }
+        downloaded.put(block.blockNum, block);
+        for (Iterator<Request> it = inFlight.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (request.start <= block.blockNum && block.blockNum < request.end && isComplete(request)) {
+                it.remove();
+            }
+        }
+        connectDownloaded(peer);
+        return true;
+    }
+
+    /**
+     * Handles BLOCKS_END, sent when a peer is done with a GET_BLOCKS range. Any range from that peer still missing blocks below the end
+     * isn't going to be completed, so it is handed to another peer right away instead of waiting for the timeout.
+     *
+     * @param peer Peer that sent BLOCKS_END
+     * @param from First height of the range the peer was asked for
+     * @param end  Height just past the last block the peer sent
+     */
+    public void rangeEnded(Peer peer, int from, int end) {
+        for (Iterator<Request> it = inFlight.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (request.peer == peer && request.start <= from && from < request.end && !isComplete(request)) {
+                System.out.println(ANSI_CYAN + "[p2p] " + ANSI_RESET + "- " + peer.getAddress() + " only had blocks up to " + end);
+                peerHeights.put(peer, end);
+                it.remove();
+                unassigned.addFirst(request);
+            }
+        }
+    }
+
+    private int requestHeaders(long now, int localHeight, int bestHeight) {
+        if (headerPeer != null && now - headersRequestedAt > REQUEST_TIMEOUT_MS) {
+            strike(headerPeer);
+            headerPeer = null;
+        }
+        Peer source = null;
+        for (Peer peer : peerHeights.keySet()) {
+            if (peer.protocolVersion >= 2 && peerHeights.get(peer) > headersEnd && isUsable(peer)
+                    && (source == null || peerHeights.get(peer) > peerHeights.get(source))) {
+                source = peer;
+            }
+        }
+        if (source == null && headerHashes.isEmpty()) {
+            return bestHeight; //No peer can announce headers, download without them
+        }
+        if (source != null && headerPeer == null && headersEnd < localHeight + MAX_HEADERS_AHEAD) {
+            int count = Math.min(MAX_HEADERS_PER_MESSAGE, peerHeights.get(source) - headersEnd);
+            source.send("GET_HEADERS " + headersEnd + " " + count);
+            headerPeer = source;
+            headersRequestedAt = now;
+        }
+        return headersEnd;
+    }
+
+    private void assignRequests(long now, int localHeight, int downloadLimit) {
+        while (true) {
+            Request request = unassigned.peekFirst();
+            if (request != null && request.end <= localHeight) {
+                unassigned.pollFirst();
+                continue;
+            }
+            if (request == null) {
+                if (nextUnrequested >= downloadLimit || nextUnrequested >= localHeight + WINDOW_BLOCKS) {
+                    return;
+                }
+                request = new Request(nextUnrequested, Math.min(nextUnrequested + BLOCKS_PER_REQUEST, downloadLimit));
+            }
+            Peer peer = pickPeer(request);
+            if (peer == null) {
+                return;
+            }
+            if (request == unassigned.peekFirst()) {
+                unassigned.pollFirst();
+            } else {
+                nextUnrequested = request.end;
+            }
+            request.peer = peer;
+            request.sentAt = now;
+            inFlight.add(request);
+            int firstMissing = request.start;
+            while (downloaded.containsKey(firstMissing)) {
+                firstMissing++;
+            }
+            int lastMissing = request.end - 1;
+            while (downloaded.containsKey(lastMissing)) {
+                lastMissing--;
+            }
+            if (peer.protocolVersion >= 2) {
+                peer.send("GET_BLOCKS " + firstMissing + " " + (lastMissing + 1 - firstMissing));
+            } else {
+                for (int height = firstMissing; height <= lastMissing; height++) {
+                    if (!downloaded.containsKey(height)) {
+                        peer.send("GET_BLOCK " + height);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the peer with the fewest outstanding requests among those that have the whole range.
+     */
+    private Peer pickPeer(Request request) {
+        Peer best = null;
+        int bestLoad = MAX_REQUESTS_PER_PEER;
+        for (Peer peer : peerHeights.keySet()) {
+            if (peerHeights.get(peer) < request.end || !isUsable(peer)) {
+                continue;
+            }
+            int load = 0;
+            for (Request other : inFlight) {
+                if (other.peer == peer) {
+                    load++;
+                }
+            }
+            if (load < bestLoad) {
+                best = peer;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private void connectDownloaded(Peer sender) {
+        while (!downloaded.isEmpty()) {
+            int height = databaseMaster.getBlockchainLength();
+            Block block = downloaded.remove(height);
+            if (block == null) {
+                return;
+            }
+            String expectedPrevious = headerHashes.get(height - 1);
+            if (expectedPrevious != null && !expectedPrevious.equals(block.previousBlockHash)) {
+                System.out.println(ANSI_RED + "[p2p] " + ANSI_RESET + "- Block " + height + " doesn't follow the announced chain, restarting sync.");
+                abandon(sender);
+                return;
+            }
+            if (!databaseMaster.addBlock(block)) {
+                System.out.println(ANSI_RED + "[p2p] " + ANSI_RESET + "- Block " + height + " from the announced chain is invalid, restarting sync.");
+                abandon(sender);
+                return;
+            }
+        }
+    }
+
+    private boolean isComplete(Request request) {
+        int localHeight = databaseMaster.getBlockchainLength();
+        for (int height = Math.max(request.start, localHeight); height < request.end; height++) {
+            if (!downloaded.containsKey(height)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops everything downloaded above the local chain, along with the announced headers, after blocks turned out not to connect.
+     */
+    private void abandon(Peer sender) {
+        strike(sender);
+        if (lastHeaderPeer != null && lastHeaderPeer != sender) {
+            strike(lastHeaderPeer); //The peer which announced the chain is suspect as well
+        }
+        reset();
+    }
+
+    private void reset() {
+        syncing = false;
+        headerHashes.clear();
+        headersEnd = -1;
+        headerPeer = null;
+        lastHeaderPeer = null;
+        inFlight.clear();
+        unassigned.clear();
+        downloaded.clear();
+        nextUnrequested = -1;
+    }
+
+    private void strike(Peer peer) {
+        Integer count = strikes.get(peer);
+        count = count == null ? 1 : count + 1;
+        strikes.put(peer, count);
+        if (count == MAX_STRIKES) {
+            System.out.println(ANSI_CYAN + "[p2p] " + ANSI_RESET + "- No longer syncing from " + peer.getAddress());
+        }
+    }
+
+    private boolean isUsable(Peer peer) {
+        Integer count = strikes.get(peer);
+        return count == null || count < MAX_STRIKES;
+    }
+
+    private void forgetDisconnectedPeers() {
+        for (Iterator<Peer> it = peerHeights.keySet().iterator(); it.hasNext(); ) {
+            Peer peer = it.next();
+            if (!peerNetwork.peerConnections.contains(peer)) {
+                it.remove();
+                strikes.remove(peer);
+                if (peer == headerPeer) {
+                    headerPeer = null;
+                }
+            }
+        }
+        for (Iterator<Request> it = inFlight.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (!peerHeights.containsKey(request.peer)) {
+                it.remove();
+                unassigned.addFirst(request);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.codepace.cozy.bench;
+
+import io.codepace.cozy.Certificate;
+import io.codepace.cozy.db.Block;
+
+import java.util.ArrayList;
+
+/**
+ * Throughput benchmark comparing the single-pass {@link io.codepace.cozy.db.BlockParser} (used by the {@link Block} String constructor) to the
+ * substring/split/replace parsing the constructor used before it.
+ * <p>
+ * Usage: java io.codepace.cozy.bench.BlockParseBenchmark [iterations] [transactionsPerBlock]
+ * <p>
+ * Both paths end by constructing a Block, which hashes the block data, so the difference between the two is the cost of parsing alone.
+ * Blocks come from {@link SampleData}.
+ */
+public class BlockParseBenchmark {
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int transactionCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String rawBlock = SampleData.sampleBlock(transactionCount);
+        System.out.println("Sample block: " + rawBlock.length() + " characters, " + transactionCount + " transactions");
+
+        //Both parsers have to agree before timing them means anything
+        if (!new Block(rawBlock).blockHash.equals(legacyParse(rawBlock).blockHash)) {
+            System.out.println("Parsers disagree on the sample block!");
+            return;
+        }
+
+        //Warm up both paths so the JIT has compiled them before measuring
+        for (int i = 0; i < iterations; i++) {
+            new Block(rawBlock);
+            legacyParse(rawBlock);
+        }
+        long legacyNanos = time(rawBlock, iterations, true);
+        long parserNanos = time(rawBlock, iterations, false);
+        report("Legacy parsing", legacyNanos, iterations, rawBlock.length());
+        report("BlockParser", parserNanos, iterations, rawBlock.length());
+        System.out.println(String.format("Speedup: %.2fx", (double) legacyNanos / parserNanos));
+    }
+
+    private static long time(String rawBlock, int iterations, boolean legacy) {
+        long hashes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Block block = legacy ? legacyParse(rawBlock) : new Block(rawBlock);
+            hashes += block.blockHash.charAt(0); //Keep the result alive
+        }
+        long elapsed = System.nanoTime() - start;
+        if (hashes == 0) {
+            System.out.println();
+        }
+        return elapsed;
+    }
+
+    private static void report(String name, long nanos, int iterations, int blockLength) {
+        double seconds = nanos / 1e9;
+        System.out.println(String.format("%-16s %10.0f blocks/s %8.1f MB/s %8.1f us/block", name, iterations / seconds,
+                (double) blockLength * iterations / seconds / (1024 * 1024), nanos / 1e3 / iterations));
+    }
+
+    /**
+     * The parsing previously done by the Block and Certificate String constructors, kept here for comparison. Also what BlockParserTest
+     * checks the parser against.
+     *
+     * @param rawBlock Well-formed raw block
+     * @return Block The parsed block
+     */
+    public static Block legacyParse(String rawBlock) {
+        String[] parts = new String[11];
+        parts[0] = rawBlock.substring(0, rawBlock.indexOf("}") + 1);
+        rawBlock = rawBlock.substring(rawBlock.indexOf("}") + 2);
+        parts[1] = rawBlock.substring(0, rawBlock.indexOf("}") + 1);
+        rawBlock = rawBlock.substring(rawBlock.indexOf("}") + 2);
+        parts[2] = rawBlock.substring(0, rawBlock.indexOf("}") + 1);
+        rawBlock = rawBlock.substring(rawBlock.indexOf("}") + 2);
+        String[] partsInitial = rawBlock.split(",");
+        for (int i = 3; i < 11; i++) {
+            parts[i] = partsInitial[i - 3];
+        }
+        String[] firstPartParts = parts[0].replace("{", "").replace("}", "").split(":");
+        long timestamp = Long.parseLong(firstPartParts[0]);
+        int blockNum = Integer.parseInt(firstPartParts[1]);
+        String previousBlockHash = firstPartParts[2];
+        long difficulty = Long.parseLong(firstPartParts[3]);
+        int winningNonce = Integer.parseInt(firstPartParts[4]);
+        String ledgerHash = parts[1].replace("{", "").replace("}", "");
+        String transactionsString = parts[2].replace("{", "").replace("}", "");
+        ArrayList<String> transactions = new ArrayList<>();
+        String[] rawTransactions = transactionsString.split("\\*");
+        for (int i = 0; i < rawTransactions.length; i++) {
+            transactions.add(rawTransactions[i]);
+        }
+        String rawCertificate = parts[3] + "," + parts[4] + "," + parts[5] + "," + parts[6];
+        String[] certificateParts = rawCertificate.split(",");
+        String[] firstPartPart = certificateParts[0].replace("{", "").replace("}", "").split(":");
+        Certificate certificate = new Certificate(firstPartPart[0], firstPartPart[1], Integer.parseInt(firstPartPart[2]), firstPartPart[3], Integer.parseInt(firstPartPart[4]),
+                firstPartPart[5], Long.parseLong(certificateParts[3].replace("{", "").replace("}", "")), certificateParts[1].replace("{", "") + "," + certificateParts[2].replace("}", ""));
+        String minerSignature = parts[8].replace("{", "") + "," + parts[9].replace("}", "");
+        int minerSignatureIndex = Integer.parseInt(parts[10].replace("{", "").replace("}", ""));
+        return new Block(timestamp, blockNum, previousBlockHash, certificate, difficulty, winningNonce, ledgerHash, transactions, minerSignature, minerSignatureIndex);
+    }
+}
@@ -0,0 +1,145 @@
+package io.codepace.cozy.bench;
+
+import io.codepace.cozy.Certificate;
+import io.codepace.cozy.CertificateScorer;
+
+import java.security.MessageDigest;
+
+/**
+ * Throughput benchmark for {@link CertificateScorer}, which hashes the fixed part of a certificate once and clones the digest's midstate
+ * for each nonce, against hashing the whole certificate text for every nonce.
+ * <p>
+ * Usage: java io.codepace.cozy.bench.CertificateScoreBenchmark [nonces]
+ * <p>
+ * Two workloads are measured, each on one thread:
+ * <ul>
+ * <li>Mining: scoring nonces of the certificate message, as Certificate.getMinCertificateScoreWithNonce() does. Compared against the
+ * String-per-nonce loop that method used to run. Certificate.getMinCertificateScoreWithNonce() itself, which spreads the search over every
+ * core, is timed as well.</li>
+ * <li>Verification: scoring nonces of the full certificate, signature data included, as Certificate.getScoreAtNonce() does.</li>
+ * </ul>
+ */
+public class CertificateScoreBenchmark {
+    public static void main(String[] args) throws Exception {
+        int nonces = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Certificate certificate = new Certificate(SampleData.randomAddress(), "BENCHMARK", nonces, "Codepace", 1000, SampleData.randomHex(64), 7, SampleData.randomSignature());
+        String message = certificate.getCertificateMessage();
+        String fullCertificate = certificate.getFullCertificate();
+        CertificateScorer messageScorer = new CertificateScorer(message);
+        CertificateScorer fullScorer = new CertificateScorer(fullCertificate);
+        System.out.println("Certificate message: " + message.length() + " characters, full certificate: " + fullCertificate.length() + " characters");
+        if (!messageScorer.usesMidstate()) {
+            System.out.println("This JDK's SHA-256 can't be cloned; the scorer hashes everything for each nonce, like the legacy loop.");
+        }
+
+        //Both paths have to agree before timing them means anything
+        for (int i = 0; i < 1000; i++) {
+            long full = fullScorer.score(i);
+            if (legacyScore(message, i) != messageScorer.score(i) || certificate.getScoreAtNonce(i) != (full < 0 ? Long.MAX_VALUE : full)) {
+                System.out.println("Scores disagree at nonce " + i + "!");
+                return;
+            }
+        }
+
+        //Warm up every path so the JIT has compiled them before measuring
+        legacySearch(message, nonces / 10);
+        scorerSearch(messageScorer, nonces / 10);
+        verifyLegacy(certificate, 2000);
+        verifyScorer(fullScorer, 2000);
+
+        long start = System.nanoTime();
+        String legacyResult = legacySearch(message, nonces);
+        long legacyNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        String scorerResult = scorerSearch(messageScorer, nonces);
+        long scorerNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        String engineResult = certificate.getMinCertificateScoreWithNonce();
+        long engineNanos = System.nanoTime() - start;
+        if (!legacyResult.equals(scorerResult) || !legacyResult.equals(engineResult)) {
+            System.out.println("Searches disagree: " + legacyResult + ", " + scorerResult + ", " + engineResult);
+            return;
+        }
+        System.out.println("Mining, " + nonces + " nonces of the certificate message (best " + legacyResult + "):");
+        report("String per nonce", legacyNanos, nonces);
+        report("Midstate", scorerNanos, nonces);
+        report("MiningEngine (" + Runtime.getRuntime().availableProcessors() + " cores)", engineNanos, nonces);
+        System.out.println(String.format("Midstate speedup: %.2fx", (double) legacyNanos / scorerNanos));
+
+        int verifications = Math.max(nonces / 100, 1000);
+        start = System.nanoTime();
+        verifyLegacy(certificate, verifications);
+        long getScoreNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        verifyScorer(fullScorer, verifications);
+        long fullScorerNanos = System.nanoTime() - start;
+        System.out.println("Verification, " + verifications + " nonces of the full certificate:");
+        report("getScoreAtNonce", getScoreNanos, verifications);
+        report("Midstate", fullScorerNanos, verifications);
+        System.out.println(String.format("Midstate speedup: %.2fx", (double) getScoreNanos / fullScorerNanos));
+    }
+
+    private static void report(String name, long nanos, int nonces) {
+        System.out.println(String.format("    %-22s %12.0f nonces/s %8.3f us/nonce", name, nonces / (nanos / 1e9), nanos / 1e3 / nonces));
+    }
+
+    /**
+     * The loop getMinCertificateScoreWithNonce() ran before the MiningEngine, kept here for comparison.
+     */
+    private static String legacySearch(String certificateMessage, int maxNonce) throws Exception {
+        long score = Long.MAX_VALUE;
+        int bestNonce = -1;
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < maxNonce; i++) {
+            String certificateWithNonce = certificateMessage + ",{" + i + "}";
+            byte[] hash = md.digest(certificateWithNonce.getBytes("UTF-8"));
+            long tempScore = 0L;
+            for (int j = 0; j < 8; j++) {
+                tempScore = (hash[j] & 0xff) + (tempScore << 8);
+            }
+            if (tempScore < score && tempScore > 0) {
+                score = tempScore;
+                bestNonce = i;
+            }
+        }
+        return bestNonce + ":" + score;
+    }
+
+    private static long legacyScore(String certificateMessage, int nonce) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest((certificateMessage + ",{" + nonce + "}").getBytes("UTF-8"));
+        long score = 0L;
+        for (int j = 0; j < 8; j++) {
+            score = (hash[j] & 0xff) + (score << 8);
+        }
+        return score;
+    }
+
+    private static String scorerSearch(CertificateScorer scorer, int maxNonce) {
+        long score = Long.MAX_VALUE;
+        int bestNonce = -1;
+        for (int i = 0; i < maxNonce; i++) {
+            long tempScore = scorer.score(i);
+            if (tempScore < score && tempScore > 0) {
+                score = tempScore;
+                bestNonce = i;
+            }
+        }
+        return bestNonce + ":" + score;
+    }
+
+    private static long verifyLegacy(Certificate certificate, int nonces) {
+        long sum = 0;
+        for (int i = 0; i < nonces; i++) {
+            sum += certificate.getScoreAtNonce(i);
+        }
+        return sum;
+    }
+
+    private static long verifyScorer(CertificateScorer scorer, int nonces) {
+        long sum = 0;
+        for (int i = 0; i < nonces; i++) {
+            sum += scorer.score(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,133 @@
+package io.codepace.cozy.bench;
+
+import io.codepace.cozy.p2p.ConnectionThreads;
+import io.codepace.cozy.p2p.RPCThread;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Scanner;
+
+/**
+ * Load test comparing platform and virtual threads as connection handlers. Opens a number of connections to a local server which serves
+ * each of them with an {@link RPCThread}, the same handler the RPC port uses, then keeps them all idle and reports what they cost.
+ * <p>
+ * Usage: java io.codepace.cozy.bench.ConnectionLoadTest [connections] [platform|virtual|both]
+ * <p>
+ * Virtual threads need Java 21 or newer; on older JDKs the virtual run falls back to platform threads, as the daemon does. Thread stacks
+ * live outside the heap, so the resident set size of the process is reported alongside heap usage where the OS exposes it.
+ */
+public class ConnectionLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String mode = args.length > 1 ? args[1] : "both";
+        if (!ConnectionThreads.virtualThreadsAvailable()) {
+            System.out.println("Virtual threads are not available on this JDK; the virtual run uses platform threads.");
+        }
+        if (mode.equals("platform") || mode.equals("both")) {
+            run(connections, false);
+        }
+        if (mode.equals("virtual") || mode.equals("both")) {
+            run(connections, true);
+        }
+    }
+
+    private static void run(int connections, final boolean virtual) throws Exception {
+        final ServerSocket server = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (!server.isClosed()) {
+                        Socket socket = server.accept();
+                        ConnectionThreads.start(new RPCThread(socket, null), "load-test " + socket.getPort(), virtual);
+                    }
+                } catch (Exception e) {
+                    //Server closed
+                }
+            }
+        };
+        acceptor.start();
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetKb();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        long start = System.nanoTime();
+        ArrayList<Socket> clients = new ArrayList<>();
+        ArrayList<BufferedReader> readers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+            clients.add(client);
+            readers.add(new BufferedReader(new InputStreamReader(client.getInputStream())));
+        }
+        //Every handler greets its client, so once every greeting is read, every handler is running and blocked on its socket
+        for (BufferedReader reader : readers) {
+            reader.readLine();
+        }
+        long connectNanos = System.nanoTime() - start;
+
+        //Each handler answers HELP by itself, without the daemon's main loop, so this measures a round trip through every handler
+        start = System.nanoTime();
+        for (Socket client : clients) {
+            new PrintWriter(client.getOutputStream(), true).println("HELP");
+        }
+        for (BufferedReader reader : readers) {
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                //Skip the command list up to its blank line
+            }
+        }
+        long roundTripNanos = System.nanoTime() - start;
+
+        long heapAfter = usedHeap();
+        long rssAfter = residentSetKb();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        System.out.println((virtual ? "Virtual" : "Platform") + " threads, " + connections + " idle connections:");
+        System.out.println(String.format("    connect and greet: %.1f ms, HELP round trip on all: %.1f ms", connectNanos / 1e6, roundTripNanos / 1e6));
+        System.out.println("    platform threads: " + threadsBefore + " -> " + threadsAfter);
+        System.out.println(String.format("    heap: +%.1f MB", (heapAfter - heapBefore) / 1048576.0));
+        if (rssBefore >= 0 && rssAfter >= 0) {
+            System.out.println(String.format("    resident set: +%.1f MB", (rssAfter - rssBefore) / 1024.0));
+        }
+
+        for (Socket client : clients) {
+            client.close();
+        }
+        server.close();
+        Thread.sleep(500); //Let the handlers notice their clients are gone before the next run
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return long Resident set size of this process in kB, or -1 if the OS doesn't expose it
+     */
+    private static long residentSetKb() {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return -1;
+        }
+        try (Scanner scan = new Scanner(status)) {
+            while (scan.hasNextLine()) {
+                String line = scan.nextLine();
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+}
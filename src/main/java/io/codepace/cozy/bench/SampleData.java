@@ -0,0 +1,78 @@
+package io.codepace.cozy.bench;
+
+import io.codepace.cozy.Certificate;
+import io.codepace.cozy.db.Block;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Synthetic addresses, hashes, signatures and blocks for the benchmarks. They are random, but shaped like the real thing: signatures are the
+ * size of a Lamport signature with its authentication path, so parsing and hashing them costs what it does on the network.
+ * <p>
+ * Seeded, so a run of a benchmark always sees the same data.
+ */
+public class SampleData {
+    private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final Random random = new Random(42);
+
+    /**
+     * @param transactionCount Number of transactions to put in the block
+     * @return String A raw block with random contents and transactionCount transactions
+     */
+    public static String sampleBlock(int transactionCount) {
+        ArrayList<String> transactions = new ArrayList<>();
+        for (int i = 0; i < transactionCount; i++) {
+            transactions.add(randomAddress() + ";" + (100 + i) + ";" + randomAddress() + ";" + (100 + i) + ";" + randomSignature() + ";" + i);
+        }
+        Certificate certificate = new Certificate(randomAddress(), "BENCHMARK", 100000, "Codepace", 1000, randomHex(64), 7, randomSignature());
+        Block block = new Block(System.currentTimeMillis(), 1000, randomHex(64), certificate, 150000, 1234, randomHex(64), transactions, randomSignature(), 3);
+        return block.getRawBlock();
+    }
+
+    /**
+     * @return String Roughly the shape of a Lamport signature followed by its authentication path
+     */
+    public static String randomSignature() {
+        StringBuilder signature = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            signature.append(randomBase64(16)).append(':').append(randomBase64(20)).append("::");
+        }
+        signature.append(randomBase64(88)).append(',');
+        for (int i = 0; i < 16; i++) {
+            signature.append(i == 0 ? "" : ":").append(randomBase64(44));
+        }
+        return signature.toString();
+    }
+
+    /**
+     * @return String A random string shaped like an address
+     */
+    public static String randomAddress() {
+        return "C" + randomBase64(36).toUpperCase().replace('+', 'A').replace('/', 'B');
+    }
+
+    /**
+     * @param length Number of characters
+     * @return String Random uppercase hex
+     */
+    public static String randomHex(int length) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            hex.append("0123456789ABCDEF".charAt(random.nextInt(16)));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @param length Number of characters
+     * @return String Random Base64 characters, without padding
+     */
+    public static String randomBase64(int length) {
+        StringBuilder base64 = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            base64.append(BASE64.charAt(random.nextInt(BASE64.length())));
+        }
+        return base64.toString();
+    }
+}
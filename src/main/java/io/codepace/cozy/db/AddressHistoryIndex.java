@@ -0,0 +1,315 @@
+package io.codepace.cozy.db;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Scanner;
+
+import static io.codepace.cozy.Util.*;
+
+/**
+ * Secondary index from an address to every ledger movement involving it on the longest chain.
+ * <p>
+ * Without this index, looking up the history of an address meant walking every block of the longest chain and re-splitting every transaction.
+ * Instead, each block is broken down once when it is connected to the longest chain, and the resulting entries are appended to a per-address list.
+ * As blocks are only ever connected at the tip and disconnected from the tip, every list stays sorted by height, so a page of history is a binary
+ * search followed by a copy of the requested entries.
+ * <p>
+ * The index is persisted as an append-only journal next to the blockchain file:
+ * B:height:blockHash        a block was connected, followed by its entries
+ * E:address:txIndex:direction:counterparty:amount
+ * D:height                  the block at height was disconnected
+ * The journal is replayed on startup, and compacted when it contains disconnects.
+ */
+public class AddressHistoryIndex {
+    public static final char DIRECTION_SENT = 'S';
+    public static final char DIRECTION_RECEIVED = 'R';
+    public static final char DIRECTION_COINBASE = 'C';
+
+    /**
+     * A single movement of coins involving an indexed address.
+     */
+    public static class HistoryEntry {
+        public final int height;
+        public final int txIndex; //-1 for the implicit coinbase transaction
+        public final char direction;
+        public final String counterparty;
+        public final long amount;
+
+        public HistoryEntry(int height, int txIndex, char direction, String counterparty, long amount) {
+            this.height = height;
+            this.txIndex = txIndex;
+            this.direction = direction;
+            this.counterparty = counterparty;
+            this.amount = amount;
+        }
+
+        /**
+         * Renders the entry in the simplified form blocknum:sender:amount:receiver used by the get_history RPC.
+         *
+         * @param address The address the entry was indexed under
+         * @return String Simplified transaction
+         */
+        public String toSimplifiedString(String address) {
+            if (direction == DIRECTION_SENT) {
+                return height + ":" + address + ":" + amount + ":" + counterparty;
+            }
+            return height + ":" + counterparty + ":" + amount + ":" + address;
+        }
+    }
+
+    private File journalFile;
+    private HashMap<String, ArrayList<HistoryEntry>> entriesByAddress = new HashMap<>();
+    //Both lists are indexed by height, and together describe which blocks are currently indexed
+    private ArrayList<String> blockHashes = new ArrayList<>();
+    private ArrayList<ArrayList<String>> addressesByHeight = new ArrayList<>();
+
+    /**
+     * Constructor for AddressHistoryIndex. Replays the journal if one exists.
+     *
+     * @param journalFile Path to the index journal
+     */
+    public AddressHistoryIndex(String journalFile) {
+        this.journalFile = new File(journalFile);
+        if (this.journalFile.exists()) {
+            loadJournal();
+        }
+    }
+
+    /**
+     * Indexes a block that was just connected to the tip of the longest chain. Blocks that are already indexed under the same hash (for example when
+     * the blockchain file is replayed on startup) are ignored. If a different block is indexed at the same height, it and everything above it are
+     * disconnected first.
+     *
+     * @param block Block connected to the longest chain
+     */
+    public synchronized void connectBlock(Block block) {
+        int height = block.blockNum;
+        if (height < blockHashes.size()) {
+            if (blockHashes.get(height).equals(block.blockHash)) {
+                return; //Already indexed
+            }
+            StringBuilder journal = new StringBuilder();
+            while (blockHashes.size() > height) {
+                journal.append("D:").append(blockHashes.size() - 1).append('\n');
+                removeTip();
+            }
+            appendToJournal(journal);
+        }
+        if (height != blockHashes.size()) {
+            System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- History index expected block " + blockHashes.size() + " but got " + height + ", not indexing.");
+            return;
+        }
+        StringBuilder journal = new StringBuilder();
+        journal.append("B:").append(height).append(':').append(block.blockHash).append('\n');
+        blockHashes.add(block.blockHash);
+        addressesByHeight.add(new ArrayList<>());
+        addEntry(block.getMiner(), new HistoryEntry(height, -1, DIRECTION_COINBASE, "COINBASE", 100), journal);
+        ArrayList<String> transactions = block.getTransactions();
+        for (int i = 0; i < transactions.size(); i++) {
+            String transaction = transactions.get(i);
+            if (transaction.length() <= 10) {
+                continue; //Same filter used when the block is hashed; this is the empty transaction set
+            }
+            //InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
+            String[] transactionParts = transaction.split(";");
+            String sender = transactionParts[0];
+            for (int j = 2; j < transactionParts.length - 2; j += 2) {
+                long amount = Long.parseLong(transactionParts[j + 1]);
+                addEntry(sender, new HistoryEntry(height, i, DIRECTION_SENT, transactionParts[j], amount), journal);
+                if (!transactionParts[j].equals(sender)) {
+                    addEntry(transactionParts[j], new HistoryEntry(height, i, DIRECTION_RECEIVED, sender, amount), journal);
+                }
+            }
+        }
+        appendToJournal(journal);
+    }
+
+    /**
+     * Removes a block that was disconnected from the tip of the longest chain.
+     *
+     * @param block Block disconnected from the longest chain
+     */
+    public synchronized void disconnectBlock(Block block) {
+        if (block.blockNum != blockHashes.size() - 1 || !blockHashes.get(block.blockNum).equals(block.blockHash)) {
+            System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- History index asked to disconnect block " + block.blockNum + " which isn't its tip.");
+            return;
+        }
+        removeTip();
+        appendToJournal(new StringBuilder("D:").append(block.blockNum).append('\n'));
+    }
+
+    /**
+     * Drops every indexed block at or above the given height. Used after startup, in case the journal is ahead of the blockchain file.
+     *
+     * @param height Number of blocks that should remain indexed
+     */
+    public synchronized void trimToHeight(int height) {
+        if (blockHashes.size() <= height) {
+            return;
+        }
+        StringBuilder journal = new StringBuilder();
+        while (blockHashes.size() > height) {
+            journal.append("D:").append(blockHashes.size() - 1).append('\n');
+            removeTip();
+        }
+        appendToJournal(journal);
+    }
+
+    /**
+     * Returns a page of the history of an address, oldest first.
+     *
+     * @param address    Address to look up
+     * @param fromHeight Lowest block height to include
+     * @param limit      Maximum number of entries to return
+     * @return {@link ArrayList} Entries in simplified form blocknum:sender:amount:receiver
+     */
+    public synchronized ArrayList<String> getHistory(String address, int fromHeight, int limit) {
+        ArrayList<String> page = new ArrayList<>();
+        ArrayList<HistoryEntry> entries = entriesByAddress.get(address);
+        if (entries == null) {
+            return page;
+        }
+        //First entry with a height of at least fromHeight
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid).height < fromHeight) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < entries.size() && page.size() < limit; i++) {
+            page.add(entries.get(i).toSimplifiedString(address));
+        }
+        return page;
+    }
+
+    /**
+     * @return int Number of blocks currently indexed
+     */
+    public synchronized int getIndexedHeight() {
+        return blockHashes.size();
+    }
+
+    private void addEntry(String address, HistoryEntry entry, StringBuilder journal) {
+        ArrayList<HistoryEntry> entries = entriesByAddress.get(address);
+        if (entries == null) {
+            entries = new ArrayList<>();
+            entriesByAddress.put(address, entries);
+        }
+        entries.add(entry);
+        ArrayList<String> touched = addressesByHeight.get(entry.height);
+        if (touched.isEmpty() || !touched.get(touched.size() - 1).equals(address)) {
+            touched.add(address);
+        }
+        if (journal != null) {
+            journal.append("E:").append(address).append(':').append(entry.txIndex).append(':').append(entry.direction).append(':')
+                    .append(entry.counterparty).append(':').append(entry.amount).append('\n');
+        }
+    }
+
+    private void removeTip() {
+        int height = blockHashes.size() - 1;
+        for (String address : addressesByHeight.get(height)) {
+            ArrayList<HistoryEntry> entries = entriesByAddress.get(address);
+            if (entries == null) {
+                continue; //Address was listed twice for this height and is already gone
+            }
+            while (!entries.isEmpty() && entries.get(entries.size() - 1).height == height) {
+                entries.remove(entries.size() - 1);
+            }
+            if (entries.isEmpty()) {
+                entriesByAddress.remove(address);
+            }
+        }
+        addressesByHeight.remove(height);
+        blockHashes.remove(height);
+    }
+
+    private void appendToJournal(StringBuilder journal) {
+        if (journal.length() == 0) {
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(journalFile, true)))) {
+            out.print(journal);
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- ERROR: UNABLE TO WRITE HISTORY INDEX!");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replays the journal into memory. If any disconnects were replayed, the journal is rewritten without them.
+     */
+    private void loadJournal() {
+        boolean sawDisconnect = false;
+        try (Scanner scan = new Scanner(journalFile)) {
+            while (scan.hasNextLine()) {
+                String line = scan.nextLine();
+                if (line.startsWith("B:")) {
+                    String[] parts = line.split(":");
+                    int height = Integer.parseInt(parts[1]);
+                    if (height != blockHashes.size()) {
+                        System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- History index journal is out of order at block " + height + ", rebuilding.");
+                        reset();
+                        return;
+                    }
+                    blockHashes.add(parts[2]);
+                    addressesByHeight.add(new ArrayList<>());
+                } else if (line.startsWith("E:")) {
+                    String[] parts = line.split(":");
+                    addEntry(parts[1], new HistoryEntry(blockHashes.size() - 1, Integer.parseInt(parts[2]), parts[3].charAt(0), parts[4], Long.parseLong(parts[5])), null);
+                } else if (line.startsWith("D:")) {
+                    removeTip();
+                    sawDisconnect = true;
+                }
+            }
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- Unable to read history index journal, rebuilding.");
+            e.printStackTrace();
+            reset();
+            return;
+        }
+        if (sawDisconnect) {
+            compactJournal();
+        }
+    }
+
+    private void compactJournal() {
+        StringBuilder journal = new StringBuilder();
+        ArrayList<StringBuilder> blocks = new ArrayList<>();
+        for (int i = 0; i < blockHashes.size(); i++) {
+            blocks.add(new StringBuilder("B:").append(i).append(':').append(blockHashes.get(i)).append('\n'));
+        }
+        for (String address : entriesByAddress.keySet()) {
+            for (HistoryEntry entry : entriesByAddress.get(address)) {
+                blocks.get(entry.height).append("E:").append(address).append(':').append(entry.txIndex).append(':').append(entry.direction).append(':')
+                        .append(entry.counterparty).append(':').append(entry.amount).append('\n');
+            }
+        }
+        for (StringBuilder block : blocks) {
+            journal.append(block);
+        }
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(journalFile, false)))) {
+            out.print(journal);
+        } catch (Exception e) {
+            System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- ERROR: UNABLE TO COMPACT HISTORY INDEX!");
+            e.printStackTrace();
+        }
+    }
+
+    private void reset() {
+        entriesByAddress.clear();
+        blockHashes.clear();
+        addressesByHeight.clear();
+        if (!journalFile.delete()) {
+            System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- Unable to delete history index journal " + journalFile);
+        }
+    }
+}
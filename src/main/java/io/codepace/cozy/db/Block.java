@@ -6,6 +6,7 @@ import io.codepace.cozy.MerkleAddressUtility;
 import javax.xml.bind.DatatypeConverter;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.List;
 /**
  * This class provides all functionality related to block verification and usage.
  * A block contains:
@@ -16,6 +17,10 @@ import java.util.ArrayList;
  * -Difficulty
  * -Winning nonce
  * -Transaction list
+ * <p>
+ * Only the header fields are kept on the Block itself. The certificate, transactions and miner signature make up the body, which is by far the
+ * larger part of a block. Once a block has been written to the {@link BlockStore}, its body is dropped and reloaded from the store on demand,
+ * through a bounded cache, so that the blocks held by {@link Blockchain} don't grow the heap as the chain grows.
  */
 public class Block
 {
@@ -23,13 +28,41 @@ public class Block
     public int blockNum;
     public String previousBlockHash;
     public String blockHash;
-    public Certificate certificate;
     public long difficulty;
     public int winningNonce;
     public String ledgerHash;
-    public ArrayList<String> transactions;
-    public String minerSignature;
-    public long minerSignatureIndex;
+
+    //Kept from the certificate, as they are needed far more often than the rest of it
+    private String minerAddress;
+    private boolean powBlock;
+
+    /**
+     * Everything in a block which isn't part of the header. The canonical forms of the block are built once and reused for hashing, signature
+     * checking, persistence and relay. Blocks are never modified after construction, so these never need to be invalidated.
+     */
+    static final class Body
+    {
+        final Certificate certificate;
+        final ArrayList<String> transactions;
+        final String minerSignature;
+        final long minerSignatureIndex;
+        String blockData;
+        String rawBlock;
+
+        Body(Certificate certificate, ArrayList<String> transactions, String minerSignature, long minerSignatureIndex)
+        {
+            this.certificate = certificate;
+            this.transactions = transactions;
+            this.minerSignature = minerSignature;
+            this.minerSignatureIndex = minerSignatureIndex;
+        }
+    }
+
+    //Null once the block has been written to the store
+    private volatile Body body;
+    private BlockStore store;
+    private long storeOffset = -1;
+    private int storeLength;
 
     /**
      * Constructor for Block object. A block object is made for any confirmed or potential network block, and requires all pieces of data in this constructor
@@ -74,33 +107,13 @@ public class Block
         this.timestamp = timestamp;
         this.blockNum = blockNum;
         this.previousBlockHash = previousBlockHash;
-        this.certificate = certificate;
         this.difficulty = difficulty;
         this.winningNonce = winningNonce;
         this.ledgerHash = ledgerHash;
-        this.transactions = transactions;
-        this.minerSignature = minerSignature;
-        this.minerSignatureIndex = minerSignatureIndex;
-        try
-        {
-            String transactionsString = "";
-            //Transaction format: FromAddress;InputAmount;ToAddress1;Output1;ToAddress2;Output2... etc.
-            for (int i = 0; i < transactions.size(); i++)
-            {
-                if (transactions.get(i).length() > 10)
-                {
-                    transactionsString += transactions.get(i) + "*";
-                }
-            }
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            transactionsString = transactionsString.substring(0, transactionsString.length() - 1);
-            String blockData = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{" + transactionsString + "}," + certificate.getFullCertificate();
-            this.blockHash = DatatypeConverter.printHexBinary(md.digest(blockData.getBytes("UTF-8")));
-
-        } catch (Exception e)
-        {
-            e.printStackTrace();
-        }
+        this.body = new Body(certificate, transactions, minerSignature, minerSignatureIndex);
+        this.minerAddress = certificate.redeemAddress;
+        this.powBlock = certificate.isPoWCertificate();
+        this.blockHash = computeBlockHash();
     }
 
     /**
@@ -111,93 +124,123 @@ public class Block
      */
     public boolean isPoWBlock()
     {
-        return certificate.isPoWCertificate();
+        return powBlock;
     }
 
     /**
      * See above for a lot of information. This constructor accepts the raw block format instead of all the arguments separately!
      *
      * @param rawBlock String representing the raw data of a block
+     * @throws BlockFormatException if the block is malformed
      */
     public Block(String rawBlock)
     {
         /*
-         * Using a workaround for the unknown number of transactions, which would each be split into multiple parts as they
-         * contain a comma as part of the signature. As such, all part up to and including the list of transactions are parsed
-         * manually. Then, the remainder can be separated using the split command.
+         * The raw block is read in a single pass. The certificate and miner signature sections each contain a comma, which is why the sections
+         * are read in order rather than split apart.
          */
-        String[] parts = new String[11];
-        parts[0] = rawBlock.substring(0, rawBlock.indexOf("}") + 1);
-        rawBlock = rawBlock.substring(rawBlock.indexOf("}") + 2); //Account for comma
-        parts[1] = rawBlock.substring(0, rawBlock.indexOf("}") + 1);
-        rawBlock = rawBlock.substring(rawBlock.indexOf("}") + 2); //Account for comma, again
-        parts[2] = rawBlock.substring(0, rawBlock.indexOf("}") + 1);
-        rawBlock = rawBlock.substring(rawBlock.indexOf("}") + 2); //Account for comma a third time
-        String[] partsInitial = rawBlock.split(",");
-        for (int i = 3; i < 11; i++)
+        BlockParser parser = new BlockParser(rawBlock);
+        parser.expect('{');
+        this.timestamp = parser.readLong(':');
+        this.blockNum = parser.readInt(':');
+        this.previousBlockHash = parser.readField(':');
+        this.difficulty = parser.readLong(':');
+        this.winningNonce = parser.readInt('}');
+        parser.expect(',');
+        parser.expect('{');
+        this.ledgerHash = parser.readString('}');
+        parser.nextSection();
+        //Transactions are separated by an asterisk, as the colon, double-colon, and comma are all used in other places, and would be a pain to use here.
+        ArrayList<String> transactions = parser.readList('*', '}');
+        parser.expect('}');
+        parser.expect(',');
+        Certificate certificate = new Certificate(parser);
+        parser.expect(',');
+        parser.expect('{');
+        parser.readString('}'); //The block hash, which is recalculated rather than trusted
+        parser.nextSection();
+        String minerSignature = parser.readString('}');
+        parser.nextSection();
+        int minerSignatureIndex = parser.readInt('}');
+        parser.expectEnd();
+        this.body = new Body(certificate, transactions, minerSignature, minerSignatureIndex);
+        this.minerAddress = certificate.redeemAddress;
+        this.powBlock = certificate.isPoWCertificate();
+        this.blockHash = computeBlockHash();
+    }
+
+    /**
+     * Joins transactions into the '*'-separated form used inside blocks. Transactions of 10 characters or fewer are left out, which is how a
+     * block with no explicit transactions ends up with an empty transaction section.
+     *
+     * @param transactions Transactions to join
+     * @return String The transaction section of a block, without the surrounding braces
+     */
+    public static String joinTransactions(List<String> transactions)
+    {
+        StringBuilder transactionsString = new StringBuilder();
+        //Transaction format: FromAddress;InputAmount;ToAddress1;Output1;ToAddress2;Output2... etc.
+        for (int i = 0; i < transactions.size(); i++)
         {
-            parts[i] = partsInitial[i - 3];
+            if (transactions.get(i).length() > 10) //Arbitrary number, make sure a transaction has some size to it
+            {
+                if (transactionsString.length() > 0)
+                {
+                    transactionsString.append('*');
+                }
+                transactionsString.append(transactions.get(i));
+            }
         }
-        System.out.println("Block parts: " + parts.length);
-        for (int i = 0; i < parts.length; i++)
+        return transactionsString.toString();
+    }
+
+    /**
+     * Returns the data that is hashed to get the block hash:
+     * {timestamp:blockNum:previousBlockHash:difficulty:winningNonce},{ledgerHash},{transactions},{redeemAddress:arbitraryData:maxNonce:authorityName:blockNum:prevBlockHash},{certificateSignatureData},{certificateSigantureIndex}
+     *
+     * @return String The canonical block data
+     */
+    public String getBlockData()
+    {
+        Body body = body();
+        if (body.blockData == null)
         {
-            String toPrint = parts[i];
-            if (parts[i].length() > 40)
-                toPrint = parts[i].substring(0, 20) + "..." + parts[i].substring(parts[i].length() - 20);
-            System.out.println("     " + i + ": " + toPrint);
+            String transactionsString = joinTransactions(body.transactions);
+            String fullCertificate = body.certificate.getFullCertificate();
+            StringBuilder data = new StringBuilder(transactionsString.length() + fullCertificate.length() + 256);
+            data.append('{').append(timestamp).append(':').append(blockNum).append(':').append(previousBlockHash).append(':').append(difficulty).append(':').append(winningNonce)
+                    .append("},{").append(ledgerHash).append("},{").append(transactionsString).append("},").append(fullCertificate);
+            body.blockData = data.toString();
         }
-        String firstPart = parts[0].replace("{", "");
-        firstPart = firstPart.replace("}", "");
-        String[] firstPartParts = firstPart.split(":"); //Great name, huh?
+        return body.blockData;
+    }
+
+    /**
+     * Returns the message signed by the block miner, which is the block data followed by the block hash.
+     *
+     * @return String The signed portion of the block
+     */
+    public String getSignedMessage()
+    {
+        return getBlockData() + ",{" + blockHash + "}";
+    }
+
+    /**
+     * Hashes the canonical block data.
+     *
+     * @return String Hex SHA256 hash of the block data, or null if the block is malformed
+     */
+    private String computeBlockHash()
+    {
         try
         {
-            this.timestamp = Long.parseLong(firstPartParts[0]);
-            this.blockNum = Integer.parseInt(firstPartParts[1]);
-            this.previousBlockHash = firstPartParts[2];
-            this.difficulty = Long.parseLong(firstPartParts[3]);
-            this.winningNonce = Integer.parseInt(firstPartParts[4]);
-            this.ledgerHash = parts[1].replace("{", "").replace("}", "");
-            String transactionsString = parts[2].replace("{", "").replace("}", "");
-            this.transactions = new ArrayList<>();
-            String[] rawTransactions = transactionsString.split("\\*"); //Transactions are separated by an asterisk, as the colon, double-colon, and comma are all used in other places, and would be a pain to use here.
-            for (int i = 0; i < rawTransactions.length; i++)
-            {
-                this.transactions.add(rawTransactions[i]);
-            }
-            this.certificate = new Certificate(parts[3] + "," + parts[4] + "," + parts[5] + "," + parts[6]);
-            //parts[7] is a block hash
-            this.minerSignature = parts[8].replace("{", "") + "," + parts[9].replace("}", "");
-            this.minerSignatureIndex = Integer.parseInt(parts[10].replace("{", "").replace("}", ""));
-            /*
-             * Ugly, will fix later.
-             */
-            try
-            {
-                transactionsString = "";
-                //Transaction format: FromAddress;InputAmount;ToAddress1;Output1;ToAddress2;Output2... etc.
-                for (int i = 0; i < transactions.size(); i++)
-                {
-                    if (transactions.get(i).length() > 10) //Arbitrary number, make sure a transaction has some size to it
-                    {
-                        transactionsString += transactions.get(i) + "*";
-                    }
-                }
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                if (transactionsString.length() > 2) //Protect against empty transaction sets tripping errors with negative substring indices
-                {
-                    transactionsString = transactionsString.substring(0, transactionsString.length() - 1);
-                }
-                String blockData = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{" + transactionsString + "}," + certificate.getFullCertificate();
-                this.blockHash = DatatypeConverter.printHexBinary(md.digest(blockData.getBytes("UTF-8")));
-
-            } catch (Exception e)
-            {
-                e.printStackTrace();
-            }
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return DatatypeConverter.printHexBinary(md.digest(getBlockData().getBytes("UTF-8")));
         } catch (Exception e)
         {
             e.printStackTrace();
         }
+        return null;
     }
 
     /**
@@ -206,7 +249,100 @@ public class Block
      */
     public String getMiner()
     {
-        return certificate.redeemAddress;
+        return minerAddress;
+    }
+
+    /**
+     * @return Certificate The certificate of the block
+     */
+    public Certificate getCertificate()
+    {
+        return body().certificate;
+    }
+
+    /**
+     * @return {@link ArrayList} The transactions included in the block. Must not be modified.
+     */
+    public ArrayList<String> getTransactions()
+    {
+        return body().transactions;
+    }
+
+    /**
+     * @return String Miner's signature of the block
+     */
+    public String getMinerSignature()
+    {
+        return body().minerSignature;
+    }
+
+    /**
+     * @return long Miner's signature index used when generating the miner signature
+     */
+    public long getMinerSignatureIndex()
+    {
+        return body().minerSignatureIndex;
+    }
+
+    /**
+     * Returns the body of the block, loading it from the store if it has already been written there.
+     */
+    private Body body()
+    {
+        Body body = this.body;
+        if (body != null)
+        {
+            return body;
+        }
+        return store.loadBody(this);
+    }
+
+    /**
+     * Returns the compact binary (v2) form of the block, see {@link BlockCodec}.
+     *
+     * @return byte[] The encoded block
+     */
+    public byte[] getEncodedBlock()
+    {
+        if (this.body == null)
+        {
+            return store.getEncodedBlock(this);
+        }
+        return BlockCodec.encodeBlock(this);
+    }
+
+    /**
+     * Called by the store once the block is written to (or read from) it at offset. The body is dropped from the block from then on.
+     */
+    void stored(BlockStore store, long offset, int length)
+    {
+        this.store = store;
+        this.storeOffset = offset;
+        this.storeLength = length;
+        this.body = null;
+    }
+
+    /**
+     * @return Body The body of the block if it is still held by the block, otherwise null
+     */
+    Body getResidentBody()
+    {
+        return body;
+    }
+
+    BlockStore getStore()
+    {
+        return store;
+    }
+
+    long getStoreOffset()
+    {
+        return storeOffset;
+    }
+
+    int getStoreLength()
+    {
+        return storeLength;
     }
 
     /**
@@ -223,6 +359,11 @@ public class Block
      */
     public boolean validateBlock(Blockchain blockchain)
     {
+        Body body = body();
+        Certificate certificate = body.certificate;
+        ArrayList<String> transactions = body.transactions;
+        String minerSignature = body.minerSignature;
+        long minerSignatureIndex = body.minerSignatureIndex;
         System.out.println("Validating block " + blockNum);
         System.out.println("Difficulty: " + difficulty);
         if (difficulty == 100000)
@@ -239,47 +380,16 @@ public class Block
             }
 
             // Address can not have mined a PoS block or sent a transaction in the last 50 blocks
-            for (int i = blockNum - 1; i > blockNum - 50; i--)
+            if (!blockchain.activityIndex.isEligibleForPoS(certificate.redeemAddress, blockNum))
             {
-                if (!blockchain.getBlock(i).isPoWBlock()) // Then PoS block
-                {
-                    if (blockchain.getBlock(i).getMiner().equals(certificate.redeemAddress))
-                    {
-                        return false; // Address has mined PoS block too recently!
-                    }
-                }
-                ArrayList<String> transactions = blockchain.getBlock(i).getTransactionsInvolvingAddress(certificate.redeemAddress);
-                for (String transaction : transactions)
-                {
-                    if (transaction.split(":")[0].equals(certificate.redeemAddress))
-                    {
-                        return false; // Address has sent coins too recently!
-                    }
-                }
+                return false; // Address has mined a PoS block or sent coins too recently!
             }
 
 
 
             try
             {
-                String transactionsString = "";
-                //Transaction format: FromAddress;InputAmount;ToAddress1;Output1;ToAddress2;Output2... etc.
-                for (int i = 0; i < transactions.size(); i++)
-                {
-                    if (transactions.get(i).length() > 10) //Arbitrary number, makes sure empty transaction sets still function
-                    {
-                        transactionsString += transactions.get(i) + "*";
-                    }
-                }
-                //Recalculate block hash
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                if (transactionsString.length() > 2) //Prevent empty transaction sets from tripping with a negative substring index
-                {
-                    transactionsString = transactionsString.substring(0, transactionsString.length() - 1);
-                }
-                String blockData = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{" + transactionsString + "}," + certificate.getFullCertificate();
-                String blockHash = DatatypeConverter.printHexBinary(md.digest(blockData.getBytes("UTF-8")));
-                String fullBlock = blockData + ",{" + blockHash + "}"; //This is the message signed by the block miner
+                String fullBlock = getSignedMessage(); //This is the message signed by the block miner
                 MerkleAddressUtility MerkleAddressUtility = new MerkleAddressUtility();
                 if (!MerkleAddressUtility.verifyMerkleSignature(fullBlock, minerSignature, certificate.redeemAddress, minerSignatureIndex))
                 {
@@ -384,24 +494,7 @@ public class Block
                     System.out.println("Certificate score error");
                     return false; //Certificate doesn't fall below the target difficulty when mined.
                 }
-                String transactionsString = "";
-                //Transaction format: FromAddress;InputAmount;ToAddress1;Output1;ToAddress2;Output2... etc.
-                for (int i = 0; i < transactions.size(); i++)
-                {
-                    if (transactions.get(i).length() > 10) //Arbitrary number, makes sure empty transaction sets still function
-                    {
-                        transactionsString += transactions.get(i) + "*";
-                    }
-                }
-                //Recalculate block hash
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                if (transactionsString.length() > 2) //Prevent empty transaction sets from tripping with a negative substring index
-                {
-                    transactionsString = transactionsString.substring(0, transactionsString.length() - 1);
-                }
-                String blockData = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{" + transactionsString + "}," + certificate.getFullCertificate();
-                String blockHash = DatatypeConverter.printHexBinary(md.digest(blockData.getBytes("UTF-8")));
-                String fullBlock = blockData + ",{" + blockHash + "}"; //This is the message signed by the block miner
+                String fullBlock = getSignedMessage(); //This is the message signed by the block miner
                 MerkleAddressUtility MerkleAddressUtility = new MerkleAddressUtility();
                 if (!MerkleAddressUtility.verifyMerkleSignature(fullBlock, minerSignature, certificate.redeemAddress, minerSignatureIndex))
                 {
@@ -502,15 +595,17 @@ public class Block
     public ArrayList<String> getTransactionsInvolvingAddress(String addressToFind)
     {
         ArrayList<String> relevantTransactionParts = new ArrayList<>();
+        ArrayList<String> transactions = getTransactions();
+        String minerAddress = getMiner();
         for (int i = 0; i < transactions.size(); i++)
         {
             String tempTransaction = transactions.get(i);
             //InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
             String[] transactionParts = tempTransaction.split(";");
             String sender = transactionParts[0];
-            if (addressToFind.equals(certificate.redeemAddress))
+            if (addressToFind.equals(minerAddress))
             {
-                relevantTransactionParts.add("COINBASE" + ":" + "100" + ":" + certificate.redeemAddress);
+                relevantTransactionParts.add("COINBASE" + ":" + "100" + ":" + minerAddress);
             }
             if (sender.equalsIgnoreCase(addressToFind))
             {
@@ -540,21 +635,18 @@ public class Block
      */
     public String getRawBlock()
     {
-        String rawBlock = "";
-        rawBlock = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + "},{" + ledgerHash + "},{";
-        String transactionString = "";
-        for (int i = 0; i < transactions.size(); i++)
+        Body body = this.body;
+        if (body == null)
         {
-            if (transactions.get(i).length() > 10)
-            {
-                transactionString += transactions.get(i) + "*";
-            }
+            return store.getRawBlock(this); //Read straight from the store, no need to parse the block
         }
-        if (transactionString.length() > 2) //Protect against empty transaction strings tripping an index out of bounds error with a negative substring ending index
+        if (body.rawBlock == null)
         {
-            transactionString = transactionString.substring(0, transactionString.length() - 1);
+            String blockData = getBlockData();
+            StringBuilder raw = new StringBuilder(blockData.length() + body.minerSignature.length() + 96);
+            raw.append(blockData).append(",{").append(blockHash).append("},{").append(body.minerSignature).append("},{").append(body.minerSignatureIndex).append('}');
+            body.rawBlock = raw.toString();
         }
-        rawBlock += transactionString + "}," + certificate.getFullCertificate() + ",{" + blockHash + "},{" + minerSignature + "},{" + minerSignatureIndex + "}";
-        return rawBlock;
+        return body.rawBlock;
     }
 }
\ No newline at end of file
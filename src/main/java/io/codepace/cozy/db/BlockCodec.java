@@ -0,0 +1,445 @@
+package io.codepace.cozy.db;
+
+import io.codepace.cozy.Certificate;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+
+/**
+ * Compact binary (v2) encoding of blocks, certificates and transactions, used alongside the raw text format.
+ * <p>
+ * The text format spends most of its space on Base64 Lamport signature parts and hex hashes. In the binary format, numbers are varints, hashes
+ * are their raw 32 bytes, each Base64 part of a signature is its raw bytes, and every other field is a length-prefixed UTF-8 String.
+ * <p>
+ * Block hashes and signatures are still computed over the text format, so the encoding has to reproduce every field exactly. Anything that
+ * wouldn't survive the round trip byte-for-byte (a hash in lowercase, a number with a leading zero, Base64 without canonical padding, a
+ * transaction with an unexpected shape) is stored as a plain String instead.
+ * <p>
+ * Block layout:
+ * version, timestamp, blockNum, previousBlockHash, difficulty, winningNonce, ledgerHash, transactionCount, transactions..., certificate,
+ * blockHash, minerSignature, minerSignatureIndex
+ * Certificate layout:
+ * redeemAddress, arbitraryData, maxNonce, authorityName, blockNum, prevBlockHash, signatureData, signatureIndex
+ */
+public class BlockCodec {
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int TRANSACTION_VERBATIM = 0;
+    private static final int TRANSACTION_STRUCTURED = 1;
+
+    private static final int SEPARATOR_END = 0;
+    private static final int SEPARATOR_COLON = 1;
+    private static final int SEPARATOR_COMMA = 2;
+
+    /**
+     * @param block Block to encode
+     * @return byte[] The binary form of the block
+     */
+    public static byte[] encodeBlock(Block block) {
+        Writer out = new Writer();
+        out.write(FORMAT_VERSION);
+        out.writeSignedVarLong(block.timestamp);
+        out.writeSignedVarLong(block.blockNum);
+        out.writeHash(block.previousBlockHash);
+        out.writeSignedVarLong(block.difficulty);
+        out.writeSignedVarLong(block.winningNonce);
+        out.writeHash(block.ledgerHash);
+        ArrayList<String> transactions = block.getTransactions();
+        out.writeVarLong(transactions.size());
+        for (String transaction : transactions) {
+            writeTransaction(out, transaction);
+        }
+        writeCertificate(out, block.getCertificate());
+        out.writeHash(block.blockHash);
+        out.writeSignature(block.getMinerSignature());
+        out.writeSignedVarLong(block.getMinerSignatureIndex());
+        return out.toByteArray();
+    }
+
+    /**
+     * @param encoded Binary form of a block
+     * @return Block The decoded block, whose hash has been checked against the encoded one
+     * @throws BlockFormatException if the data is malformed, or the block doesn't hash to the encoded block hash
+     */
+    public static Block decodeBlock(byte[] encoded) {
+        Reader in = new Reader(encoded);
+        int version = in.read();
+        if (version != FORMAT_VERSION) {
+            throw new BlockFormatException("Unsupported block format version " + version, 0);
+        }
+        long timestamp = in.readSignedVarLong();
+        int blockNum = in.readInt();
+        String previousBlockHash = in.readHash();
+        long difficulty = in.readSignedVarLong();
+        int winningNonce = in.readInt();
+        String ledgerHash = in.readHash();
+        int transactionCount = in.readLength();
+        ArrayList<String> transactions = new ArrayList<>(transactionCount);
+        for (int i = 0; i < transactionCount; i++) {
+            transactions.add(readTransaction(in));
+        }
+        Certificate certificate = readCertificate(in);
+        int hashPosition = in.position;
+        String blockHash = in.readHash();
+        String minerSignature = in.readSignature();
+        int minerSignatureIndex = in.readInt();
+        in.expectEnd();
+        Block block = new Block(timestamp, blockNum, previousBlockHash, certificate, difficulty, winningNonce, ledgerHash, transactions, minerSignature, minerSignatureIndex);
+        if (!blockHash.equals(block.blockHash)) {
+            throw new BlockFormatException("Block doesn't match its encoded hash", hashPosition);
+        }
+        return block;
+    }
+
+    /**
+     * @param certificate Certificate to encode
+     * @return byte[] The binary form of the certificate
+     */
+    public static byte[] encodeCertificate(Certificate certificate) {
+        Writer out = new Writer();
+        writeCertificate(out, certificate);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param encoded Binary form of a certificate
+     * @return Certificate The decoded certificate
+     * @throws BlockFormatException if the data is malformed
+     */
+    public static Certificate decodeCertificate(byte[] encoded) {
+        Reader in = new Reader(encoded);
+        Certificate certificate = readCertificate(in);
+        in.expectEnd();
+        return certificate;
+    }
+
+    /**
+     * @param transaction Transaction to encode
+     * @return byte[] The binary form of the transaction
+     */
+    public static byte[] encodeTransaction(String transaction) {
+        Writer out = new Writer();
+        writeTransaction(out, transaction);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param encoded Binary form of a transaction
+     * @return String The transaction in its text form
+     * @throws BlockFormatException if the data is malformed
+     */
+    public static String decodeTransaction(byte[] encoded) {
+        Reader in = new Reader(encoded);
+        String transaction = readTransaction(in);
+        in.expectEnd();
+        return transaction;
+    }
+
+    private static void writeCertificate(Writer out, Certificate certificate) {
+        out.writeString(certificate.redeemAddress);
+        out.writeString(certificate.arbitraryData);
+        out.writeSignedVarLong(certificate.maxNonce);
+        out.writeString(certificate.authorityName);
+        out.writeSignedVarLong(certificate.blockNum);
+        out.writeHash(certificate.prevBlockHash);
+        out.writeSignature(certificate.signatureData);
+        out.writeSignedVarLong(certificate.signatureIndex);
+    }
+
+    private static Certificate readCertificate(Reader in) {
+        String redeemAddress = in.readString();
+        String arbitraryData = in.readString();
+        int maxNonce = in.readInt();
+        String authorityName = in.readString();
+        int blockNum = in.readInt();
+        String prevBlockHash = in.readHash();
+        String signatureData = in.readSignature();
+        long signatureIndex = in.readSignedVarLong();
+        return new Certificate(redeemAddress, arbitraryData, maxNonce, authorityName, blockNum, prevBlockHash, signatureIndex, signatureData);
+    }
+
+    /**
+     * Transaction format: InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
+     */
+    private static void writeTransaction(Writer out, String transaction) {
+        String[] transactionParts = transaction.split(";");
+        if (transactionParts.length % 2 != 0 || transactionParts.length < 6 || !String.join(";", transactionParts).equals(transaction)) {
+            out.write(TRANSACTION_VERBATIM);
+            out.writeString(transaction);
+            return;
+        }
+        out.write(TRANSACTION_STRUCTURED);
+        out.writeVarLong((transactionParts.length - 4) / 2); //Number of outputs
+        for (int j = 0; j < transactionParts.length - 2; j += 2) {
+            out.writeString(transactionParts[j]);
+            out.writeNumber(transactionParts[j + 1]);
+        }
+        out.writeSignature(transactionParts[transactionParts.length - 2]);
+        out.writeNumber(transactionParts[transactionParts.length - 1]);
+    }
+
+    private static String readTransaction(Reader in) {
+        int kind = in.read();
+        if (kind == TRANSACTION_VERBATIM) {
+            return in.readString();
+        }
+        if (kind != TRANSACTION_STRUCTURED) {
+            throw new BlockFormatException("Unknown transaction encoding " + kind, in.position - 1);
+        }
+        int outputs = in.readLength();
+        StringBuilder transaction = new StringBuilder();
+        for (int j = 0; j <= outputs; j++) {
+            transaction.append(in.readString()).append(';').append(in.readNumber()).append(';');
+        }
+        transaction.append(in.readSignature()).append(';').append(in.readNumber());
+        return transaction.toString();
+    }
+
+    /**
+     * Appends the primitive field encodings to a growing buffer.
+     */
+    private static class Writer extends ByteArrayOutputStream {
+        Writer() {
+            super(4096);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63)); //Zigzag, so small negative numbers stay small
+        }
+
+        void writeRaw(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeRaw(bytes);
+        }
+
+        /**
+         * Uppercase 64 character hex hashes (which is what the block and ledger hashes are) become 32 raw bytes.
+         */
+        void writeHash(String hash) {
+            if (isUppercaseHash(hash)) {
+                write(1);
+                for (int i = 0; i < 64; i += 2) {
+                    write(Character.digit(hash.charAt(i), 16) << 4 | Character.digit(hash.charAt(i + 1), 16));
+                }
+            } else {
+                write(0);
+                writeString(hash);
+            }
+        }
+
+        /**
+         * Numbers inside transactions are Strings, so they are only stored as a varint when that gives back the exact same String.
+         */
+        void writeNumber(String number) {
+            try {
+                long value = Long.parseLong(number);
+                if (Long.toString(value).equals(number)) {
+                    write(1);
+                    writeSignedVarLong(value);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                //Not a number, stored as a String below
+            }
+            write(0);
+            writeString(number);
+        }
+
+        /**
+         * Signatures are Base64 parts separated by ':' and ','. Each part is written with a header holding its length, the separator that follows
+         * it, and whether it is stored as raw bytes (decoded Base64) or as text.
+         */
+        void writeSignature(String signature) {
+            int partStart = 0;
+            for (int i = 0; i <= signature.length(); i++) {
+                char c = i < signature.length() ? signature.charAt(i) : 0;
+                if (i < signature.length() && c != ':' && c != ',') {
+                    continue;
+                }
+                int separator = i == signature.length() ? SEPARATOR_END : (c == ':' ? SEPARATOR_COLON : SEPARATOR_COMMA);
+                String part = signature.substring(partStart, i);
+                byte[] raw = decodeCanonicalBase64(part);
+                boolean isBase64 = raw != null;
+                if (raw == null) {
+                    raw = part.getBytes(StandardCharsets.UTF_8);
+                }
+                writeVarLong(((long) raw.length << 3) | (separator << 1) | (isBase64 ? 1 : 0));
+                writeRaw(raw);
+                partStart = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Reads the primitive field encodings, reporting the byte position of anything malformed.
+     */
+    private static class Reader {
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+            this.position = 0;
+        }
+
+        int read() {
+            if (position >= data.length) {
+                throw new BlockFormatException("Unexpected end of data", position);
+            }
+            return data[position++] & 0xFF;
+        }
+
+        void expectEnd() {
+            if (position != data.length) {
+                throw new BlockFormatException("Unexpected trailing data", position);
+            }
+        }
+
+        long readVarLong() {
+            int start = position;
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new BlockFormatException("Varint too long", start);
+        }
+
+        long readSignedVarLong() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int readInt() {
+            int start = position;
+            long value = readSignedVarLong();
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw new BlockFormatException("Number out of range", start);
+            }
+            return (int) value;
+        }
+
+        int readLength() {
+            int start = position;
+            long length = readVarLong();
+            if (length < 0 || length > data.length - position) {
+                throw new BlockFormatException("Length " + length + " runs past the end of data", start);
+            }
+            return (int) length;
+        }
+
+        byte[] readBytes(int length) {
+            if (length > data.length - position) {
+                throw new BlockFormatException("Length " + length + " runs past the end of data", position);
+            }
+            byte[] bytes = new byte[length];
+            System.arraycopy(data, position, bytes, 0, length);
+            position += length;
+            return bytes;
+        }
+
+        String readString() {
+            int length = readLength();
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        String readHash() {
+            if (read() == 0) {
+                return readString();
+            }
+            byte[] raw = readBytes(32);
+            char[] hex = new char[64];
+            for (int i = 0; i < 32; i++) {
+                hex[i * 2] = Character.toUpperCase(Character.forDigit((raw[i] >> 4) & 0xF, 16));
+                hex[i * 2 + 1] = Character.toUpperCase(Character.forDigit(raw[i] & 0xF, 16));
+            }
+            return new String(hex);
+        }
+
+        String readNumber() {
+            if (read() == 0) {
+                return readString();
+            }
+            return Long.toString(readSignedVarLong());
+        }
+
+        String readSignature() {
+            StringBuilder signature = new StringBuilder();
+            while (true) {
+                int start = position;
+                long header = readVarLong();
+                long length = header >>> 3;
+                int separator = (int) (header >> 1) & 3;
+                if (length > data.length - position) {
+                    throw new BlockFormatException("Signature part runs past the end of data", start);
+                }
+                byte[] raw = readBytes((int) length);
+                if ((header & 1) == 1) {
+                    signature.append(Base64.getEncoder().encodeToString(raw));
+                } else {
+                    signature.append(new String(raw, StandardCharsets.UTF_8));
+                }
+                if (separator == SEPARATOR_END) {
+                    return signature.toString();
+                } else if (separator == SEPARATOR_COLON) {
+                    signature.append(':');
+                } else if (separator == SEPARATOR_COMMA) {
+                    signature.append(',');
+                } else {
+                    throw new BlockFormatException("Unknown signature separator " + separator, start);
+                }
+            }
+        }
+    }
+
+    private static boolean isUppercaseHash(String hash) {
+        if (hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < 64; i++) {
+            char c = hash.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return byte[] The decoded bytes, or null if the part isn't Base64 that encodes back to exactly the same String
+     */
+    private static byte[] decodeCanonicalBase64(String part) {
+        if (part.isEmpty() || part.length() % 4 != 0) {
+            return null;
+        }
+        try {
+            byte[] raw = Base64.getDecoder().decode(part);
+            if (Base64.getEncoder().encodeToString(raw).equals(part)) {
+                return raw;
+            }
+        } catch (IllegalArgumentException e) {
+            //Not Base64
+        }
+        return null;
+    }
+}
@@ -0,0 +1,16 @@
+package io.codepace.cozy.db;
+
+/**
+ * Thrown when a raw block or certificate String can not be parsed. Carries the character position at which parsing failed, so a malformed
+ * block received from a peer can be diagnosed without dumping the whole (multi-kilobyte) block.
+ */
+public class BlockFormatException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public final int position;
+
+    public BlockFormatException(String message, int position) {
+        super(message + " at position " + position);
+        this.position = position;
+    }
+}
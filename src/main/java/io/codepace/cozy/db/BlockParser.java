@@ -0,0 +1,173 @@
+package io.codepace.cozy.db;
+
+import java.util.ArrayList;
+
+/**
+ * Cursor over a raw block or certificate, used to decode it in a single pass.
+ * <p>
+ * The raw formats are a comma-separated list of brace-delimited sections, for example {timestamp:blockNum:...},{ledgerHash},{transactions},...
+ * Rather than repeatedly cutting the remaining String apart with substring, split and replace, the parser walks the input once. Numbers are
+ * read directly from the characters, and each String field is copied out exactly once. Any mismatch throws a {@link BlockFormatException}
+ * holding the position of the offending character.
+ */
+public class BlockParser {
+    private final CharSequence input;
+    private int position;
+
+    /**
+     * @param input Raw block or certificate
+     */
+    public BlockParser(CharSequence input) {
+        this.input = input;
+        this.position = 0;
+    }
+
+    /**
+     * @return int Index of the next character to be read
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Consumes a single expected character.
+     *
+     * @param expected Character that must be next in the input
+     */
+    public void expect(char expected) {
+        if (position >= input.length()) {
+            throw new BlockFormatException("Expected '" + expected + "' but reached the end of input", position);
+        }
+        if (input.charAt(position) != expected) {
+            throw new BlockFormatException("Expected '" + expected + "' but found '" + input.charAt(position) + "'", position);
+        }
+        position++;
+    }
+
+    /**
+     * Consumes the separator between two sections: },{
+     */
+    public void nextSection() {
+        expect('}');
+        expect(',');
+        expect('{');
+    }
+
+    /**
+     * Ensures the whole input was consumed.
+     */
+    public void expectEnd() {
+        if (position != input.length()) {
+            throw new BlockFormatException("Unexpected trailing data", position);
+        }
+    }
+
+    /**
+     * Reads a String up to (but not including) the terminator. The terminator is not consumed.
+     *
+     * @param terminator Character ending the field
+     * @return String The field
+     */
+    public String readString(char terminator) {
+        int start = position;
+        int end = indexOf(terminator, start);
+        position = end;
+        return input.subSequence(start, end).toString();
+    }
+
+    /**
+     * Reads a String up to the terminator, and consumes the terminator.
+     *
+     * @param terminator Character ending the field
+     * @return String The field
+     */
+    public String readField(char terminator) {
+        String field = readString(terminator);
+        position++;
+        return field;
+    }
+
+    /**
+     * Reads a decimal long up to the terminator, and consumes the terminator.
+     *
+     * @param terminator Character ending the number
+     * @return long The number
+     */
+    public long readLong(char terminator) {
+        int start = position;
+        boolean negative = false;
+        if (position < input.length() && input.charAt(position) == '-') {
+            negative = true;
+            position++;
+        }
+        if (position >= input.length() || input.charAt(position) == terminator) {
+            throw new BlockFormatException("Expected a number", start);
+        }
+        long value = 0;
+        while (position < input.length() && input.charAt(position) != terminator) {
+            char digit = input.charAt(position);
+            if (digit < '0' || digit > '9') {
+                throw new BlockFormatException("Unexpected '" + digit + "' in number", position);
+            }
+            try {
+                value = Math.addExact(Math.multiplyExact(value, 10), digit - '0');
+            } catch (ArithmeticException e) {
+                throw new BlockFormatException("Number out of range", start);
+            }
+            position++;
+        }
+        expect(terminator);
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads a decimal int up to the terminator, and consumes the terminator.
+     *
+     * @param terminator Character ending the number
+     * @return int The number
+     */
+    public int readInt(char terminator) {
+        int start = position;
+        long value = readLong(terminator);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new BlockFormatException("Number out of range", start);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads a list of Strings separated by separator up to (but not including) the terminator. An empty list is read as a single empty String,
+     * the same as String.split would produce.
+     *
+     * @param separator  Character between elements
+     * @param terminator Character ending the list
+     * @return {@link ArrayList} The elements
+     */
+    public ArrayList<String> readList(char separator, char terminator) {
+        ArrayList<String> elements = new ArrayList<>();
+        int end = indexOf(terminator, position);
+        int start = position;
+        for (int i = start; i < end; i++) {
+            if (input.charAt(i) == separator) {
+                elements.add(input.subSequence(start, i).toString());
+                start = i + 1;
+            }
+        }
+        elements.add(input.subSequence(start, end).toString());
+        //String.split drops trailing empty elements
+        while (elements.size() > 1 && elements.get(elements.size() - 1).isEmpty()) {
+            elements.remove(elements.size() - 1);
+        }
+        position = end;
+        return elements;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < input.length(); i++) {
+            if (input.charAt(i) == c) {
+                return i;
+            }
+        }
+        throw new BlockFormatException("Expected '" + c + "' but reached the end of input", input.length());
+    }
+}
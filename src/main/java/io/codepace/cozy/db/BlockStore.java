@@ -0,0 +1,454 @@
+package io.codepace.cozy.db;
+
+import io.codepace.cozy.LruMap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static io.codepace.cozy.Util.*;
+
+/**
+ * Owns the blockchain file. In the text format (blockchain.dta) the file holds one raw block per line. In the binary format (blockchain.v2)
+ * it holds one {@link BlockCodec} record per block, each preceded by its length as a 4-byte integer.
+ * <p>
+ * Each block written to or replayed from the file remembers where its line starts and how long it is. The block then drops its body
+ * (certificate, transactions and miner signature), keeping only its header. When the body is needed again, for example to reverse
+ * transactions during a reorganization, it is read back from the file and kept in a small LRU cache, so that recently used blocks aren't
+ * re-read and re-parsed, while the heap stays flat no matter how long the chain is.
+ * <p>
+ * Blocks sent to peers don't need to be parsed at all; their raw line is read straight from the file.
+ */
+public class BlockStore {
+    public static final int DEFAULT_BODY_CACHE_SIZE = 64;
+    public static final int FORMAT_TEXT = 1;
+    public static final int FORMAT_BINARY = BlockCodec.FORMAT_VERSION;
+    //Amount read from the file at once when reading runs of records
+    private static final int READ_WINDOW_SIZE = 1 << 20;
+
+    private File file;
+    private int format;
+    private RandomAccessFile reader;
+    private LruMap<Long, Block.Body> bodyCache;
+    private long bodyCacheMisses = 0;
+
+    /**
+     * Reads blocks from the blockchain file in order, keeping track of where each one starts. Used when replaying the blockchain on startup.
+     */
+    public class Reader {
+        private InputStream in;
+        private long position = 0;
+        private long offset;
+        private int length;
+
+        private Reader() throws IOException {
+            in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        }
+
+        /**
+         * Reads the next block. If the block is malformed, the reader still moves past it, so reading can continue with the next block.
+         *
+         * @return Block The next block, or null at the end of the file
+         * @throws IOException          if the file can not be read
+         * @throws BlockFormatException if the block is malformed
+         */
+        public Block readBlock() throws IOException {
+            if (format == FORMAT_BINARY) {
+                byte[] lengthBytes = new byte[4];
+                if (readFully(lengthBytes) == 0) {
+                    return null;
+                }
+                length = ((lengthBytes[0] & 0xFF) << 24) | ((lengthBytes[1] & 0xFF) << 16) | ((lengthBytes[2] & 0xFF) << 8) | (lengthBytes[3] & 0xFF);
+                offset = position;
+                byte[] encoded = new byte[length];
+                if (readFully(encoded) != length) {
+                    throw new BlockFormatException("Truncated block record", (int) offset);
+                }
+                return BlockCodec.decodeBlock(encoded);
+            }
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            while (true) {
+                offset = position;
+                line.reset();
+                int c;
+                while ((c = in.read()) != -1) {
+                    position++;
+                    if (c == '\n') {
+                        break;
+                    }
+                    line.write(c);
+                }
+                byte[] bytes = line.toByteArray();
+                length = bytes.length;
+                if (length > 0 && bytes[length - 1] == '\r') {
+                    length--; //Written with a Windows line separator
+                }
+                if (length > 0) {
+                    return new Block(new String(bytes, 0, length, StandardCharsets.UTF_8));
+                }
+                if (c == -1) {
+                    return null;
+                }
+            }
+        }
+
+        private int readFully(byte[] buffer) throws IOException {
+            int read = 0;
+            while (read < buffer.length) {
+                int count = in.read(buffer, read, buffer.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            position += read;
+            return read;
+        }
+
+        /**
+         * @return long Offset in the file of the block last returned by readBlock()
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return int Length in bytes of the block last returned by readBlock()
+         */
+        public int getLength() {
+            return length;
+        }
+
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Constructor for BlockStore.
+     *
+     * @param file          Path to the blockchain file
+     * @param bodyCacheSize Number of block bodies to keep in memory
+     * @param format        FORMAT_TEXT or FORMAT_BINARY
+     */
+    public BlockStore(String file, int bodyCacheSize, int format) {
+        this.file = new File(file);
+        this.format = format;
+        this.bodyCache = new LruMap<>(bodyCacheSize);
+    }
+
+    /**
+     * @return Reader positioned at the first block in the file
+     * @throws IOException if the file can not be opened
+     */
+    public Reader openReader() throws IOException {
+        return new Reader();
+    }
+
+    /**
+     * Appends a block to the end of the file, after which the block is backed by the store.
+     *
+     * @param block Block to write
+     * @return boolean Whether the write was successful
+     */
+    public synchronized boolean append(Block block) {
+        byte[] raw = encode(block);
+        long offset = file.length() + (format == FORMAT_BINARY ? 4 : 0);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            writeRecord(out, raw);
+        } catch (IOException e) {
+            System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- ERROR: UNABLE TO SAVE BLOCK TO DATABASE!");
+            e.printStackTrace();
+            return false;
+        }
+        attach(block, offset, raw.length);
+        return true;
+    }
+
+    /**
+     * Marks a block as stored at the given location, which drops its body. The body goes into the cache, as a block which was just added is
+     * likely to be needed again soon.
+     *
+     * @param block  Block which is stored in the file
+     * @param offset Offset of the block in the file
+     * @param length Length of the block in bytes
+     */
+    public synchronized void attach(Block block, long offset, int length) {
+        Block.Body body = block.getResidentBody();
+        if (body != null) {
+            bodyCache.put(offset, body);
+        }
+        block.stored(this, offset, length);
+    }
+
+    /**
+     * Returns the body of a stored block, from the cache if possible.
+     */
+    synchronized Block.Body loadBody(Block block) {
+        Block.Body body = bodyCache.get(block.getStoreOffset());
+        if (body != null) {
+            return body;
+        }
+        bodyCacheMisses++;
+        Block loaded = decode(readStored(block));
+        if (!loaded.blockHash.equals(block.blockHash)) {
+            System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- Block " + block.blockNum + " in the blockchain file doesn't match its hash!");
+        }
+        body = loaded.getResidentBody();
+        bodyCache.put(block.getStoreOffset(), body);
+        return body;
+    }
+
+    /**
+     * Returns the raw text form of a stored block. In the text format, the block isn't parsed or added to the cache.
+     */
+    synchronized String getRawBlock(Block block) {
+        Block.Body body = bodyCache.get(block.getStoreOffset());
+        if (body != null && body.rawBlock != null) {
+            return body.rawBlock;
+        }
+        if (format == FORMAT_BINARY) {
+            return decode(readStored(block)).getRawBlock();
+        }
+        return new String(readStored(block), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the binary form of a stored block. In the binary format, the record is returned as it is in the file.
+     */
+    synchronized byte[] getEncodedBlock(Block block) {
+        if (format == FORMAT_BINARY) {
+            return readStored(block);
+        }
+        return BlockCodec.encodeBlock(block);
+    }
+
+    /**
+     * Reads the stored records of a run of blocks, such as a range of the longest chain, without parsing them. Records are read through a large
+     * window, so blocks which were appended one after another are read sequentially instead of with a seek each.
+     *
+     * @param blocks Blocks to read, in the order they should be returned
+     * @return {@link ArrayList} The record of each block, in the store's format
+     */
+    public synchronized ArrayList<byte[]> readRecords(List<Block> blocks) {
+        ArrayList<byte[]> records = new ArrayList<>(blocks.size());
+        byte[] window = null;
+        long windowStart = 0;
+        int windowLength = 0;
+        for (Block block : blocks) {
+            if (block.getStore() != this) {
+                records.add(encode(block)); //Not written to this store yet
+                continue;
+            }
+            long offset = block.getStoreOffset();
+            int length = block.getStoreLength();
+            if (window == null || offset < windowStart || offset + length > windowStart + windowLength) {
+                int size = Math.max(length, READ_WINDOW_SIZE);
+                if (window == null || window.length < size) {
+                    window = new byte[size];
+                }
+                windowStart = offset;
+                windowLength = readAt(offset, window, size);
+                if (windowLength < length) {
+                    throw new IllegalStateException("Block at offset " + offset + " runs past the end of " + file);
+                }
+            }
+            int start = (int) (offset - windowStart);
+            records.add(Arrays.copyOfRange(window, start, start + length));
+        }
+        return records;
+    }
+
+    /**
+     * @return int FORMAT_TEXT or FORMAT_BINARY
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Copies every block from another store into this one, which is how the blockchain is moved from one format to the other.
+     *
+     * @param source Store to copy from
+     * @return int Number of blocks copied
+     * @throws IOException if the source can not be read
+     */
+    public synchronized int importBlocks(BlockStore source) throws IOException {
+        int imported = 0;
+        Reader sourceReader = source.openReader();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            while (true) {
+                Block block;
+                try {
+                    block = sourceReader.readBlock();
+                } catch (BlockFormatException e) {
+                    System.out.println(ANSI_RED + "[db] " + ANSI_RESET + "- Skipping malformed block while importing: " + e.getMessage());
+                    continue;
+                }
+                if (block == null) {
+                    break;
+                }
+                writeRecord(out, encode(block));
+                imported++;
+            }
+        } finally {
+            sourceReader.close();
+        }
+        return imported;
+    }
+
+    private byte[] encode(Block block) {
+        if (format == FORMAT_BINARY) {
+            return block.getEncodedBlock();
+        }
+        return block.getRawBlock().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Block decode(byte[] stored) {
+        if (format == FORMAT_BINARY) {
+            return BlockCodec.decodeBlock(stored);
+        }
+        String raw = new String(stored, StandardCharsets.UTF_8);
+        Block block = new Block(raw);
+        block.getResidentBody().rawBlock = raw;
+        return block;
+    }
+
+    private void writeRecord(OutputStream out, byte[] record) throws IOException {
+        if (format == FORMAT_BINARY) {
+            out.write(new byte[]{(byte) (record.length >>> 24), (byte) (record.length >>> 16), (byte) (record.length >>> 8), (byte) record.length});
+            out.write(record);
+        } else {
+            out.write(record);
+            out.write('\n');
+        }
+    }
+
+    private byte[] readStored(Block block) {
+        long offset = block.getStoreOffset();
+        try {
+            if (reader == null) {
+                reader = new RandomAccessFile(file, "r");
+            }
+            byte[] stored = new byte[block.getStoreLength()];
+            reader.seek(offset);
+            reader.readFully(stored);
+            return stored;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read block at offset " + offset + " from " + file, e);
+        }
+    }
+
+    private int readAt(long offset, byte[] buffer, int length) {
+        try {
+            if (reader == null) {
+                reader = new RandomAccessFile(file, "r");
+            }
+            reader.seek(offset);
+            int read = 0;
+            while (read < length) {
+                int count = reader.read(buffer, read, length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return read;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read from " + file + " at offset " + offset, e);
+        }
+    }
+
+    /**
+     * Writes the given blocks to a file in the store's format. If the file is the one backing this store, it is replaced atomically and the blocks are
+     * moved to their new locations.
+     *
+     * @param target File to write
+     * @param blocks Blocks to write, in order
+     * @return boolean Whether writing was successful
+     */
+    public synchronized boolean writeAll(File target, List<Block> blocks) {
+        File temp = new File(target.getPath() + ".tmp");
+        ArrayList<Long> offsets = new ArrayList<>();
+        ArrayList<Integer> lengths = new ArrayList<>();
+        try (FileOutputStream out = new FileOutputStream(temp, false)) {
+            long offset = 0;
+            for (Block block : blocks) {
+                byte[] record = encode(block);
+                writeRecord(out, record);
+                offsets.add(offset + (format == FORMAT_BINARY ? 4 : 0));
+                lengths.add(record.length);
+                offset += record.length + (format == FORMAT_BINARY ? 4 : 1);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        boolean replacingStore = target.getAbsoluteFile().equals(file.getAbsoluteFile());
+        if (replacingStore) {
+            closeReader();
+        }
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (replacingStore) {
+            //Cached bodies are keyed by their old offsets. Bodies which are dropped are simply read back from the new file when needed.
+            bodyCache.clear();
+            for (int i = 0; i < blocks.size(); i++) {
+                attach(blocks.get(i), offsets.get(i), lengths.get(i));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return File The file backing this store
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return int Number of block bodies currently held in memory by the cache
+     */
+    public synchronized int getCachedBodyCount() {
+        return bodyCache.size();
+    }
+
+    /**
+     * @return long Number of times a block body had to be read back from the file
+     */
+    public synchronized long getBodyCacheMisses() {
+        return bodyCacheMisses;
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            reader = null;
+        }
+    }
+}
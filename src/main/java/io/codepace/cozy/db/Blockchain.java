@@ -1,11 +1,9 @@
 package io.codepace.cozy.db;
 
+import io.codepace.cozy.Constants;
 import io.codepace.cozy.LedgerManager;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 
 import static io.codepace.cozy.Util.*;
@@ -41,10 +39,21 @@ public class Blockchain {
 
     public LedgerManager ledgerManager;
 
+    public AddressHistoryIndex historyIndex;
+
+    public RecentActivityIndex activityIndex;
+
+    public BlockStore blockStore;
+
     private String dbFolder;
 
     private boolean gotGenesisBlock = false;
 
+    private ArrayList<ChainListener> listeners = new ArrayList<>();
+
+    //Replaced whenever a block is connected; disconnects only happen during a reorganization, which ends by connecting the new tip
+    private volatile ChainTip tip;
+
     /**
      * Constructor for Blockchain object. A Blockchain object represents an entire chain of blocks. Only one is created
      * in the entire execution of the program. All blocks will be added individually and in-order.
@@ -59,6 +68,13 @@ public class Blockchain {
     public Blockchain(String dbFolder) {
         this.dbFolder = dbFolder;
         this.ledgerManager = new LedgerManager(dbFolder + "/AccountBalances.bal");
+        this.historyIndex = new AddressHistoryIndex(dbFolder + "/history.idx");
+        this.activityIndex = new RecentActivityIndex();
+        if (Constants.BLOCK_STORAGE_VERSION == BlockStore.FORMAT_BINARY) {
+            this.blockStore = new BlockStore(dbFolder + "/blockchain.v2", BlockStore.DEFAULT_BODY_CACHE_SIZE, BlockStore.FORMAT_BINARY);
+        } else {
+            this.blockStore = new BlockStore(dbFolder + "/blockchain.dta", BlockStore.DEFAULT_BODY_CACHE_SIZE, BlockStore.FORMAT_TEXT);
+        }
         this.blockQueue = new ArrayList<>();
     }
 
@@ -77,6 +93,15 @@ public class Blockchain {
         return longestChain;
     }
 
+    /**
+     * Returns a snapshot of the tip of the longest chain. Safe to call from any thread.
+     *
+     * @return ChainTip The current tip, or null before the first block is added
+     */
+    public ChainTip getTip() {
+        return tip;
+    }
+
     /**
      * Returns the difficulty of the latest block in the longest chain.
      *
@@ -134,6 +159,27 @@ public class Blockchain {
         return chains.get(longestChain).get(blockNum);
     }
 
+    /**
+     * Retrieves a run of blocks from the longest chain.
+     *
+     * @param fromBlockNum Number of the first block
+     * @param count        Number of blocks to retrieve; fewer are returned if the chain ends first
+     * @return {@link ArrayList} Blocks in height order
+     */
+    public ArrayList<Block> getBlocks(int fromBlockNum, int count) {
+        ArrayList<Block> longestChain = chains.get(0);
+        for (int i = 1; i < chains.size(); i++) {
+            if (chains.get(i).size() > longestChain.size()) {
+                longestChain = chains.get(i);
+            }
+        }
+        ArrayList<Block> blocks = new ArrayList<>();
+        for (int i = Math.max(fromBlockNum, 0); i < fromBlockNum + count && i < longestChain.size(); i++) {
+            blocks.add(longestChain.get(i));
+        }
+        return blocks;
+    }
+
     /**
      * This method attempts to add a block to the blockchain. No upstream handling is required to make sure the block is valid,
      * all of that is handled here. Additionally, the block will be automatically placed onto the correct fork, or a new fork will
@@ -201,7 +247,7 @@ public class Blockchain {
                 largestChainLastBlockHash = block.blockHash;
                 if (ledgerManager.lastBlockNum < 0) {
                     //We can't directly assign transactionsToApply to block.transactions as we are going to edit it, and we don't want to delete transactions from the actual block.
-                    ArrayList<String> transactionsToApply = new ArrayList<>(block.transactions);
+                    ArrayList<String> transactionsToApply = new ArrayList<>(block.getTransactions());
                     int loopCount = 0;
                     int transactionsApplied = 0;
                     //Yippee let's add our first chunk of transactions if we need to!
@@ -221,8 +267,9 @@ public class Blockchain {
                     }
                 }
 
-                ledgerManager.adjustAddressBalance(chains.get(0).get(0).certificate.redeemAddress, 100); //Pay mining fee
-                ledgerManager.adjustAddressSignatureCount(chains.get(0).get(0).certificate.redeemAddress, 1);
+                ledgerManager.adjustAddressBalance(chains.get(0).get(0).getMiner(), 100); //Pay mining fee
+                ledgerManager.adjustAddressSignatureCount(chains.get(0).get(0).getMiner(), 1);
+                connectBlock(block);
                 if (!fromBlockchainFile) {
                     writeBlockToFile(block);
                 }
@@ -254,17 +301,17 @@ public class Blockchain {
                             //Future implementations will be MUCH more efficient--they'll reverse down the fork and ride it back up.
                             //However, during the developmental time squeeze that is two hours before 0.2.01 launch when I realized the logic I had here wasn't good, this seemed like a great idea.
                             for (int j = largestChain.size() - 1; j > 0; j--) {
-                                ArrayList<String> transactionsToReverse = largestChain.get(j).transactions;
+                                ArrayList<String> transactionsToReverse = largestChain.get(j).getTransactions();
                                 for (String aTransactionsToReverse : transactionsToReverse) {
                                     ledgerManager.reverseTransaction(aTransactionsToReverse);
                                 }
-                                ledgerManager.adjustAddressBalance(largestChain.get(j).certificate.redeemAddress, -100); //Reverse mining income...
-                                ledgerManager.adjustAddressSignatureCount(largestChain.get(j).certificate.redeemAddress, -1);
+                                ledgerManager.adjustAddressBalance(largestChain.get(j).getMiner(), -100); //Reverse mining income...
+                                ledgerManager.adjustAddressSignatureCount(largestChain.get(j).getMiner(), -1);
                             }
                             //The ledger is completely empty, basically. Good job. Efficiency at its finest. Will be fixed during upcoming refactoring.
                             for (Block aChain : chain) {
                                 //We can't directly assign transactionsToApply to block.transactions as we are going to edit it, and we don't want to delete transactions from the actual block.
-                                ArrayList<String> transactionsToApply = new ArrayList<>(block.transactions);
+                                ArrayList<String> transactionsToApply = new ArrayList<>(block.getTransactions());
                                 int loopCount = 0;
                                 while (transactionsToApply.size() > 0) {
                                     loopCount++;
@@ -283,8 +330,19 @@ public class Blockchain {
                                         System.exit(-1);
                                     }
                                 }
-                                ledgerManager.adjustAddressBalance(aChain.certificate.redeemAddress, 100); //Pay mining fee
-                                ledgerManager.adjustAddressSignatureCount(aChain.certificate.redeemAddress, 1);
+                                ledgerManager.adjustAddressBalance(aChain.getMiner(), 100); //Pay mining fee
+                                ledgerManager.adjustAddressSignatureCount(aChain.getMiner(), 1);
+                            }
+                            //The indexes only need to move between the two tips, not replay everything
+                            int forkPoint = 0;
+                            while (forkPoint < largestChain.size() && forkPoint < chain.size() && largestChain.get(forkPoint).blockHash.equals(chain.get(forkPoint).blockHash)) {
+                                forkPoint++;
+                            }
+                            for (int j = largestChain.size() - 1; j >= forkPoint; j--) {
+                                disconnectBlock(largestChain.get(j));
+                            }
+                            for (int j = forkPoint; j < chain.size(); j++) {
+                                connectBlock(chain.get(j));
                             }
                         } else //Great, we added to the longest chain!
                         {
@@ -292,7 +350,7 @@ public class Blockchain {
                             if (ledgerManager.lastBlockNum < block.blockNum) //If the ledger was read in from a file, then we don't add the transactions again!
                             {
                                 //We can't directly assign transactionsToApply to block.transactions as we are going to edit it, and we don't want to delete transactions from the actual block.
-                                ArrayList<String> transactionsToApply = new ArrayList<>(block.transactions);
+                                ArrayList<String> transactionsToApply = new ArrayList<>(block.getTransactions());
                                 int loopCount = 0;
                                 int completedTransactions = 0;
                                 while (transactionsToApply.size() > completedTransactions) {
@@ -310,9 +368,10 @@ public class Blockchain {
                                         System.exit(-1);
                                     }
                                 }
-                                ledgerManager.adjustAddressBalance(block.certificate.redeemAddress, 100);
-                                ledgerManager.adjustAddressSignatureCount(block.certificate.redeemAddress, 1);
+                                ledgerManager.adjustAddressBalance(block.getMiner(), 100);
+                                ledgerManager.adjustAddressSignatureCount(block.getMiner(), 1);
                             }
+                            connectBlock(block);
                         }
                     }
                     if (!fromBlockchainFile) {
@@ -367,75 +426,92 @@ public class Blockchain {
     }
 
     /**
-     * Writes a block to the blockchain file
+     * Called whenever a block becomes part of the longest chain, after the ledger has been updated. Keeps the secondary indexes in step.
+     *
+     * @param block Block that was connected
+     */
+    private void connectBlock(Block block) {
+        historyIndex.connectBlock(block);
+        activityIndex.connectBlock(block);
+        tip = new ChainTip(block);
+        for (ChainListener listener : listeners) {
+            listener.blockConnected(block);
+        }
+    }
+
+    /**
+     * Called whenever a block stops being part of the longest chain during a reorganization. Blocks are disconnected tip-first.
+     *
+     * @param block Block that was disconnected
+     */
+    private void disconnectBlock(Block block) {
+        historyIndex.disconnectBlock(block);
+        activityIndex.disconnectBlock(block);
+        for (ChainListener listener : listeners) {
+            listener.blockDisconnected(block);
+        }
+    }
+
+    /**
+     * Registers a listener to be told about blocks connected to and disconnected from the longest chain from now on.
+     *
+     * @param listener Listener to add
+     */
+    public void addListener(ChainListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Writes a block to the blockchain file. From then on, the block's body is held by the block store rather than the block.
      *
      * @param block The block object to write
      * @return boolean Whether write was successful
      */
     public boolean writeBlockToFile(Block block) {
         System.out.println("Writing a block to file...");
-        try (FileWriter fileWriter = new FileWriter(dbFolder + "/blockchain.dta", true);
-             BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-             PrintWriter out = new PrintWriter(bufferedWriter)) {
-            out.println(block.getRawBlock());
-        } catch (Exception e) {
-            System.out.println(ANSI_RED + "[node] " + ANSI_RESET + "- ERROR: UNABLE TO SAVE BLOCK TO DATABASE!");
-            e.printStackTrace();
-            return false;
-        }
-        return true;
+        return blockStore.append(block);
     }
 
     /**
      * Saves entire blockchain to a file, useful to save the state of the blockchain so it doesn't have to be redownloaded later.
-     * Blockchain is stored to a file called "blockchain.dta" inside the provided dbFolder.
+     * Blockchain is stored to a file called "blockchain.dta" (or "blockchain.v2" with binary storage) inside the provided dbFolder.
      *
      * @param dbFolder Folder to save blockchain file in
      * @return boolean Whether saving to file was successful.
      */
     public boolean saveToFile(String dbFolder) {
-        try {
-            PrintWriter out = new PrintWriter(new File(dbFolder + "/blockchain.dta"));
-            for (ArrayList<Block> chain : chains) {
-                for (int j = 0; j < chain.size(); j++) {
-                    out.println(chain.get(j).getRawBlock());
-                }
-            }
-            out.close();
-        } catch (Exception e) {
-            System.out.println(ANSI_RED + "[node] " + ANSI_RESET + "- [CRITICAL ERROR] UNABLE TO WRITE BLOCKCHAIN FILE \"" + dbFolder + "/blockchain.dta!");
-            e.printStackTrace();
+        ArrayList<Block> blocks = new ArrayList<>();
+        for (ArrayList<Block> chain : chains) {
+            blocks.addAll(chain);
+        }
+        File blockchainFile = new File(dbFolder, blockStore.getFile().getName());
+        if (!blockStore.writeAll(blockchainFile, blocks)) {
+            System.out.println(ANSI_RED + "[node] " + ANSI_RESET + "- [CRITICAL ERROR] UNABLE TO WRITE BLOCKCHAIN FILE \"" + blockchainFile + "!");
             return false;
         }
         return true;
     }
 
     /**
-     * Calls getTransactionsInvolvingAddress() on all Block objects in the current Blockchain to get all relevant transactions.
+     * Looks up all transactions involving an address on the longest chain, using the address history index.
      *
-     * @param addressToFind Address to search through all block transaction pools for
+     * @param addressToFind Address to look up
      * @return {@link ArrayList} All transactions in simplified form blocknum:sender:amount:receiver of
      */
     public ArrayList<String> getAllTransactionsInvolvingAddress(String addressToFind) {
-        int longestChainLength = 0;
-        int longestChainNum = -1;
-        for (int i = 0; i < chains.size(); i++) {
-            if (chains.get(i).size() > longestChainLength) {
-                longestChainNum = i;
-                longestChainLength = chains.get(i).size();
-            }
-        }
-        ArrayList<Block> longestChain = chains.get(longestChainNum);
-
-        ArrayList<String> allTransactions = new ArrayList<>();
+        return historyIndex.getHistory(addressToFind, 0, Integer.MAX_VALUE);
+    }
 
-        for (int i = 0; i < longestChain.size(); i++) {
-            ArrayList<String> transactionsFromBlock = longestChain.get(i).getTransactionsInvolvingAddress(addressToFind);
-            for (int j = 0; j < transactionsFromBlock.size(); j++) {
-                allTransactions.add(longestChain.get(i).blockNum + ":" + transactionsFromBlock.get(j));
-            }
-        }
-        return allTransactions;
+    /**
+     * Looks up a page of transactions involving an address on the longest chain, oldest first.
+     *
+     * @param addressToFind Address to look up
+     * @param fromHeight    Lowest block height to include
+     * @param limit         Maximum number of transactions to return
+     * @return {@link ArrayList} Transactions in simplified form blocknum:sender:amount:receiver
+     */
+    public ArrayList<String> getTransactionsInvolvingAddress(String addressToFind, int fromHeight, int limit) {
+        return historyIndex.getHistory(addressToFind, fromHeight, limit);
     }
 
     /**
@@ -0,0 +1,40 @@
+package io.codepace.cozy.db;
+
+/**
+ * Told about changes to the longest chain and to the pending transaction pool as they happen. Called on the thread making the change, once
+ * the ledger and indexes are up to date, so listeners must return quickly.
+ */
+public abstract class ChainListener {
+
+    /**
+     * @param block Block that just became part of the longest chain
+     */
+    public void blockConnected(Block block) {
+    }
+
+    /**
+     * Called for each block a reorganization takes off the longest chain, tip first, before the blocks of the new chain are connected.
+     *
+     * @param block Block that is no longer part of the longest chain
+     */
+    public void blockDisconnected(Block block) {
+    }
+
+    /**
+     * @param transaction Transaction that was just accepted into the pending transaction pool
+     */
+    public void transactionAccepted(String transaction) {
+    }
+
+    /**
+     * @param transaction Transaction that was just removed from the pending transaction pool, usually because a block included it
+     */
+    public void transactionRemoved(String transaction) {
+    }
+
+    /**
+     * Called when the pending transaction pool is emptied all at once.
+     */
+    public void poolReset() {
+    }
+}
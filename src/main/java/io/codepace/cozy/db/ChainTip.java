@@ -0,0 +1,29 @@
+package io.codepace.cozy.db;
+
+import java.util.ArrayList;
+
+/**
+ * An immutable summary of the tip of the longest chain. The Blockchain swaps in a new one every time a block is connected, so readers get a
+ * consistent height, hash and difficulty from a single volatile read, without scanning the chains and without the state lock.
+ */
+public class ChainTip {
+    public final int height; //Number of blocks in the chain, so the tip is block height - 1
+    public final String hash;
+    public final long difficulty;
+    public final String ledgerHash; //As recorded in the tip block: the ledger before its transactions
+    public final String latestTransaction; //Last transaction of the tip block, or null if it has none
+
+    /**
+     * Constructor for ChainTip.
+     *
+     * @param block The block that is now the tip of the longest chain
+     */
+    public ChainTip(Block block) {
+        this.height = block.blockNum + 1;
+        this.hash = block.blockHash;
+        this.difficulty = block.difficulty;
+        this.ledgerHash = block.ledgerHash;
+        ArrayList<String> transactions = block.getTransactions();
+        this.latestTransaction = transactions.isEmpty() ? null : transactions.get(transactions.size() - 1);
+    }
+}
@@ -1,11 +1,11 @@
 package io.codepace.cozy.db;
 
+import io.codepace.cozy.Constants;
 import io.codepace.cozy.MerkleAddressUtility;
 
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Scanner;
 
 public class CozyDatabaseMaster {
 
@@ -23,6 +23,15 @@ public class CozyDatabaseMaster {
         return blockchain.addBlock(block, false);
     }
 
+    /**
+     * Passthrough to Blockchain.addListener(listener).
+     *
+     * @param listener Listener to tell about blocks connected and disconnected from now on
+     */
+    public void addChainListener(ChainListener listener) {
+        blockchain.addListener(listener);
+    }
+
     /**
      * Gets a the block at a certain height of the longest chain; passthrough to Blockchain.getBlock(int blockNum).
      *
@@ -42,6 +51,15 @@ public class CozyDatabaseMaster {
         return blockchain.getBlockchainLength();
     }
 
+    /**
+     * Passthrough to Blockchain.getTip(). Safe to call from any thread, without the node's state lock.
+     *
+     * @return ChainTip Snapshot of the tip of the longest chain
+     */
+    public ChainTip getChainTip() {
+        return blockchain.getTip();
+    }
+
     /**
      * @return The latest block in the local chain
      */
@@ -49,6 +67,24 @@ public class CozyDatabaseMaster {
         return getBlock(getBlockchainLength() - 1);
     }
 
+    /**
+     * Reads a range of blocks on the longest chain as they are stored on disk, without parsing them. Used to serve ranged block requests.
+     *
+     * @param fromBlockNum Number of the first block
+     * @param count        Number of blocks; fewer are returned if the chain ends first
+     * @return {@link ArrayList} Stored records in height order, in the format returned by getBlockStorageFormat()
+     */
+    public ArrayList<byte[]> getStoredBlocks(int fromBlockNum, int count) {
+        return blockchain.blockStore.readRecords(blockchain.getBlocks(fromBlockNum, count));
+    }
+
+    /**
+     * @return int BlockStore.FORMAT_TEXT or BlockStore.FORMAT_BINARY
+     */
+    public int getBlockStorageFormat() {
+        return blockchain.blockStore.getFormat();
+    }
+
     /**
      * Passthrough to Blockchain.getDifficulty()
      *
@@ -83,17 +119,32 @@ public class CozyDatabaseMaster {
                 out.println("{1433745705904:1:4F5BFD86FD26F234F31694954DD2372F2045F47E02B346EB7C50C259E0D86A64:150000:9312917},{0000000000000000000000000000000000000000000000000000000000000000},{},{C5KKYT7AURETVHAKJ2G2RXNVMA4BKH4KQWCJOW:BLOCK_ONE:90909090:CureLabs:1:4F5BFD86FD26F234F31694954DD2372F2045F47E02B346EB7C50C259E0D86A64},{Yt3+jcZVinzqIVjZ:8PDZbRXYyhpH6Bhokj5m::N+uVg3NL8SL5TE4C:5nZywxRyiEo4jYSvKTP7::OtdHNePkarWc1bM2PwGO:21zQd/+Imm09qaR1::xXrc2OLWfXCdNroOlSsw:bXReU6PX9M0Cs0o4::gjFvqFkrcyb+wxpP:XUQPwM7z3MS1YcqE4Fut::c5iH7NU819nSSaIPHAyX:+M70LA4Gs5UYe+fj::lkeJYvApr+p4OOPw:CWeGWDECEgRIAHJLf53O::kZw0EMMOMx0ffPBr:WFBZONGLGGU96F8RxVw5::HwYlCKtpvg3wPgnpba8X:JeSadCw4H9ok1jP/::P8GRmPrVgfley8AEI3Hg:M4L8mm3zArtkTI5y::FHmpG5bt/Xon5ocx:s6bGphpWey4sWVLoN4bD::EL1u7GfyDqvx3EZ+:NDuKwVn28xT5DBpX8OCQ::9ts1OQ1SvwrtkgQA:8SfU16jR1gWepPs1w6O8::9zVLfvOATnpTwxsZMOma:elJK6TtguLzr8MJM::SSN8P0xhUF5lDIhYiAi8:M8J/zgOIBoGUJB3g::GIj9oBT6lW8XDVlKtT5M:8j0p1+EehTRl1FyG::gxJ7ccl1Z4K94RV7:5HjUFM9udR04Y0LfIPSb::O2Jz2Oai5N6rJXqG:2bsKVo0QzWUNAcKlk6zW::HdaTq76EVodbuOb2yAGs:10EkxrVZRep0kcD/::p7277rUBy9yX3LkBlMov:6SW72Y9aIgcNLBAR::1tEmwxLaOSdRRzpL:ZfbOFIVXT6i78B4OKrfY::XZzl0QG5RtOfKp48qtuV:Q7oFGMbbvRG6/4Iq::jhcQ4GUbtLtX7papfXWC:E3N7lXXEoVNcy5V6::OLVBPp8zV2KbJdGvJ2BX:yJguIa5vmPWrdru6::wzHEdvlNs2ucI3nEfjEm:eKKIn6mRQse+V5x+::F4gmsPRYKJJzZCqTDcMZ:vY5oGYkyQpdoEL4R::6GokjL0BgDvBjRX/:rxQBtUq9AFbJSFz3TaQa::fD6eFxQQ1Qi2wUcd:wRMih8gDBHUtpVKXLQjB::w7WhTwcaqxziacBO:GjLX1yQsyIL4WpfNdCHm::5fEf+0Evy9AnriI5:FNOEDqZ6CSvBV8eA7cLI::p8zEVds3JrkfOqgogDkO:p+gXrBAEdSjL7RHK::wvhrCFIzU5BUApRggVnd:71BhjpXBZuB9UcKL::5zqqa6P6lPwLcIyCuCla:HC8Vb5MDVcNCu5ty::ZaoEbIR0XIsbJ84kD7AO:HLc//WGPLcNGSHIb::GD1S50YIpylZXqIGQoCs:v0SaCGCq01a3bHWz::HsC6yBSciR3S9bBM:KkVixOkv1zA3KJMKM8Lj::G7Xf6aWWk6651OhN:FFhNx5GoP16Hz30plSay::TFfMa+/90AyaMXIM:kOX3HA8THzuXHDgI56qr::W17QpLUlc7mG5I3j0rC2:CebJVZx4AJPtYidm::+STpoT2GY7lTkfWC:04B4DRfgJjvu7lBspMrp::KVDXcf1gN5u6YRzc:r9OHqhn3n5G87sgkhyMC::wxHAw1/yCkmFYPs6:s9CVClpnvzKBEdqlUZH7::4ssu4TS3WnUVKrGeupsK:zA8kFBeJDd8x9Wdc::1o2XMcNWr4uevfKC:GAiZSM6rRV01SmawyDpd::iMhHpND0jsS9Z1XxKc8Q:pCcRHvpIXYOtz06Z::WH3D7pnw+DczLQGe:zIT7wSBMdikJyXNxXWbH::yGjrunVNpIzoeXILeKzF:4CQwop9vQYVjip25::vUM5ALYIGXHHgL9pTOZJ:j/i3Yom0ka2/HC8L::KGCmvSVa9Zbw7Xx1:ZtvdR27QckySsAIJRNSK::yWIL0irFIScYsvEd:zkdWpG2vOCczNxTseSBK::ArCgx0ekh9RTn8Qc:Ujc8M9Qawoov6UKz9j65::QWPixXQIerpvBO3TggPr:v3rx8wHJRM7B4Jtt::zOSZ3AF1AZWbZvSk:uFyY7ZezlF5DW2nk1m5a::NvWGjH0X9oUFkoNl:zEi9pI5LWya6dyTgqshK::PbsDwlVSXng0iK48xNRV:5G9pK0tTCnBgKqKQ::lCoVxxqITBGYclF8iiJE:gEiRYT8gnQHE4u2g::LpYY72psoNqW5N2w:2p3J8lDszQhzf5OhWeZ6::QnSrSck9m5eiyFZ9rhLe:6i7/oarEWQxUVBqe::dnaYBCdagELlvAZ7xgEC:2x0mzGZgF59rW8r5::TEhGShujQmg2Y85X:xJBaS8z0rQVZNcRIfrQM::5zGrwMX2Q6/cOUwm:R8322qmAnMOGLEitozmG::9fQ8yHTzIOOWXlzn:lkHbDJwWZ4coAPpYxGkd::Owhn5H1lJIX34ble002B:W2wvbxFWlW8W0bXS::QpELCngz+rbzpdyI:GBOCivwgxLTGsZDCa0F5::LrVxTHwNlI/fGcHw:Z92d9UyUTS5rxY8Q0JZO::3r8OfiBncE1MlYadyKD2:TKFIOE2DhYobhtD/::aVTNURFoRb13MDFZ7SbI:058VF4HUTsc3UvyN::fm7gFODHQAz4LXUm:J6jLwhFUM1FgJbvLIELi::bqXF6O5xbTG8Fn8xgfx6:0Z1wcb2+HWZbQ3qb::Dln2SXSJj5MFqPR77dzK:U8xMKtkvhK4sXfpI::5htD7c0WJHCp2fJmGav3:eXwpR7k9HGzTVXpD::Ry6CUM56Nkt3PGC6bIyG:JBNoh99IA/pwdk+/::AXR7ZxRTLXQ4drGy:Gr0kJPW65rNVXS0C90xk::+aOylUFOBqbnHXTC:l8u2dLbArpoykPpnhk1D::rftKvq3IjHEvSyTo2xyc:7tuilt+daJvGSs0J::6UOw97r5U9rWQPYd4IYA:JBy7M+A/+CPX8Bix::orZ476eDEqsSN2ZcMWHe:lBRV4k63SFR9uEVV::/1hFr//Au2w8hDDr:RcYJbrBiQQESz8lukbCD::uY7xlzrLYj14DNBG0n4J:yipgAQJRDZwsOF3q::vpbCIr7pArhQhCk9asiX:QgyBtGsen8YumUzJ::vvv4MNVNUUzsDN2keGRk:KZ2G8cPwIvcACxFi::eSk4AmpAIwZazdDG:uCXgKoBKEKV0MVjc6KZ9::DJUcwVkFuRIc81/C:fQ3OFUatmvEvtzFCqiNP::qvMUd9Gvp3HBjyvVRwX3:ye/lET5mfhUTE34Y::O0E05kGgkYvOH77E:L9UKFQRzqjKAXFrmdqMa::omRo1EM2OWWHHzbK:igSfwWwn9YW2QRv9ahI0::oqGhmjETJiK1c2PdtJ4t:fimWZ2rdEWBsTUx/::66+Y0dFHc0FyRwtW:GWQSlJh3hGX0TnYLwzwJ::6i2ng1Gn4pFy5T847rqi:bQef0RW97PVw9DcU::LeWidaiauK3oxR4tWOzj:d+pFxXDAtlO4DjNa::wteXHraU4OwERyUEXkWY:bItwJrAS6eksDUeU::1GQdu2R1Ssky3+tx:gC77EGmPMoghsstVSJiS::xCgmUg30PaFEz90A:Du04RPkM64qV1LzzLwIP::aDtdJExW35AlkZndx2jY:StrdTkjmecU3ruSp::nACQXNgKxCiXkHGp:u5R79Fin1tuCZg1pOWL7::8srSselReQGr/Yb5:7tu7N8tJCdMW0XEaIhKb::X4a6YQoeqbnkQnyIWAa5:EmFS8xFxmbSBTLKg::BYna2ORwYFBqCtTS:aprQsyj2n5pxhf6qUk2o::5hnx2S1sPdFrYfjIWcPf:f4ztipcQVnNhmY8K::qWwaVFwR8x7pyRwTmwXDkel6VSAXbPRkptimgM33n/DOH/9dscPo0osEbHj0h9WUa+lFK1ctOxjwPU12w9BI8g==:CFFfnABB3xuNb0yZqV2D,UOJxiqX8eaPWPZNd87el5spZ3C3Nzfxy2WwzhPManQ4=:EAioAcR7eP/rQzqzp9WhRqZ0thWoq2Nd2MFezgZrgC8=:vU+/EILhNkIrY8e/lhccPR/IisHIFni9+efQSMuVvvQ=:C7NYuk1zAechmHQd3d3+sOhJsJBVWlFoaIAYDuhFCVA=:JC4euxAtKRUnKQwCGz2VIepm8BkpcNwyCbnKFT972Wc=:5z/r+i998uJGObP7Q2eZNH6s27yLdnrQ2Jw6B8E5qCk=:ZcrKFOngJZXxO6I8zWnBpqRvXap7lwlavh3TJUKp/cg=:DM4dvareR4N0+XFdIKJzYjV4f17KM/1rCP/48rlu9sE=:04zBfdP+5lIFilstGKqLpQXP+s5cnNXIwXX+unTe6qs=:nQTxUC7G+Dm8Xu5cdrO/WAJKNoBscKtlNof24emrZVk=:Jh3RHp8+r8fBsUuFlbDZAONatBNgVvqndrXf6uPrIgc=:1DO9Se2lLQtvgrAhOOMAgWUwxbOFMIIcXZKBeQtzoqs=:ykOgoDZGiFtNyMein2njVM19obIohjOdCM/HAwuQa7U=:VjvhVqrVlcSeOd0QR0kc59r86m1LNIEWWAh9cfTMDA8=:OgWfcKIq5OuGKi++W6QsRhPbbUel8tgz/DJZqnfhKx4=:1ckSqYomP2MeTktHD0CM0U0H5esFOEJTjMLflArDAtU=:QXRlbpthSYwGyU/SUnLFpdOQ+ciax0uDVQWe1lGnTOc=:kgPYvTDml7pAq/7XCNqv9kfydccRH4ObdMU0uAupJek=:WTyuno8Sgfhu/TWy4VfyO40hK+0k12rmrpnUJJ2hU6Y=},{1},{C2C700D49735291DC3E02FF3BEA7E60BEDE4671C59A30E6B44B55CCDCE085661},{2l6QSfeWjer/E9xe:ZRKCICTBWXYM5R0CTskl::KV4k28IfeK0PBTyb:bLBSxNmWQ4J5XHZWbDIV::c9pKGp74CjYXHgnD:5jqGG2l7JALZyCanhdpv::8fyUTY2hSGreUG89p4nG:ZYy3D/sRTYzHoPgy::eyB66DRl5d3ByDVSsl04:ImcSAJxybCtUUFv5::1G05tO2aZ4s0OpDy6xN0:1EHevJp3tZ1i231z::nCKIHOSkFM2qDaFq:m6tYYRbfFow7FNszG1Eh::trZKRgBboqokj3pW:bidU7EUSSnng1Opg77tG::jmuhsiiZqMwce5Rv0DrZ:mnqtF0d7p5jQKix6::ePfKOJkHKhqNWnZtQMxi:nXAjW/RdVPUXYZUo::csBC64BQr9vlYy7I:tevPbaoRuacilztlM7Ql::J6MUCtxGyrGJRdQp:IAE7TC5gtFYGW6FfHXt8::yvu9KeSeuGMpudXq:A6zBrhUzmQ4q1UT07r4V::0oHTu8YwoSYqxYzL:okIpF42gNNXvY7IbQlav::cqJl68vfmz6SCzvRoWLN:Wr+XnjrWLS2v3vDt::VrAB7s9MNfEZJpOu:vLYqiEoRfdMPE4dNPdQr::7M/4eTRC5gig59tS:8AeKPPuEU3VW7HMZZn3f::5icfk+wwAdG0369U:uRnaJ4lArlvNHslaeVND::wVmLgZqZEU5csaqWuTdH:JnlmAuW9PTYNAcNp::EqvmKPsgjdlirT67MZYt:/FySqfQnszqBE4Bc::tah9Uu2CwMLGdAKq:6cvuAmcqHPjkFVyXKOFW::FCRiagdXQ2jC9xjLq9uw:W56i60Hmm57Yg+6p::wv7yNthdRODAhIRsQ6x1:YqVPFY2Aw4cP+kVE::cGCfutL4WjQfWpUJ:j7nXxPpkt2x8mLJqMJjv::oIo4DUDFVHzyrOpz:jd7Wyjz5oWVIEWHu5w7d::cgwyaOND4o4JfYTyH53e:xW1NRw6s40khx45c::lV2GLFa0HKOI0UxnHQsW:uOSKLbn6t0CaElq8::FIu0v64du58uJmNkVpEz:rvMtkxG5G2YYY9em::EJNqEcnLJcXZ71aI:m8l2QKrEfVjCFb2wNcKU::F7sxHOOnrSvkPFsK:dTM33qudMdLavTlznfiW::ZQJLvcOESVFD6QBQ:qo00TAi3HnxleGZuooO6::WO9Db65MUkJctfuhHM5v:HdrvcpGRKXVbmsDr::vJ+W4J2sBaXIpYFq:g3GOVK10PxLgdYOj5tEP::Qme1x8KV9tOW0vUfg44O:oDI3JbszoJOHt3Fo::ItblO8QDgYi8PpGP:R30Xl9zUeVRHqnGe6018::To7Az7zLTX4Pxnfi:oVCEo8oHQXv0rYIahRAr::Q3XOeEFjv1LKYip00uBu:kSlX/DXkWx6Nv3jU::1uI7WNH+K9YxFG03:SGQG7rqlFzZKntZNvRrX::WQiErkX1QBuX1Y1qEouI:e9fvJqAV6cX5UzeU::C4mhMQvQQCjBZ2EN7iGd:SBGuakdgXcRafs/Q::qTzPiRPBki2T8lSk:JewQfVnGhYs7dcHGPBA2::pzOr8iF2WNJHOXz1Q4FB:obvwUNrAB+zCCoV8::ra0Ed0wFj6sT7SXWF3dt:58sR44Ln9jnIsEwG::h6HEQV7tQqQNn67giz8w:zIwiQZSnyTPSXdFw::Jhj7pDmErdGBa28M1Je7:VdHyV6ebsjTuMrP8::KpXlzXYNo6ks0kKAYL4X:zjrJAZKCt+G6VQ21::Kr8wLdbN5/QSiYiO:KmuoA2cFdS0IeJE6ocLP::FNrsWwqk6w8QHykRk1UF:TnrghYsh5fQLZTVG::dO19biSK7T4uE6t04LUE:pavvmv7ylG7KM0cN::ESArMNcqm4WqodL5:jDMMS1qTcBjKEESmTdni::6f1Dzs5mH344Yz0i:v4LWjZIvV5Z2ydzArTEl::b0jh9EDWahU0dLPXaynd:H+PB6uVsPTDMra9T::mNTYptdIcqhe0ztqa92E:L52cmuwg/SFDp6f3::ZxgCVvTX3YNVQReT:MBaz4betd5ftTzbKdI13::Fxioymd0Gc9WTLVQSTvs:mLYWW/MLwLl8H5vu::trSHKFUiyT8DwKCVn6MR:6CIbrZXA4Jle+M8P::Y4i19FfdJEzda5Bk9eZr:wQ+FaNGpuZLjqRhw::w7sqp3fQAobyvFIK:2uOCO6x0BkDqirVhyMHa::WQYKOuVKC3cZzmjc:J8ZDCCoeSnl5JAnXZtG4::JFo5H4TQyG8RsNJg:fmXeFACyG0WV2DzC47LF::epv6NyqUVpwYUChg:U3CtFmDJRdtyaBgIKncq::UPrRULnwH1ftz25o4Ici:lwx1IhgyRD8+8Rqs::KIAD8+T9e7xrMw8a:987EoVwI485PzE3b0JNH::ag7DS5YnQh+0crQJ:PywsX07kEuX25mN7DAnW::omr12LVlTM4/EU4z:M5OQMwtbBpXeHpRF2kzw::EuDJhUPlIDpFBwOzIkjg:vPSqr0P1dofP+HbS::MOFDwjp+EcRnB1th:BzNvIgJNSCpaQrup50Ez::064pM2pW0IYVPifh:m9pWGWKOPVJojMqOFVnP::Ll7pfT7EuQc1D4hb:PcYW2tL1TgYT5GuG3tdh::w7Rpjb0vsUxljC1b:juX3VA9ELUWVnCE0Bw2M::4FOczhPJVoKmixTs:vEgq7Db3yvtPd728sqXX::GjWrbv7VGPmyvFtTeB0L:V20ruxrSneWdWaFT::pd93bJ2dR36WtdxSoE7R:g63oYPjKPARB7Ce4::rCqp3xdJREaqWVqwlr4p:WPgfEVaomgAVLvnT::FMdqVn0Xh38hae4ztOSy:J6hdFSdkO1bOdJZB::Lo/ah0A6meQo0eIq:JDkJB8pISwckxHI9sTvz::UlgeUXIbt0op7epz5J8R:7qu75+R0tZMdD3wN::WiXduZgjgQSQAfv5SvRa:kQridZmynVW1uLb0::tXxEjbX72lKy7DtdJhUF:hXV/vJy21rHUGct2::ZzJyTCaHtVmnWzU8:ZpM5O2alFrrpeXxLVvdB::R2j0SW8XUxwoUQ993EpX:t5/laHNU6/umwl+4::aTEEODXZa543rV6q:5gPA0uvlzyfKVYu7mShP::XEkmyRQgUtsEjhdyZZOH:m8WA22QbZE7TqNcg::3u2MUn78x5O1K6TL6SwI:N2Aj5/t/qJZ+n6St::5Tz8KNtUU1gZmUE6:oDBnayPakwfwkWO8Ir5w::9qCAvTU4GUjIPDUE:AFHovx6kYSlqpYCPW0e4::SOkFmsvFB8c0uy/l:kyBTRzPIbuIGNqWPvCJd::Cy78FTo1Re+BPu/R:3DBFwe4EOGeASvZolvt0::rl4BbbzVUILEtI4EYyoY:rBBy2qIRhwXmbEyY::whg6j3TPEGrEQyCJ:75mVVlHe6Y4PRnzYv6cz::UnP0PmldHgIgzXwh:ZrobkXB8AdYYIPbQwlfN::nyTqbYnSfsawNkoIy0Un:knT/qJLV4wA6xZiO::xol0RWdDMtEKMBMr:jIluMbHPmipNlg6MgQs9::u9nNGzoXnVSQRvMJRB6b:YeQrx6qh3idgI0Dn::qwhFZ2hXD5XM/0EC:LFFvZeNF86CrAfFpZ69h::SlWHD6zAvbhSzJngFie6:hHaVkONS0ig1u1Xt::FgaeY6nBhNJwvTua:z6ZMfTjZd1tA3BxOTwG1::b4fdP++X35Nt/+W0:3lB55gcsCN78wtIBamRO::pxeYyNNlpqEkfuV10SSK:9oX/4lAPYzJRaT/z::ktUmlaJ4OwKYfAdhTY6p:pThtk9sWmcllKtfEjva+6OOsp7QzlWyz+XvijlrY2c16EouqazeiohT505glg8uENVvX5hn9KBdc2lPTM8lXOQ==,6tvmSRlfr/oS7HTLw/SrGBF1XFsm+5meLuFexCoTogQ=:3Jn/GX2ycficclPnC7bLZym8dtKFxDAVegB/JKPEs38=:y+7LxcqC6sSN1Ajitkpizsavlm4Tr34Rnge0PJ3MW9U=:fktixHpB0Uf2KBjDf+OCysIGMfrKxIECBIFkPSaEtW8=:J1lcBhEH5Qx8xfmhIRtWHWM3BVFk7cDbqLMZnwh3J2M=:ptlUZB78Q0/N/b2rIoI8y8WRiKwBG4/NioNVZUjeius=:BXMAQVXiPOmN6s7HAJ6TDxM1NjHpidW84uFEmw1vx2o=:z5+V6HQ2W7qS7eDU+dHFpAoprbXudhGbWR/k8zeZZso=:qbhRJcGcWhxgZw+cwKbDPVSFpfNSk5Hy3h2ebj+CHPA=:bt3Nbc28sJmQErHL1SaYr2evyhUdxfrSoAB6pYmZ8iI=:37vFuBWBpBEVrA1YG2AH8ggUZMVFkTx3pXECSEhjOhk=:ANVu9pSAA+SYgN9A+/iGX7Nxw262owxjazJrwAgKHRg=:3GH/1qhnyGpMtcAJHxC2NS9SRuuJxQVPO7ebEJ+WJYw=:pMFfda5uFbXgd/IeScYVpGd0tV7vDyInrRZUP/SUldk=:6mQ+wTLu6w8thiV2Ly0FFDi1/V2RpbMbRp7UTbrqFnA=:pKHIiNKGehjvI2njqAyVxQYzOKmoSbQxzZB1AVfiYKU=:2ONHUHMWvTjuML1x2uphYYvCxpdLVbASpj/E4DwSQOg=},{1}");
                 out.close();
             }
-            Scanner scan = new Scanner(blockchainFile);
-            while (scan.hasNextLine()) {
-                String blockString = scan.nextLine();
-                Block toAdd = new Block(blockString);
+            if (Constants.BLOCK_STORAGE_VERSION == BlockStore.FORMAT_BINARY && !new File(dbFolder + "/blockchain.v2").exists()) {
+                //First start with binary storage: carry over the existing text blockchain, which at least holds the genesis blocks
+                int imported = blockchain.blockStore.importBlocks(new BlockStore(blockchainFile.getPath(), 1, BlockStore.FORMAT_TEXT));
+                System.out.println("Converted " + imported + " blocks to the binary blockchain format.");
+            }
+            BlockStore.Reader reader = blockchain.blockStore.openReader();
+            while (true) {
+                Block toAdd;
+                try {
+                    toAdd = reader.readBlock();
+                } catch (BlockFormatException e) {
+                    System.out.println("[CRITICAL ERROR] MALFORMED BLOCK IN BLOCKCHAIN DB FILE: " + e.getMessage());
+                    continue;
+                }
+                if (toAdd == null) {
+                    break;
+                }
                 if (toAdd.validateBlock(this.blockchain)) {
                     blockchain.addBlock(toAdd, true);
+                    blockchain.blockStore.attach(toAdd, reader.getOffset(), reader.getLength()); //Body is dropped, it's already on disk
                 } else {
                     System.out.println("[CRITICAL ERROR] BLOCK " + toAdd.blockNum + " NOT VALID BUT IN BLOCKCHAIN DB FILE!");
                 }
             }
-            scan.close();
+            reader.close();
+            blockchain.historyIndex.trimToHeight(blockchain.getBlockchainLength());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -151,6 +202,28 @@ public class CozyDatabaseMaster {
     }
 
 
+    /**
+     * Passthrough to RecentActivityIndex.getLastPoSHeight()
+     *
+     * @param address  Address to look up
+     * @param blockNum Height of the block about to be mined
+     * @return int Height of the last PoS block mined by address inside the cooldown window, or -1
+     */
+    public int getLastPoSHeight(String address, int blockNum) {
+        return blockchain.activityIndex.getLastPoSHeight(address, blockNum);
+    }
+
+    /**
+     * Passthrough to RecentActivityIndex.getLastSendHeight()
+     *
+     * @param address  Address to look up
+     * @param blockNum Height of the block about to be mined
+     * @return int Height of the last transaction sent by address inside the cooldown window, or -1
+     */
+    public int getLastSendHeight(String address, int blockNum) {
+        return blockchain.activityIndex.getLastSendHeight(address, blockNum);
+    }
+
     /**
      * Passthrough to Blockchain.getAllTransactionsInvolvingAddress
      *
@@ -160,4 +233,16 @@ public class CozyDatabaseMaster {
     public ArrayList<String> getAllTransactionsInvolvingAddress(String addressToFind) {
         return blockchain.getAllTransactionsInvolvingAddress(addressToFind);
     }
+
+    /**
+     * Passthrough to Blockchain.getTransactionsInvolvingAddress
+     *
+     * @param addressToFind Address to look up
+     * @param fromHeight    Lowest block height to include
+     * @param limit         Maximum number of transactions to return
+     * @return {@link ArrayList} Transactions in simplified form blocknum:sender:amount:receiver
+     */
+    public ArrayList<String> getTransactionsInvolvingAddress(String addressToFind, int fromHeight, int limit) {
+        return blockchain.getTransactionsInvolvingAddress(addressToFind, fromHeight, limit);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+package io.codepace.cozy.db;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Rolling window of recent activity per address on the longest chain, used for the PoS eligibility rule:
+ * an address can not mine a PoS block if it mined a PoS block or sent a transaction in the previous 50 blocks.
+ * <p>
+ * Checking that rule used to mean fetching 50 blocks and splitting every transaction in each of them. Instead, the heights at which an
+ * address mined a PoS block or sent coins are recorded as blocks are connected, and removed as blocks are disconnected. Anything older than
+ * the retention window is pruned, so each address only ever holds a handful of heights and the eligibility check is a single map lookup.
+ * <p>
+ * The window retains a few more blocks than the cooldown, so that a reorganization (forks are dropped once they fall 10 blocks behind) never
+ * needs a height that has already been pruned. The index is rebuilt in memory as the blockchain file is replayed on startup.
+ */
+public class RecentActivityIndex {
+    public static final int POS_COOLDOWN_BLOCKS = 50;
+    private static final int RETAINED_BLOCKS = POS_COOLDOWN_BLOCKS + 20;
+
+    private HashMap<String, ArrayDeque<Integer>> posMinedHeights = new HashMap<>();
+    private HashMap<String, ArrayDeque<Integer>> sendHeights = new HashMap<>();
+    //Addresses recorded at each retained height, so pruning and disconnecting don't need to touch every address
+    private HashMap<Integer, ArrayList<String>> addressesByHeight = new HashMap<>();
+
+    /**
+     * Records the activity in a block that was just connected to the tip of the longest chain.
+     *
+     * @param block Block connected to the longest chain
+     */
+    public synchronized void connectBlock(Block block) {
+        int height = block.blockNum;
+        ArrayList<String> touched = new ArrayList<>();
+        if (!block.isPoWBlock()) {
+            record(posMinedHeights, block.getMiner(), height);
+            touched.add(block.getMiner());
+        }
+        for (String transaction : block.getTransactions()) {
+            if (transaction.length() <= 10) {
+                continue; //Empty transaction set
+            }
+            String sender = transaction.substring(0, transaction.indexOf(";"));
+            record(sendHeights, sender, height);
+            touched.add(sender);
+        }
+        addressesByHeight.put(height, touched);
+        ArrayList<String> expired = addressesByHeight.remove(height - RETAINED_BLOCKS);
+        if (expired != null) {
+            for (String address : expired) {
+                prune(posMinedHeights, address, height - RETAINED_BLOCKS);
+                prune(sendHeights, address, height - RETAINED_BLOCKS);
+            }
+        }
+    }
+
+    /**
+     * Removes the activity of a block that was disconnected from the tip of the longest chain.
+     *
+     * @param block Block disconnected from the longest chain
+     */
+    public synchronized void disconnectBlock(Block block) {
+        ArrayList<String> touched = addressesByHeight.remove(block.blockNum);
+        if (touched == null) {
+            return;
+        }
+        for (String address : touched) {
+            unrecord(posMinedHeights, address, block.blockNum);
+            unrecord(sendHeights, address, block.blockNum);
+        }
+    }
+
+    /**
+     * Returns the most recent height, within the cooldown window before blockNum, at which the address mined a PoS block.
+     *
+     * @param address  Address to look up
+     * @param blockNum Height of the block about to be mined
+     * @return int Height of the PoS block, or -1 if there is none in the window
+     */
+    public synchronized int getLastPoSHeight(String address, int blockNum) {
+        return lastInWindow(posMinedHeights.get(address), blockNum);
+    }
+
+    /**
+     * Returns the most recent height, within the cooldown window before blockNum, at which the address sent coins.
+     *
+     * @param address  Address to look up
+     * @param blockNum Height of the block about to be mined
+     * @return int Height of the block containing the transaction, or -1 if there is none in the window
+     */
+    public synchronized int getLastSendHeight(String address, int blockNum) {
+        return lastInWindow(sendHeights.get(address), blockNum);
+    }
+
+    /**
+     * Checks whether an address may mine a PoS block at the given height.
+     *
+     * @param address  Address that would mine the block
+     * @param blockNum Height of the block about to be mined
+     * @return boolean Whether the address neither mined a PoS block nor sent coins in the cooldown window
+     */
+    public synchronized boolean isEligibleForPoS(String address, int blockNum) {
+        return getLastPoSHeight(address, blockNum) < 0 && getLastSendHeight(address, blockNum) < 0;
+    }
+
+    /**
+     * The window is the heights blockNum - 49 through blockNum - 1, matching the rule as it was first written.
+     */
+    private int lastInWindow(ArrayDeque<Integer> heights, int blockNum) {
+        if (heights == null) {
+            return -1;
+        }
+        Iterator<Integer> newestFirst = heights.descendingIterator();
+        while (newestFirst.hasNext()) {
+            int height = newestFirst.next();
+            if (height <= blockNum - POS_COOLDOWN_BLOCKS) {
+                return -1;
+            }
+            if (height < blockNum) {
+                return height;
+            }
+        }
+        return -1;
+    }
+
+    private void record(HashMap<String, ArrayDeque<Integer>> index, String address, int height) {
+        ArrayDeque<Integer> heights = index.get(address);
+        if (heights == null) {
+            heights = new ArrayDeque<>();
+            index.put(address, heights);
+        }
+        if (heights.isEmpty() || heights.peekLast() != height) {
+            heights.addLast(height);
+        }
+    }
+
+    private void unrecord(HashMap<String, ArrayDeque<Integer>> index, String address, int height) {
+        ArrayDeque<Integer> heights = index.get(address);
+        if (heights == null) {
+            return;
+        }
+        while (!heights.isEmpty() && heights.peekLast() >= height) {
+            heights.removeLast();
+        }
+        if (heights.isEmpty()) {
+            index.remove(address);
+        }
+    }
+
+    private void prune(HashMap<String, ArrayDeque<Integer>> index, String address, int oldestExpiredHeight) {
+        ArrayDeque<Integer> heights = index.get(address);
+        if (heights == null) {
+            return;
+        }
+        while (!heights.isEmpty() && heights.peekFirst() <= oldestExpiredHeight) {
+            heights.removeFirst();
+        }
+        if (heights.isEmpty()) {
+            index.remove(address);
+        }
+    }
+}
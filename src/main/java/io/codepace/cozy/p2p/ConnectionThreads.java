@@ -0,0 +1,69 @@
+package io.codepace.cozy.p2p;
+
+import io.codepace.cozy.Constants;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts the threads that serve a single connection: the input and output threads of a {@link PeerThread}, and each {@link RPCThread}.
+ * <p>
+ * These threads spend nearly all of their time blocked on a socket. With -Dcozy.virtualThreads=true they are started as virtual threads,
+ * which cost a few hundred bytes each instead of a full platform thread stack, so thousands of idle peers and RPC clients are cheap.
+ * Virtual threads only exist on Java 21 and newer, and the daemon is built for Java 8, so they are looked up reflectively; on older JDKs
+ * platform threads are used instead.
+ */
+public class ConnectionThreads {
+    private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
+
+    /**
+     * Starts a connection handler, as a virtual thread if they were requested and are available.
+     *
+     * @param handler Handler to run
+     * @param name    Name of the thread, for thread dumps
+     * @return Thread The started thread
+     */
+    public static Thread start(Runnable handler, String name) {
+        return start(handler, name, Constants.VIRTUAL_THREADS);
+    }
+
+    /**
+     * Starts a connection handler.
+     *
+     * @param handler Handler to run
+     * @param name    Name of the thread, for thread dumps
+     * @param virtual Whether to use a virtual thread if they are available
+     * @return Thread The started thread
+     */
+    public static Thread start(Runnable handler, String name, boolean virtual) {
+        if (virtual && START_VIRTUAL_THREAD != null) {
+            try {
+                Thread thread = (Thread) START_VIRTUAL_THREAD.invoke(null, handler);
+                thread.setName(name);
+                return thread;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        Thread thread = new Thread(handler, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return boolean Whether this JDK can start virtual threads
+     */
+    public static boolean virtualThreadsAvailable() {
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    private static Method findStartVirtualThread() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            if (Constants.VIRTUAL_THREADS) {
+                System.out.println("Virtual threads need Java 21 or newer, using platform threads for connections.");
+            }
+            return null;
+        }
+    }
+}
@@ -1 +1 @@
-package io.codepace.cozy.p2p;import java.io.BufferedReader;import java.io.InputStreamReader;import java.net.Socket;import java.util.ArrayList;/** * InputThread only reads data from a peer, and never sends data to prevent blocking and waiting, or some terrible constant back-and-forth keepalive. * All data read in is stored in an {@link ArrayList}, with each line stored independently. * Data is accessed through a passthrough all the way through PeerNetwork. */public class InputThread extends Thread {    private Socket socket;    //Private instead of public so that object can control calls to receivedData. Acts as a buffer... the same data shouldn't be read more than once.    private ArrayList<String> receivedData = new ArrayList<>();    /**     * Constructor to set class socket variable     * @param socket The socket to use for input     */    public InputThread(Socket socket) {        this.socket = socket;    }    /**     * Constantly reads from the input stream of the socket, and saves any received data to the {@link ArrayList}     */    public void run() {        try {            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));            String input;            while ((input = in.readLine()) != null) {                receivedData.add(input);            }        } catch (Exception e) {            System.out.println("Peer " + socket.getInetAddress() + " disconnected.");        }    }    /**     * Doesn't actually 'read data' as that's done asynchronously in the threadded run function.     * However, readData is an easy way to think about it--as receivedData acts as a buffer, holding received data until the daemon is ready to handle it.     * Generally, the size of receivedData will be small. However, in some instances (like when downloading many blocks), it can grow quickly.     *     * @return {@link ArrayList} Data pulled from receivedData     */    @SuppressWarnings("unused")    public ArrayList<String> readData() {        //Don't want to mess with the ArrayList while run() is modifying it.        ArrayList<String> inputBuffer = new ArrayList<>(receivedData);        if (inputBuffer == null) {            inputBuffer = new ArrayList<>();        }        receivedData = new ArrayList<>(); //Resets 'buffer'        return inputBuffer;    }}
\ No newline at end of file
+package io.codepace.cozy.p2p;import java.io.BufferedReader;import java.io.InputStreamReader;import java.net.Socket;import java.util.concurrent.BlockingQueue;/** * InputThread only reads data from a peer, and never sends data to prevent blocking and waiting, or some terrible constant back-and-forth keepalive. * Each line read in is put on the network's inbound queue, tagged with the peer it came from. * When the queue is full, the thread waits for room before reading more, so a peer that sends faster than the daemon can keep up is slowed down by TCP * instead of filling the heap. */public class InputThread implements Runnable {    private Socket socket;    private BlockingQueue<PeerMessage> inbound;    private Peer peer;    /**     * Constructor to set class socket variable     * @param socket  The socket to use for input     * @param inbound Queue to deliver received lines to     * @param peer    Peer the lines are tagged with     */    public InputThread(Socket socket, BlockingQueue<PeerMessage> inbound, Peer peer) {        this.socket = socket;        this.inbound = inbound;        this.peer = peer;    }    /**     * Constantly reads from the input stream of the socket, and puts each line on the inbound queue     */    public void run() {        try {            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));            String input;            while ((input = in.readLine()) != null) {                inbound.put(new PeerMessage(peer, input));            }        } catch (Exception e) {            System.out.println("Peer " + socket.getInetAddress() + " disconnected.");        }    }}
\ No newline at end of file
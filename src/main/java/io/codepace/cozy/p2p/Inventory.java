@@ -0,0 +1,119 @@
+package io.codepace.cozy.p2p;
+
+import io.codepace.cozy.LruMap;
+import io.codepace.cozy.db.Block;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps track of the blocks and transactions this node has, for hash-based relay.
+ * <p>
+ * Instead of sending every block and transaction in full to every peer, version 2 peers are sent an announcement with just the hash
+ * (INV B|T hash,hash...). A peer that doesn't have an announced item asks for it with GETDATA, from one peer only, and is sent the full
+ * payload. The inventory remembers which hashes the node already has, which hashes have been asked for (so an item announced by several
+ * peers is only fetched once, unless the first peer doesn't deliver in time), and the payloads of recently relayed items, which are what
+ * peers ask for.
+ */
+public class Inventory {
+    public static final String TYPE_BLOCK = "B";
+    public static final String TYPE_TRANSACTION = "T";
+    public static final int MAX_HASHES_PER_MESSAGE = 500;
+    public static final long GETDATA_TIMEOUT_MS = 10000;
+    private static final int RELAY_CACHE_SIZE = 1000;
+    private static final int HAVE_SIZE = 50000;
+
+    private LruMap<String, Block> recentBlocks = new LruMap<>(RELAY_CACHE_SIZE);
+    private LruMap<String, String> recentTransactions = new LruMap<>(RELAY_CACHE_SIZE);
+    private LruMap<String, Boolean> have = new LruMap<>(HAVE_SIZE);
+    private HashMap<String, Long> requested = new HashMap<>();
+
+    /**
+     * Records a block as had, and keeps it around for peers that ask for it.
+     *
+     * @param block Block being relayed
+     */
+    public synchronized void addBlock(Block block) {
+        recentBlocks.put(block.blockHash, block);
+        received(block.blockHash);
+    }
+
+    /**
+     * Records a transaction as had, and keeps it around for peers that ask for it.
+     *
+     * @param transaction Transaction being relayed
+     */
+    public synchronized void addTransaction(String transaction) {
+        String hash = transactionHash(transaction);
+        recentTransactions.put(hash, transaction);
+        received(hash);
+    }
+
+    /**
+     * Records that the item with this hash has been received, whether or not it turned out to be valid, so it isn't asked for again.
+     *
+     * @param hash Hash of the block or transaction
+     */
+    public synchronized void received(String hash) {
+        have.put(hash, Boolean.TRUE);
+        requested.remove(hash);
+    }
+
+    /**
+     * @param hash Hash of a block
+     * @return Block The block, if it was relayed recently, otherwise null
+     */
+    public synchronized Block getBlock(String hash) {
+        return recentBlocks.get(hash);
+    }
+
+    /**
+     * @param hash Hash of a transaction
+     * @return String The transaction, if it was relayed recently, otherwise null
+     */
+    public synchronized String getTransaction(String hash) {
+        return recentTransactions.get(hash);
+    }
+
+    /**
+     * Picks the announced hashes that should be fetched: those the node doesn't have, and hasn't already asked another peer for in the
+     * last GETDATA_TIMEOUT_MS. The picked hashes are recorded as asked for.
+     *
+     * @param hashes Announced hashes
+     * @return {@link ArrayList} Hashes to ask for
+     */
+    public synchronized ArrayList<String> selectMissing(String[] hashes) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Long>> it = requested.entrySet().iterator(); it.hasNext(); ) {
+            if (now - it.next().getValue() > GETDATA_TIMEOUT_MS) {
+                it.remove();
+            }
+        }
+        ArrayList<String> missing = new ArrayList<>();
+        for (String hash : hashes) {
+            if (!hash.isEmpty() && !have.containsKey(hash) && !requested.containsKey(hash) && missing.size() < MAX_HASHES_PER_MESSAGE) {
+                requested.put(hash, now);
+                missing.add(hash);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @param transaction Transaction to hash
+     * @return String Uppercase hex SHA-256 of the transaction, used as its inventory hash
+     */
+    public static String transactionHash(String transaction) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return DatatypeConverter.printHexBinary(md.digest(transaction.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
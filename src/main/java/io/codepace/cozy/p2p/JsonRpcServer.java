@@ -0,0 +1,246 @@
+package io.codepace.cozy.p2p;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static io.codepace.cozy.Util.*;
+
+/**
+ * Serves the RPC commands over HTTP/1.1 as JSON-RPC 2.0, next to the line protocol on port 8016. Requests are POSTed to / as a single
+ * request object or as a batch array, and connections are kept alive between requests.
+ * <p>
+ * The method is the command name and params is an array of its arguments, in the order the line protocol takes them; integers are
+ * accepted as well as strings. The result is the command's response text, exactly as the line protocol returns it. So
+ * {"jsonrpc":"2.0","method":"getbalance","params":["address"],"id":1} is the same as the line "getbalance address".
+ * <p>
+ * All requests of a batch are started before any of them is waited for, so the read-only commands in a batch (like a thousand getbalance
+ * calls) run without a round trip each.
+ * <p>
+ * NOTE: Like the line protocol, this provides no authentication. Do NOT open its port (8017 by default) to the internet.
+ */
+public class JsonRpcServer {
+    public static final int MAX_REQUEST_BYTES = 8 * 1024 * 1024;
+    public static final int MAX_BATCH_SIZE = 10000;
+    public static final int HANDLER_THREADS = 16;
+
+    private static final int PARSE_ERROR = -32700;
+    private static final int INVALID_REQUEST = -32600;
+    private static final int METHOD_NOT_FOUND = -32601;
+    private static final int INVALID_PARAMS = -32602;
+    private static final int INTERNAL_ERROR = -32603;
+
+    private int listenPort;
+    private RPCHandler handler;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Constructor for JsonRpcServer.
+     *
+     * @param listenPort Port to listen on
+     * @param handler    Handler that runs the commands
+     */
+    public JsonRpcServer(int listenPort, RPCHandler handler) {
+        this.listenPort = listenPort;
+        this.handler = handler;
+    }
+
+    /**
+     * Starts listening.
+     *
+     * @throws IOException if the port can not be bound
+     */
+    public void start() throws IOException {
+        //Responses are small, and without TCP_NODELAY each one waits out the client's delayed ACK (about 40 ms). Read once, when the first
+        //server is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(listenPort), 0);
+        executor = Executors.newFixedThreadPool(HANDLER_THREADS);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops listening, and closes open connections.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = readBody(exchange.getRequestBody());
+            String response;
+            if (body == null) {
+                response = error(null, INVALID_REQUEST, "Request larger than " + MAX_REQUEST_BYTES + " bytes");
+            } else {
+                response = respond(new String(body, StandardCharsets.UTF_8));
+            }
+            if (response == null) {
+                //Only notifications; nothing to answer
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        } catch (IOException e) {
+            System.out.println(ANSI_RED + "[rpc] " + ANSI_RESET + "- JSON-RPC client " + exchange.getRemoteAddress() + " disconnected: " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Answers a request document.
+     *
+     * @param body Request document, a request object or a batch array
+     * @return String Response document, or null if there is nothing to send back
+     */
+    String respond(String body) {
+        Object document;
+        try {
+            document = Json.parse(body);
+        } catch (IllegalArgumentException e) {
+            return error(null, PARSE_ERROR, "Parse error: " + e.getMessage());
+        }
+        if (!(document instanceof List)) {
+            Call call = start(document);
+            return call.isNotification ? null : call.finish();
+        }
+        List<?> batch = (List<?>) document;
+        if (batch.isEmpty() || batch.size() > MAX_BATCH_SIZE) {
+            return error(null, INVALID_REQUEST, "A batch must hold 1 to " + MAX_BATCH_SIZE + " requests");
+        }
+        ArrayList<Call> calls = new ArrayList<>(batch.size());
+        for (Object request : batch) {
+            calls.add(start(request));
+        }
+        StringBuilder out = new StringBuilder("[");
+        for (Call call : calls) {
+            if (!call.isNotification) {
+                if (out.length() > 1) {
+                    out.append(',');
+                }
+                out.append(call.finish());
+            }
+        }
+        return out.length() > 1 ? out.append(']').toString() : null;
+    }
+
+    /**
+     * A request that has been handed to the handler, or rejected.
+     */
+    private static class Call {
+        String id; //As JSON
+        boolean isNotification;
+        CompletableFuture<String> result;
+        String error; //Response for a rejected request
+
+        String finish() {
+            if (error != null) {
+                return error;
+            }
+            try {
+                return "{\"jsonrpc\":\"2.0\",\"result\":" + Json.quote(result.get()) + ",\"id\":" + id + "}";
+            } catch (ExecutionException e) {
+                return JsonRpcServer.error(id, INTERNAL_ERROR, String.valueOf(e.getCause().getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return JsonRpcServer.error(id, INTERNAL_ERROR, "Interrupted");
+            }
+        }
+    }
+
+    private Call start(Object request) {
+        Call call = new Call();
+        call.id = "null";
+        if (!(request instanceof Map)) {
+            call.error = error(call.id, INVALID_REQUEST, "A request must be an object");
+            return call;
+        }
+        Map<?, ?> object = (Map<?, ?>) request;
+        Object id = object.get("id");
+        if (id instanceof String) {
+            call.id = Json.quote((String) id);
+        } else if (id instanceof Long) {
+            call.id = id.toString();
+        }
+        Object method = object.get("method");
+        if (!"2.0".equals(object.get("jsonrpc")) || !(method instanceof String)) {
+            call.error = error(call.id, INVALID_REQUEST, "A request needs \"jsonrpc\":\"2.0\" and a method");
+            return call;
+        }
+        call.isNotification = !object.containsKey("id");
+        if (!handler.isCommand((String) method)) {
+            call.error = error(call.id, METHOD_NOT_FOUND, "Unknown method: " + method);
+            return call;
+        }
+        StringBuilder line = new StringBuilder((String) method);
+        Object params = object.get("params");
+        if (params != null && !(params instanceof List)) {
+            call.error = error(call.id, INVALID_PARAMS, "params must be an array");
+            return call;
+        }
+        if (params != null) {
+            for (Object param : (List<?>) params) {
+                String value = String.valueOf(param);
+                if (!(param instanceof String || param instanceof Long) || value.isEmpty() || value.matches(".*\\s.*")) {
+                    call.error = error(call.id, INVALID_PARAMS, "Every param must be an integer or a string without whitespace");
+                    return call;
+                }
+                line.append(' ').append(value);
+            }
+        }
+        call.result = handler.handle(line.toString());
+        return call;
+    }
+
+    private static String error(String id, int code, String message) {
+        return "{\"jsonrpc\":\"2.0\",\"error\":{\"code\":" + code + ",\"message\":" + Json.quote(message) + "},\"id\":" + (id == null ? "null" : id) + "}";
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (body.size() + read > MAX_REQUEST_BYTES) {
+                return null;
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+}
@@ -1,22 +1,36 @@
 package io.codepace.cozy.p2p;
 
-import java.io.File;
-import java.io.PrintWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * OutputThread writes data to a peer, and never reads in any data in order to prevent blocking and waiting, or some terrible constant back-and-forth keepalive.
  * Data written isn't saved anywhere. This behavior doesn't need to be run in a thread, but would block activity on the main thread if write calls were direct.
- * Instead, any calls to OutputThread's external methods are extremely lightweight (putting a String in a buffer) rather than waiting on network IO to execute.
+ * Instead, any calls to OutputThread's external methods are extremely lightweight (putting a String in a lock-free queue) rather than waiting on network IO to execute.
+ * <p>
+ * The thread parks while the queue is empty and is unparked by the first write after that, so nothing waits on a polling interval. Everything queued by
+ * the time it wakes up is written in one go, with a single flush for the whole batch.
  */
-public class OutputThread extends Thread {
+public class OutputThread implements Runnable {
     private Socket socket;
 
-    //Private to mirror InputThread's structure. For OOP model, it makes more sense for a method to simulate 'writing' data (even though it is delayed until the thread writes the data).
-
-    private ArrayList<String> outputBuffer;
-    private boolean shouldContinue = true;
+    //Any thread may add to the queue; only this thread takes from it
+    private ConcurrentLinkedQueue<String> outputQueue = new ConcurrentLinkedQueue<>();
+    private AtomicInteger queueDepth = new AtomicInteger();
+    private AtomicLong bytesSent = new AtomicLong();
+    private volatile Thread writer;
+    private volatile boolean shouldContinue = true;
 
     /**
      * Constructor to set class socket variable
@@ -27,59 +41,78 @@ public class OutputThread extends Thread {
     }
 
     /**
-     * Constantly checks outputBuffer for contents, and writes any contents in outputBuffer.
+     * Writes queued data as it arrives, parking while there is none.
      */
     public void run() {
+        writer = Thread.currentThread();
         try {
-            outputBuffer = new ArrayList<>();
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            Writer out = new BufferedWriter(new OutputStreamWriter(new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream()), 1 << 16), StandardCharsets.UTF_8), 1 << 16);
             while (shouldContinue) {
-                if (outputBuffer.size() > 0) {
-                    if (outputBuffer.get(0) != null) {
-                        for (int i = 0; i < outputBuffer.size(); i++) {
-                            if (outputBuffer.get(i).length() > 20) {
-                                System.out.println("Sending " + outputBuffer.get(i).substring(0, 20) + " to " + socket.getInetAddress());
-                            } else {
-                                System.out.println("Sending " + outputBuffer.get(i) + " to " + socket.getInetAddress());
-                            }
-                            out.println(outputBuffer.get(i));
-                        }
-                        outputBuffer = new ArrayList<>();
-                        outputBuffer.add(null);
-                    }
+                String data = outputQueue.poll();
+                if (data == null) {
+                    LockSupport.park(this);
+                    continue;
                 }
-                Thread.sleep(100);
+                do {
+                    queueDepth.decrementAndGet();
+                    out.write(data);
+                    out.write('\n');
+                } while ((data = outputQueue.poll()) != null);
+                out.flush();
             }
-            System.out.println("WHY AM I HERE");
         } catch (Exception e) {
-            e.printStackTrace();
+            System.out.println("Unable to write to peer " + socket.getInetAddress() + ": " + e.getMessage());
         }
     }
 
     /**
-     * Technically not writing to the network socket, but instead putting the passed-in data in a buffer to be written to the socket as soon as possible.
+     * Technically not writing to the network socket, but instead putting the passed-in data in a queue to be written to the socket as soon as possible.
      *
      * @param data Data to write
      */
     public void write(String data) {
-        if (data.length() > 20) {
-            System.out.println("PUTTING INTO WRITE BUFFER: " + data.substring(0, 20) + "...");
-        } else {
-            System.out.println("PUTTING INTO WRITE BUFFER: " + data);
+        outputQueue.add(data);
+        queueDepth.incrementAndGet();
+        //Unparking a thread that isn't parked just makes its next park() return right away, so the write can't be missed
+        Thread writer = this.writer;
+        if (writer != null) {
+            LockSupport.unpark(writer);
         }
-        File f = new File("writebuffer");
-        try {
-            PrintWriter out = new PrintWriter(f);
-            out.println("SENDING: " + data);
-            out.close();
-        } catch (Exception e) {
+    }
+
+    /**
+     * @return int Number of messages waiting to be written
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return long Number of bytes written to the socket
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Counts the bytes that actually reach the socket.
+     */
+    private class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
         }
-        if (outputBuffer.size() > 0) {
-            if (outputBuffer.get(0) == null) {
-                outputBuffer.remove(0);
-            }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesSent.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesSent.addAndGet(len);
         }
-        outputBuffer.add(data);
     }
 
     /**
@@ -87,5 +120,9 @@ public class OutputThread extends Thread {
      */
     public void shutdown() {
         shouldContinue = false;
+        Thread writer = this.writer;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
     }
-}
\ No newline at end of file
+}
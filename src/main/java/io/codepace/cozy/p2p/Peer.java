@@ -0,0 +1,113 @@
+package io.codepace.cozy.p2p;
+
+import io.codepace.cozy.LruMap;
+import io.codepace.cozy.db.Block;
+import io.codepace.cozy.db.BlockCodec;
+import io.codepace.cozy.db.BlockStore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A connection to a single peer, independent of how its socket is driven. {@link PeerThread} serves one peer with its own input and output
+ * threads, while {@link SelectorPeer} is one of many connections served by a single {@link PeerSelector} thread.
+ * <p>
+ * The daemon only ever talks to peers through this class: lines received from the peer are delivered to {@link PeerNetwork#inbound}
+ * tagged with the peer they came from, and lines passed to send() are written as soon as the socket allows.
+ */
+public abstract class Peer {
+    public static final int MAX_KNOWN_INVENTORY = 5000;
+
+    //Protocol version agreed with the peer; 1 until the peer announces a newer one with VERSION
+    public volatile int protocolVersion = 1;
+
+    //Hashes of blocks and transactions the peer is known to have, because it sent or announced them, or they were sent to it
+    private final LruMap<String, Boolean> knownInventory = new LruMap<>(MAX_KNOWN_INVENTORY);
+
+    /**
+     * Queues a line to be written to the peer. Never blocks on the network.
+     *
+     * @param data Line to send, without a line separator
+     */
+    public abstract void send(String data);
+
+    /**
+     * @return String Remote address of the peer
+     */
+    public abstract String getAddress();
+
+    /**
+     * @return int Number of messages queued for the peer but not yet written to its socket
+     */
+    public abstract int getOutboundQueueDepth();
+
+    /**
+     * @return long Number of bytes written to the peer's socket
+     */
+    public abstract long getBytesSent();
+
+    /**
+     * Records that the peer has a block or transaction.
+     *
+     * @param hash Hash of the block or transaction
+     * @return boolean Whether the peer wasn't already known to have it
+     */
+    public boolean addKnownInventory(String hash) {
+        synchronized (knownInventory) {
+            return knownInventory.put(hash, Boolean.TRUE) == null;
+        }
+    }
+
+    /**
+     * @param hash Hash of a block or transaction
+     * @return boolean Whether the peer is known to have it
+     */
+    public boolean knowsInventory(String hash) {
+        synchronized (knownInventory) {
+            return knownInventory.containsKey(hash);
+        }
+    }
+
+    /**
+     * Sends a block to the peer, in the binary encoding if the peer understands it.
+     *
+     * @param block Block to send
+     */
+    public void sendBlock(Block block) {
+        if (protocolVersion >= 2) {
+            send("BLOCK2 " + Base64.getEncoder().encodeToString(block.getEncodedBlock()));
+        } else {
+            send("BLOCK " + block.getRawBlock());
+        }
+    }
+
+    /**
+     * Sends a block as it is stored in the blockchain file. The record is only parsed when it is in the binary format and the peer doesn't
+     * understand that.
+     *
+     * @param record Stored record of the block
+     * @param format Format of the record, BlockStore.FORMAT_TEXT or BlockStore.FORMAT_BINARY
+     */
+    public void sendStoredBlock(byte[] record, int format) {
+        if (format == BlockStore.FORMAT_TEXT) {
+            send("BLOCK " + new String(record, StandardCharsets.UTF_8));
+        } else if (protocolVersion >= 2) {
+            send("BLOCK2 " + Base64.getEncoder().encodeToString(record));
+        } else {
+            send("BLOCK " + BlockCodec.decodeBlock(record).getRawBlock());
+        }
+    }
+
+    /**
+     * Sends a transaction to the peer, in the binary encoding if the peer understands it.
+     *
+     * @param transaction Transaction to send
+     */
+    public void sendTransaction(String transaction) {
+        if (protocolVersion >= 2) {
+            send("TRANSACTION2 " + Base64.getEncoder().encodeToString(BlockCodec.encodeTransaction(transaction)));
+        } else {
+            send("TRANSACTION " + transaction);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package io.codepace.cozy.p2p;
+
+/**
+ * A single line received from a peer, waiting in {@link PeerNetwork#inbound} for the node to handle it.
+ */
+public class PeerMessage {
+    public final Peer peer;
+    public final String data;
+    //System.nanoTime() when the line was read off the socket, to measure how long it waits before being handled
+    public final long receivedAt = System.nanoTime();
+
+    public PeerMessage(Peer peer, String data) {
+        this.peer = peer;
+        this.data = data;
+    }
+}
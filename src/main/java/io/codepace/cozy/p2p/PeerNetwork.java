@@ -1,29 +1,70 @@
 package io.codepace.cozy.p2p;
 
+import io.codepace.cozy.Constants;
+import io.codepace.cozy.db.Block;
+
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * This thread listens on a provided port (8015 by default) for incoming connections, and attempts to make connections to external peers based on guidance from MainClass.
  * It needs a bit of help with memory management and resource deallocation, but otherwise it works. Good enough for 0.2.01.
  * <p>
+ * By default, all peers are served by a single {@link PeerSelector} running on this thread. With -Dcozy.transport=threads, every peer
+ * gets its own {@link PeerThread} instead.
+ * <p>
+ * Lines received from every peer go into a single bounded inbound queue, tagged with the peer they came from. The node's dispatcher waits on that
+ * queue, so a message is handled as soon as it arrives. When the queue is full, peers are no longer read from until there is room again.
+ * <p>
+ * New blocks and transactions are relayed through the {@link Inventory}: version 2 peers are only sent the hash, and fetch the payload with
+ * GETDATA if they don't have it yet. Nothing is relayed to a peer that is already known to have it.
+ * <p>
  * Future plans include some form of UPNP support and NAT punchthroughs.
  */
 public class PeerNetwork extends Thread {
+    public static final String TRANSPORT_SELECTOR = "selector";
+    public static final String TRANSPORT_THREADS = "threads";
+    public static final int INBOUND_QUEUE_CAPACITY = 4096;
+
     public int listenPort;
-    public boolean shouldRun = true;
-    public ArrayList<PeerThread> peerThreads;
+    public volatile boolean shouldRun = true;
+    //Copy-on-write, as peers are added and removed by the network thread while the chain thread iterates over them
+    public List<Peer> peerConnections = new CopyOnWriteArrayList<>();
+    public final LinkedBlockingQueue<PeerMessage> inbound = new LinkedBlockingQueue<>(INBOUND_QUEUE_CAPACITY);
 
     public ArrayList<String> newPeers;
+    public final Inventory inventory = new Inventory();
+
+    private PeerSelector peerSelector;
 
     /**
      * Default settings constructor
      */
     public PeerNetwork() {
-        this.listenPort = 8015;
-        this.peerThreads = new ArrayList<>();
+        this(8015);
+    }
+
+    /**
+     * Optional, currently-unused constructor for a non-default port selection
+     *
+     * @param port Port to listen on
+     */
+    public PeerNetwork(int port) {
+        this.listenPort = port;
         this.newPeers = new ArrayList<>();
+        if (Constants.PEER_TRANSPORT.equals(TRANSPORT_SELECTOR)) {
+            try {
+                this.peerSelector = new PeerSelector(this);
+            } catch (IOException e) {
+                System.out.println("Unable to open selector, falling back to a thread per peer.");
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -34,40 +75,37 @@ public class PeerNetwork extends Thread {
      */
     public void connectToPeer(String peer, int port) {
         try {
-            Socket socket = new Socket(peer, port);
-            String remoteHost = socket.getInetAddress() + "";
-            remoteHost = remoteHost.replace("/", "");
-            remoteHost = remoteHost.replace("\\", "");
-            int remotePort = socket.getPort();
-            newPeers.add(remoteHost + ":" + remotePort);
-            peerThreads.add(new PeerThread(socket));
-            peerThreads.get(peerThreads.size() - 1).start();
+            Peer connection;
+            if (peerSelector != null) {
+                connection = peerSelector.connect(peer, port);
+            } else {
+                Socket socket = new Socket(peer, port);
+                PeerThread peerThread = new PeerThread(socket, inbound);
+                peerThread.start();
+                connection = peerThread;
+            }
+            newPeers.add(connection.getAddress());
+            addPeer(connection);
         } catch (Exception e) {
             System.out.println("Unable to connect to " + peer + ":" + port);
         }
     }
 
-    /**
-     * Optional, currently-unused constructor for a non-default port selection
-     *
-     * @param port Port to listen on
-     */
-    public PeerNetwork(int port) {
-        this.listenPort = port;
-        this.peerThreads = new ArrayList<>();
-    }
-
     /**
      * Runs as a separate thread, constantly listening for peer connections.
      */
     public void run() {
         try {
+            if (peerSelector != null) {
+                peerSelector.run(listenPort);
+                return;
+            }
             ServerSocket listenSocket = new ServerSocket(listenPort);
             while (shouldRun) //Doesn't actually quit right when shouldRun is changed, as while loop is pending.
             {
-                peerThreads.add(new PeerThread(listenSocket.accept()));
-                peerThreads.get(peerThreads.size() - 1).start();
-
+                PeerThread peerThread = new PeerThread(listenSocket.accept(), inbound);
+                peerThread.start();
+                addPeer(peerThread);
             }
             listenSocket.close();
         } catch (Exception e) {
@@ -75,15 +113,122 @@ public class PeerNetwork extends Thread {
         }
     }
 
+    /**
+     * Adds a newly connected peer, and announces our protocol version to it.
+     *
+     * @param peer Peer that just connected
+     */
+    void addPeer(Peer peer) {
+        peerConnections.add(peer);
+        peer.send("VERSION " + Constants.PROTOCOL_VERSION);
+    }
+
+    /**
+     * Forgets a peer whose connection was closed.
+     *
+     * @param peer Peer that disconnected
+     */
+    void removePeer(Peer peer) {
+        peerConnections.remove(peer);
+    }
+
     /**
      * Announces the same message to all peers simultaneously. Useful when re-broadcasting messages.
      *
      * @param toBroadcast String to broadcast to peers
      */
     public void broadcast(String toBroadcast) {
-        for (int i = 0; i < peerThreads.size(); i++) {
+        for (Peer peer : peerConnections) {
             System.out.println("Sent:: " + toBroadcast);
-            peerThreads.get(i).send(toBroadcast);
+            peer.send(toBroadcast);
+        }
+    }
+
+    /**
+     * Relays a block to every peer that isn't known to have it. Version 2 peers are sent an INV with the block's hash, older peers the block itself.
+     *
+     * @param block  Block to relay
+     * @param source Peer the block came from, or null if it was made by this node
+     */
+    public void relayBlock(Block block, Peer source) {
+        inventory.addBlock(block);
+        if (source != null) {
+            source.addKnownInventory(block.blockHash);
+        }
+        for (Peer peer : peerConnections) {
+            if (peer.addKnownInventory(block.blockHash)) {
+                if (peer.protocolVersion >= 2) {
+                    peer.send("INV " + Inventory.TYPE_BLOCK + " " + block.blockHash);
+                } else {
+                    peer.sendBlock(block);
+                }
+            }
+        }
+    }
+
+    /**
+     * Relays a transaction to every peer that isn't known to have it. Version 2 peers are sent an INV with the transaction's hash, older peers
+     * the transaction itself.
+     *
+     * @param transaction Transaction to relay
+     * @param source      Peer the transaction came from, or null if it was made by this node
+     */
+    public void relayTransaction(String transaction, Peer source) {
+        inventory.addTransaction(transaction);
+        String hash = Inventory.transactionHash(transaction);
+        if (source != null) {
+            source.addKnownInventory(hash);
+        }
+        for (Peer peer : peerConnections) {
+            if (peer.addKnownInventory(hash)) {
+                if (peer.protocolVersion >= 2) {
+                    peer.send("INV " + Inventory.TYPE_TRANSACTION + " " + hash);
+                } else {
+                    peer.sendTransaction(transaction);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles an INV from a peer: asks it for the announced items this node doesn't have and hasn't already asked another peer for.
+     *
+     * @param peer   Peer that sent the announcement
+     * @param type   Inventory.TYPE_BLOCK or Inventory.TYPE_TRANSACTION
+     * @param hashes Announced hashes
+     */
+    public void inventoryAnnounced(Peer peer, String type, String[] hashes) {
+        for (String hash : hashes) {
+            peer.addKnownInventory(hash);
+        }
+        ArrayList<String> missing = inventory.selectMissing(hashes);
+        if (!missing.isEmpty()) {
+            peer.send("GETDATA " + type + " " + String.join(",", missing));
+        }
+    }
+
+    /**
+     * Handles a GETDATA from a peer: sends it the requested items that are still in the relay cache.
+     *
+     * @param peer   Peer that asked
+     * @param type   Inventory.TYPE_BLOCK or Inventory.TYPE_TRANSACTION
+     * @param hashes Requested hashes
+     */
+    public void dataRequested(Peer peer, String type, String[] hashes) {
+        for (int i = 0; i < hashes.length && i < Inventory.MAX_HASHES_PER_MESSAGE; i++) {
+            if (type.equals(Inventory.TYPE_BLOCK)) {
+                Block block = inventory.getBlock(hashes[i]);
+                if (block != null) {
+                    peer.addKnownInventory(hashes[i]);
+                    peer.sendBlock(block);
+                }
+            } else if (type.equals(Inventory.TYPE_TRANSACTION)) {
+                String transaction = inventory.getTransaction(hashes[i]);
+                if (transaction != null) {
+                    peer.addKnownInventory(hashes[i]);
+                    peer.sendTransaction(transaction);
+                }
+            }
         }
     }
 
@@ -95,8 +240,10 @@ public class PeerNetwork extends Thread {
      * @param peerToIgnore Peer to not send broadcast too--usually the peer who sent information that is being rebroadcast
      */
     public void broadcastIgnorePeer(String toBroadcast, String peerToIgnore) {
-        for (int i = 0; i < peerThreads.size(); i++) {
-            peerThreads.get(i).send(toBroadcast);
+        for (Peer peer : peerConnections) {
+            if (!peer.getAddress().equals(peerToIgnore)) {
+                peer.send(toBroadcast);
+            }
         }
     }
-}
\ No newline at end of file
+}
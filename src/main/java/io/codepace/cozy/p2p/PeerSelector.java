@@ -0,0 +1,213 @@
+package io.codepace.cozy.p2p;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves every peer connection from a single thread, using a non-blocking {@link Selector}. The listening socket, reads and writes for all
+ * peers are multiplexed on that thread, so the number of peers is limited by sockets rather than by threads.
+ * <p>
+ * Other threads never touch the selector directly. Connections made by connect() and writes queued by {@link SelectorPeer#send(String)}
+ * are handed over through queues, and the selector is woken up to pick them up.
+ * <p>
+ * A peer whose lines don't fit in the network's inbound queue stops being read from. While any peer is paused like that, the selector wakes up
+ * every few milliseconds to retry delivering its lines, and resumes reading once they are all delivered.
+ */
+public class PeerSelector {
+    private PeerNetwork network;
+    private Selector selector;
+    private ConcurrentLinkedQueue<SelectorPeer> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<SelectorPeer> pendingWrites = new ConcurrentLinkedQueue<>();
+    private ArrayList<SelectorPeer> pausedPeers = new ArrayList<>();
+
+    /**
+     * Constructor for PeerSelector.
+     *
+     * @param network Network that accepted and connected peers are added to
+     * @throws IOException if the selector can not be opened
+     */
+    public PeerSelector(PeerNetwork network) throws IOException {
+        this.network = network;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Opens a connection to a peer. The connection itself is made synchronously, so that failures are reported to the caller; from then on
+     * the connection is served by the selector thread.
+     *
+     * @param host Peer to connect to
+     * @param port Port on peer to connect to
+     * @return SelectorPeer The connected peer
+     * @throws IOException if the connection can not be made
+     */
+    public SelectorPeer connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectorPeer peer = new SelectorPeer(channel, this, network.inbound);
+        pendingRegistrations.add(peer);
+        selector.wakeup();
+        return peer;
+    }
+
+    /**
+     * Asks the selector thread to start writing a peer's outbound queue.
+     */
+    void requestWrite(SelectorPeer peer) {
+        pendingWrites.add(peer);
+        selector.wakeup();
+    }
+
+    /**
+     * Accepts connections on the given port and serves all peers until the network is shut down.
+     *
+     * @param listenPort Port to accept connections on
+     * @throws IOException if the port can not be bound
+     */
+    public void run(int listenPort) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(listenPort));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        while (network.shouldRun) {
+            selector.select(pausedPeers.isEmpty() ? 0 : 10);
+            resumePaused();
+            SelectorPeer peer;
+            while ((peer = pendingRegistrations.poll()) != null) {
+                register(peer);
+            }
+            while ((peer = pendingWrites.poll()) != null) {
+                //A peer that isn't registered yet is written to by register(), which is bound to come after this
+                if (peer.key != null && peer.key.isValid()) {
+                    write(peer);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(server);
+                    continue;
+                }
+                peer = (SelectorPeer) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        if (!peer.readFrom()) {
+                            disconnect(peer);
+                            continue;
+                        }
+                        if (peer.hasUndelivered()) {
+                            peer.readPaused = true;
+                            pausedPeers.add(peer);
+                            updateInterest(peer);
+                        }
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(peer);
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    disconnect(peer);
+                }
+            }
+        }
+        server.close();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof SelectorPeer) {
+                ((SelectorPeer) key.attachment()).close();
+            }
+        }
+        selector.close();
+    }
+
+    private void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectorPeer peer = new SelectorPeer(channel, this, network.inbound);
+                System.out.println("Got connection from " + peer.getAddress() + ".");
+                register(peer);
+                network.addPeer(peer);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Registers a peer with the selector, and starts writing anything sent to it before it was registered: a write request made then was
+     * dropped, and writeRequested stays set until the queue is written.
+     */
+    private void register(SelectorPeer peer) {
+        try {
+            peer.key = peer.getChannel().register(selector, SelectionKey.OP_READ, peer);
+        } catch (IOException e) {
+            disconnect(peer);
+            return;
+        }
+        if (peer.hasPendingWrites()) {
+            write(peer);
+        }
+    }
+
+    /**
+     * Writes what the socket takes right away, and only watches for write readiness while data is left over. Once the queue is empty, the peer
+     * goes back to read-only interest, unless another send slipped in while the flag was being cleared.
+     */
+    private void write(SelectorPeer peer) {
+        try {
+            boolean flushed = peer.flush();
+            while (flushed) {
+                peer.writeRequested.set(false);
+                if (!peer.hasPendingWrites() || !peer.writeRequested.compareAndSet(false, true)) {
+                    break;
+                }
+                flushed = peer.flush();
+            }
+            peer.writing = !flushed;
+            updateInterest(peer);
+        } catch (IOException | CancelledKeyException e) {
+            disconnect(peer);
+        }
+    }
+
+    private void resumePaused() {
+        for (int i = pausedPeers.size() - 1; i >= 0; i--) {
+            SelectorPeer peer = pausedPeers.get(i);
+            if (peer.isClosed() || peer.deliver()) {
+                pausedPeers.remove(i);
+                peer.readPaused = false;
+                updateInterest(peer);
+            }
+        }
+    }
+
+    private void updateInterest(SelectorPeer peer) {
+        if (peer.key == null || !peer.key.isValid()) {
+            return;
+        }
+        peer.key.interestOps((peer.readPaused ? 0 : SelectionKey.OP_READ) | (peer.writing ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void disconnect(SelectorPeer peer) {
+        if (peer.isClosed()) {
+            return;
+        }
+        System.out.println("Peer " + peer.getAddress() + " disconnected.");
+        peer.close();
+        network.removePeer(peer);
+    }
+}
@@ -1,38 +1,46 @@
 package io.codepace.cozy.p2p;
 
 import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Class handles all networking after a socket is accepted. Delegates work into two separate threads,
  * one for incoming data, and one for outgoing data, so data in one direction doesn't block data in
  * the other.
+ * <p>
+ * This is the thread-per-socket transport, used when the node is started with -Dcozy.transport=threads.
+ * By default, peers are served by a {@link PeerSelector} instead.
  */
-public class PeerThread extends Thread
+public class PeerThread extends Peer
 {
     private Socket socket;
+    private BlockingQueue<PeerMessage> inbound;
     public InputThread inputThread;
     public OutputThread outputThread;
+
     /**
      * Constructor sets socket
      *
-     * @param socket Socket with peer
+     * @param socket  Socket with peer
+     * @param inbound Queue that lines received from the peer are delivered to
      */
-    public PeerThread(Socket socket)
+    public PeerThread(Socket socket, BlockingQueue<PeerMessage> inbound)
     {
         this.socket = socket;
+        this.inbound = inbound;
     }
 
     /**
-     * As the name might suggest, each PeerThread runs on its own thread. Additionally, each child network IO thread
-     * runs on its own thread.
+     * Starts the network IO threads for this peer. Each child network IO thread runs on its own thread, which is a virtual thread
+     * if they were requested.
      */
-    public void run()
+    public void start()
     {
         System.out.println("Got connection from " + socket.getInetAddress() + ".");
-        inputThread = new InputThread(socket);
-        inputThread.start();
+        inputThread = new InputThread(socket, inbound, this);
+        ConnectionThreads.start(inputThread, "peer-in " + getAddress());
         outputThread = new OutputThread(socket);
-        outputThread.start();
+        ConnectionThreads.start(outputThread, "peer-out " + getAddress());
     }
 
     /**
@@ -51,4 +59,19 @@ public class PeerThread extends Thread
             outputThread.write(data);
         }
     }
-}
\ No newline at end of file
+
+    public String getAddress()
+    {
+        return String.valueOf(socket.getInetAddress()).replace("/", "") + ":" + socket.getPort();
+    }
+
+    public int getOutboundQueueDepth()
+    {
+        return outputThread == null ? 0 : outputThread.getQueueDepth();
+    }
+
+    public long getBytesSent()
+    {
+        return outputThread == null ? 0 : outputThread.getBytesSent();
+    }
+}
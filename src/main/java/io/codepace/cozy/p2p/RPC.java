@@ -1,12 +1,12 @@
 package io.codepace.cozy.p2p;
 
 import java.net.ServerSocket;
-import java.util.ArrayList;
+import java.net.Socket;
 
 /**
  * The RPC object handles or delegates network communication for all RPC requests.
- * RPC requests are stored in a public class variable, and RPC responses are placed into another public class variable.
- * In the future, a queue system will exist, allowing for high-volume RPC calls.
+ * Each client is served by its own {@link RPCThread}, which hands every request to the {@link RPCHandler} as it arrives and writes the
+ * response as soon as the handler's future completes.
  * Additionally, the RPC currently provides no security. In the final release, RPC will require authentication.
  * RPC calls are used to send and receive coins, as well as publish blocks.
  *
@@ -17,16 +17,14 @@ public class RPC extends Thread
     private int listenPort;
     public String request = null;
 
-    public ArrayList<RPCThread> rpcThreads;
-
     public boolean shouldRun = true;
+    public volatile RPCHandler handler;
     /**
      * Standard RPC port is 8016, one above the P2P networking port.
      */
     public RPC()
     {
         this.listenPort = 8016;
-        this.rpcThreads = new ArrayList<>();
     }
 
     /**
@@ -37,7 +35,6 @@ public class RPC extends Thread
     public RPC(int listenPort)
     {
         this.listenPort = listenPort;
-        this.rpcThreads = new ArrayList<>();
     }
 
     /**
@@ -50,8 +47,9 @@ public class RPC extends Thread
             ServerSocket socket = new ServerSocket(listenPort);
             while (shouldRun)
             {
-                rpcThreads.add(new RPCThread(socket.accept()));
-                rpcThreads.get(rpcThreads.size() - 1).start();
+                Socket client = socket.accept();
+                RPCThread rpcThread = new RPCThread(client, handler);
+                ConnectionThreads.start(rpcThread, "rpc " + client.getRemoteSocketAddress());
             }
             socket.close();
         } catch (Exception e)
@@ -0,0 +1,58 @@
+package io.codepace.cozy.p2p;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Answers the requests made by RPC clients.
+ */
+public abstract class RPCHandler {
+
+    /**
+     * Called on the client's thread for every request. Should return right away, with a future that completes once the request has run.
+     *
+     * @param request Request as sent by the client
+     * @return {@link CompletableFuture} Completed with the response for the client
+     */
+    public abstract CompletableFuture<String> handle(String request);
+
+    /**
+     * Called on the client's thread before handle(). Streaming requests are answered here, by writing the response to the client a piece at a
+     * time as it is computed, rather than as one string.
+     *
+     * @param request Request as sent by the client
+     * @param out     Client to write the response to
+     * @return boolean Whether the request was answered; if not, it goes to handle()
+     * @throws IOException if the client can not be written to
+     */
+    public boolean stream(String request, Writer out) throws IOException {
+        return false;
+    }
+
+    /**
+     * Called on the client's thread before stream() and handle(). A subscribe request turns the connection into a stream of events.
+     *
+     * @param request Request as sent by the client
+     * @return Subscription The subscription the request started, or null if it isn't a subscribe request
+     */
+    public Subscription subscribe(String request) {
+        return null;
+    }
+
+    /**
+     * Ends a subscription once its client has gone.
+     *
+     * @param subscription Subscription returned by subscribe()
+     */
+    public void unsubscribe(Subscription subscription) {
+    }
+
+    /**
+     * @param name Name of a command
+     * @return boolean Whether the command exists; if not, handle() answers it with an error message
+     */
+    public boolean isCommand(String name) {
+        return true;
+    }
+}
@@ -6,49 +6,91 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.concurrent.ExecutionException;
 
-public class RPCThread extends Thread {
+public class RPCThread implements Runnable {
     private Socket socket;
-    public String res;
-    public String req;
+    private RPCHandler handler;
 
-    public RPCThread(Socket socket){
+    public RPCThread(Socket socket, RPCHandler handler){
         this.socket = socket;
+        this.handler = handler;
     }
 
     public void run(){
         try{
-            req = null;
-            res = null;
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             String input = "";
+            Subscription subscription;
             out.println("Cozy v1.0.0 RPC daemon");
             while((input = in.readLine()) != null){
                 if (input.equalsIgnoreCase("HELP")){
                     out.println("Commands:");
                     out.println("send <amount> <dest> - Send <amount> coins to <dest>");
                     out.println("getinfo - Gets basic info about this node.");
+                    out.println("getpeerinfo - Lists connected peers with their outbound queue depth and bytes sent");
+                    out.println("getmessagestats - Lists how many of each peer message were handled, and how long they took from arrival");
                     out.println("getbalance <address> - Gets the current balance of <address>");
                     out.println("submit_tx <rawTx> - Submits a transaction to the network");
                     out.println("submit_cert <cert> - Submits a certificate to the network");
-                    out.println("get_history <address> - Gets the tx history of <address>");
+                    out.println("get_history <address> [fromHeight] [limit] - Gets the tx history of <address>, oldest first");
                     out.println("get_pending <address - Gets the pending balance of the default address");
-                    out.println("trypos - Attempts a PoS block");
+                    out.println("getbalances <address> [address...] - Lists the confirmed and pending balance of each address, one per line, as they are looked up");
+                    out.println("trypos - Attempts a PoS block in the background, answering once it is done");
+                    out.println("getminingjobs - Lists recent mining jobs with their state and progress");
+                    out.println("subscribe <blocks|transactions|address> [...] - Turns this connection into a stream of events, one per line, until it is closed, with a heartbeat line when idle");
                     out.println();
+                } else if ((subscription = handler.subscribe(input)) != null) {
+                    streamEvents(subscription, out);
+                    return;
+                } else if (handler.stream(input, out)) {
+                    out.println("</>");
                 } else {
-                    req = input;
-                    while (res == null){
-                        Thread.sleep(25);
+                    String res;
+                    try{
+                        res = handler.handle(input).get();
+                    } catch (ExecutionException e){
+                        res = "Error: " + e.getCause().getMessage();
                     }
-
                     out.println(res + "\n</>");
-                    req = null;
-                    res = null;
                 }
             }
         } catch (Exception e){
             Util.getLogger().info("An RPC client has disconnected.");
         }
     }
+
+    /**
+     * Sends a subscription's events to the client until it goes away or falls too far behind. The thread sleeps between events; after
+     * HEARTBEAT_MILLIS without one, it sends a heartbeat line instead, so a client that went away is noticed by the failed write.
+     */
+    private void streamEvents(Subscription subscription, PrintWriter out){
+        try{
+            out.println("Subscribed");
+            while(true){
+                String event = subscription.poll(Subscription.HEARTBEAT_MILLIS);
+                if (event == null){
+                    if (subscription.isDropped()){
+                        break;
+                    }
+                    event = "heartbeat";
+                }
+                out.println(event);
+                if (out.checkError()){
+                    return;
+                }
+            }
+            out.println("Dropped: more than " + Subscription.MAX_QUEUED_EVENTS + " events behind");
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } finally {
+            handler.unsubscribe(subscription);
+            try{
+                socket.close();
+            } catch (Exception e){
+                //Already closed
+            }
+        }
+    }
 }
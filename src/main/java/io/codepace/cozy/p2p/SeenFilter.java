@@ -0,0 +1,124 @@
+package io.codepace.cozy.p2p;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Remembers which messages have been seen, in a fixed amount of memory, so that a block or transaction that reaches the node from several
+ * peers is only handled once.
+ * <p>
+ * Messages are keyed by their SHA-256 digest and stored in a Bloom filter. A Bloom filter never forgets and fills up, so two are kept: once the
+ * current one holds its capacity, it becomes the previous one and a new, empty one takes its place. A message is seen if either filter contains
+ * it, so every message is remembered for at least the last capacity messages, and at most twice that.
+ * <p>
+ * Like any Bloom filter, it can mistake a new message for one already seen, at roughly the configured false positive rate, but never the other
+ * way around. Blocks dropped that way are still picked up by the sync manager once a peer's height is ahead.
+ */
+public class SeenFilter {
+    private final int capacity;
+    private final int bits;
+    private final int hashes;
+    private long[] current;
+    private long[] previous;
+    private int count;
+
+    /**
+     * Constructor for SeenFilter.
+     *
+     * @param capacity          Number of messages remembered at least
+     * @param falsePositiveRate Chance of a new message being reported as seen, between 0 and 1
+     */
+    public SeenFilter(int capacity, double falsePositiveRate) {
+        if (capacity < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Bad seen filter parameters: capacity " + capacity + ", false positive rate " + falsePositiveRate);
+        }
+        //Both filters are checked, so each gets half the error budget
+        double perFilter = falsePositiveRate / 2;
+        this.capacity = capacity;
+        this.bits = (int) Math.min(Integer.MAX_VALUE - 63, Math.ceil(-capacity * Math.log(perFilter) / (Math.log(2) * Math.log(2))));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+        this.current = new long[(bits + 63) / 64];
+        this.previous = new long[current.length];
+    }
+
+    /**
+     * Records a message as seen.
+     *
+     * @param message Message to record
+     * @return boolean True if the message hadn't been seen before, false if it (probably) had
+     */
+    public synchronized boolean add(String message) {
+        long[] positions = positions(message);
+        if (contains(current, positions) || contains(previous, positions)) {
+            return false;
+        }
+        if (count >= capacity) {
+            long[] recycled = previous;
+            Arrays.fill(recycled, 0);
+            previous = current;
+            current = recycled;
+            count = 0;
+        }
+        for (long position : positions) {
+            current[(int) (position >>> 6)] |= 1L << position;
+        }
+        count++;
+        return true;
+    }
+
+    /**
+     * @param message Message to check
+     * @return boolean Whether the message has (probably) been seen
+     */
+    public synchronized boolean contains(String message) {
+        long[] positions = positions(message);
+        return contains(current, positions) || contains(previous, positions);
+    }
+
+    /**
+     * @return int Size of each of the two filters, in bits
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * @return int Number of bit positions set per message
+     */
+    public int getHashCount() {
+        return hashes;
+    }
+
+    private static boolean contains(long[] filter, long[] positions) {
+        for (long position : positions) {
+            if ((filter[(int) (position >>> 6)] & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Derives the bit positions of a message from two 64-bit halves of its digest (Kirsch-Mitzenmacher double hashing).
+     */
+    private long[] positions(String message) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(message.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        long h1 = 0;
+        long h2 = 0;
+        for (int i = 0; i < 8; i++) {
+            h1 = (h1 << 8) | (digest[i] & 0xFF);
+            h2 = (h2 << 8) | (digest[i + 8] & 0xFF);
+        }
+        long[] positions = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            positions[i] = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,200 @@
+package io.codepace.cozy.p2p;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A peer connection served by a {@link PeerSelector}. It has no threads of its own: the selector thread calls readFrom() when the socket has data,
+ * and flush() when the socket can take more data.
+ * <p>
+ * Incoming bytes are split into lines as they arrive and delivered to the network's inbound queue. If that queue is full, the lines wait here
+ * and the selector stops reading from the socket until they are delivered, so the peer is slowed down by TCP. Outgoing lines are queued as byte
+ * buffers by any thread, and the selector is asked to watch the socket for write readiness only while something is queued, so idle peers cost
+ * nothing.
+ */
+public class SelectorPeer extends Peer {
+    //A single line longer than this is not something any version of the protocol sends, so the peer is dropped
+    public static final int MAX_LINE_LENGTH = 8 * 1024 * 1024;
+
+    private SocketChannel channel;
+    private PeerSelector selector;
+    private String address;
+    SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    private BlockingQueue<PeerMessage> inbound;
+    //Lines read but not yet delivered because the inbound queue was full. Only touched by the selector thread, as are the two flags below.
+    private ArrayDeque<String> undelivered = new ArrayDeque<>();
+    boolean readPaused = false;
+    boolean writing = false;
+
+    private ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private AtomicInteger outboundDepth = new AtomicInteger();
+    //Written by the selector thread only
+    private volatile long bytesSent = 0;
+    private ByteBuffer[] writeBatch = new ByteBuffer[64];
+    //Set while the selector has been asked to watch for write readiness, so that a burst of sends only wakes it up once
+    final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    SelectorPeer(SocketChannel channel, PeerSelector selector, BlockingQueue<PeerMessage> inbound) {
+        this.channel = channel;
+        this.selector = selector;
+        this.inbound = inbound;
+        this.address = String.valueOf(channel.socket().getInetAddress()).replace("/", "") + ":" + channel.socket().getPort();
+    }
+
+    public void send(String data) {
+        if (closed) {
+            return;
+        }
+        outbound.add(ByteBuffer.wrap((data + "\n").getBytes(StandardCharsets.UTF_8)));
+        outboundDepth.incrementAndGet();
+        if (writeRequested.compareAndSet(false, true)) {
+            selector.requestWrite(this);
+        }
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public int getOutboundQueueDepth() {
+        return outboundDepth.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return boolean Whether the connection has been closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Reads whatever the socket has available, splits it into lines and delivers them. Called by the selector thread only.
+     *
+     * @return boolean False if the peer closed the connection or misbehaved
+     */
+    boolean readFrom() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        byte[] bytes = readBuffer.array();
+        int start = readBuffer.position();
+        int end = readBuffer.limit();
+        for (int i = start; i < end; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            partialLine.write(bytes, start, i - start);
+            byte[] line = partialLine.toByteArray();
+            int length = line.length;
+            if (length > 0 && line[length - 1] == '\r') {
+                length--; //Peer uses a Windows line separator
+            }
+            undelivered.add(new String(line, 0, length, StandardCharsets.UTF_8));
+            partialLine.reset();
+            start = i + 1;
+        }
+        partialLine.write(bytes, start, end - start);
+        readBuffer.clear();
+        deliver();
+        return partialLine.size() <= MAX_LINE_LENGTH;
+    }
+
+    /**
+     * Moves undelivered lines to the inbound queue, as far as it has room. Called by the selector thread only.
+     *
+     * @return boolean Whether every line was delivered
+     */
+    boolean deliver() {
+        String line;
+        while ((line = undelivered.peek()) != null) {
+            if (!inbound.offer(new PeerMessage(this, line))) {
+                return false;
+            }
+            undelivered.poll();
+        }
+        return true;
+    }
+
+    /**
+     * Writes as much of the outbound queue as the socket will take, handing queued lines to the socket in batches with a single gathering write.
+     * Called by the selector thread only.
+     *
+     * @return boolean Whether the queue was fully written
+     */
+    boolean flush() throws IOException {
+        while (true) {
+            int count = 0;
+            for (ByteBuffer buffer : outbound) {
+                writeBatch[count++] = buffer;
+                if (count == writeBatch.length) {
+                    break;
+                }
+            }
+            if (count == 0) {
+                return true;
+            }
+            bytesSent += channel.write(writeBatch, 0, count);
+            for (int i = 0; i < count; i++) {
+                if (writeBatch[i].hasRemaining()) {
+                    Arrays.fill(writeBatch, 0, count, null);
+                    return false; //Socket buffer is full; the selector calls again once it drains
+                }
+                outbound.poll();
+                outboundDepth.decrementAndGet();
+            }
+            Arrays.fill(writeBatch, 0, count, null);
+        }
+    }
+
+    /**
+     * @return boolean Whether there are lines waiting for room in the inbound queue
+     */
+    boolean hasUndelivered() {
+        return !undelivered.isEmpty();
+    }
+
+    /**
+     * @return boolean Whether there is anything left to write
+     */
+    boolean hasPendingWrites() {
+        return !outbound.isEmpty();
+    }
+
+    void close() {
+        closed = true;
+        outbound.clear();
+        outboundDepth.set(0);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.codepace.cozy.p2p;
+
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What one RPC client has subscribed to, and the events waiting to be sent to it. Events are queued by the {@link SubscriptionManager} on the
+ * events thread, which never waits on a client: if a client falls MAX_QUEUED_EVENTS behind, it is sent what has been queued and then dropped.
+ */
+public class Subscription {
+    public static final int MAX_QUEUED_EVENTS = 10000;
+    //How long a client goes without an event before it is sent a heartbeat line, which is how a client that went away is noticed
+    public static final long HEARTBEAT_MILLIS = 30000;
+
+    public final boolean blocks;
+    public final boolean transactions;
+    public final HashSet<String> addresses;
+
+    private final ArrayBlockingQueue<String> events = new ArrayBlockingQueue<>(MAX_QUEUED_EVENTS);
+    private volatile boolean overflowed = false;
+
+    /**
+     * Constructor for Subscription.
+     *
+     * @param blocks       Whether to send block_connected and block_disconnected events
+     * @param transactions Whether to send tx_accepted events
+     * @param addresses    Addresses to send address events for
+     */
+    public Subscription(boolean blocks, boolean transactions, HashSet<String> addresses) {
+        this.blocks = blocks;
+        this.transactions = transactions;
+        this.addresses = addresses;
+    }
+
+    /**
+     * Queues an event without waiting.
+     *
+     * @param event Event line
+     * @return boolean false if the queue was full; the subscription is then over
+     */
+    boolean offer(String event) {
+        if (overflowed || !events.offer(event)) {
+            overflowed = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits up to timeoutMillis for the next event.
+     *
+     * @param timeoutMillis How long to wait
+     * @return String The next event line, or null if none came in time or the subscription has been dropped; see isDropped()
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public String poll(long timeoutMillis) throws InterruptedException {
+        //A full queue is what sets overflowed, so once it is set this never has to wait
+        return overflowed ? events.poll() : events.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return boolean Whether the subscription has been dropped for falling behind, and every event queued before that has been taken
+     */
+    public boolean isDropped() {
+        return overflowed && events.isEmpty();
+    }
+}
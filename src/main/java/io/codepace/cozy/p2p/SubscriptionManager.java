@@ -0,0 +1,255 @@
+package io.codepace.cozy.p2p;
+
+import io.codepace.cozy.db.Block;
+import io.codepace.cozy.db.ChainListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static io.codepace.cozy.Util.*;
+
+/**
+ * Pushes chain events to subscribed RPC clients. Registered as a {@link ChainListener} with the blockchain and the pending transaction pool,
+ * so events are raised by the chain thread as state changes, and a client waiting for events costs nothing until one arrives (with
+ * -Dcozy.virtualThreads=true, not even a platform thread).
+ * <p>
+ * Handing an event to a waiting client means waking its thread, which adds up with thousands of subscribers, so the chain thread only
+ * queues each event; a single events thread hands it out to the subscriptions. If that thread falls MAX_QUEUED_EVENTS behind, new events are
+ * dropped rather than holding up the chain thread.
+ * <p>
+ * Events are single lines:
+ * <ul>
+ * <li>block_connected height hash</li>
+ * <li>block_disconnected height hash</li>
+ * <li>tx_accepted hash</li>
+ * <li>address address block_connected height hash</li>
+ * <li>address address block_disconnected height hash</li>
+ * <li>address address tx_accepted hash change</li>
+ * </ul>
+ * An address event is raised for every address that sends, receives or mines in a block, or sends or receives in a transaction; change is the
+ * net amount the transaction moves into (or, if negative, out of) the address. Transaction hashes are the ones used in inventory
+ * announcements; see {@link Inventory#transactionHash(String)}.
+ */
+public class SubscriptionManager extends ChainListener {
+    public static final int MAX_QUEUED_EVENTS = 100000;
+
+    private ArrayList<Subscription> blockSubscriptions = new ArrayList<>();
+    private ArrayList<Subscription> transactionSubscriptions = new ArrayList<>();
+    private HashMap<String, ArrayList<Subscription>> addressSubscriptions = new HashMap<>();
+    private ThreadPoolExecutor publisher;
+
+    /**
+     * Constructor for SubscriptionManager. Starts the events thread, which is a daemon.
+     */
+    public SubscriptionManager() {
+        publisher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_EVENTS), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "events");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable event, ThreadPoolExecutor executor) {
+                System.out.println(ANSI_RED + "[rpc] " + ANSI_RESET + "- Dropping an event, " + MAX_QUEUED_EVENTS + " are already waiting to go out to subscribers");
+            }
+        });
+    }
+
+    /**
+     * Parses a subscribe request and starts the subscription.
+     *
+     * @param request Request as sent by the client: subscribe, followed by topics, each "blocks", "transactions" or an address
+     * @return Subscription The new subscription, or null if the request isn't a valid subscribe request
+     */
+    public Subscription subscribe(String request) {
+        String[] parts = request.split(" ");
+        if (!parts[0].equalsIgnoreCase("subscribe") || parts.length < 2) {
+            return null;
+        }
+        boolean blocks = false;
+        boolean transactions = false;
+        HashSet<String> addresses = new HashSet<>();
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equalsIgnoreCase("blocks")) {
+                blocks = true;
+            } else if (parts[i].equalsIgnoreCase("transactions")) {
+                transactions = true;
+            } else if (!parts[i].isEmpty()) {
+                addresses.add(parts[i]);
+            }
+        }
+        Subscription subscription = new Subscription(blocks, transactions, addresses);
+        synchronized (this) {
+            if (blocks) {
+                blockSubscriptions.add(subscription);
+            }
+            if (transactions) {
+                transactionSubscriptions.add(subscription);
+            }
+            for (String address : addresses) {
+                ArrayList<Subscription> subscriptions = addressSubscriptions.get(address);
+                if (subscriptions == null) {
+                    subscriptions = new ArrayList<>();
+                    addressSubscriptions.put(address, subscriptions);
+                }
+                subscriptions.add(subscription);
+            }
+        }
+        return subscription;
+    }
+
+    /**
+     * Ends a subscription. Safe to call more than once.
+     *
+     * @param subscription Subscription to end
+     */
+    public synchronized void unsubscribe(Subscription subscription) {
+        blockSubscriptions.remove(subscription);
+        transactionSubscriptions.remove(subscription);
+        for (String address : subscription.addresses) {
+            ArrayList<Subscription> subscriptions = addressSubscriptions.get(address);
+            if (subscriptions != null) {
+                subscriptions.remove(subscription);
+                if (subscriptions.isEmpty()) {
+                    addressSubscriptions.remove(address);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return int Number of open subscriptions
+     */
+    public synchronized int getSubscriptionCount() {
+        HashSet<Subscription> all = new HashSet<>(blockSubscriptions);
+        all.addAll(transactionSubscriptions);
+        for (ArrayList<Subscription> subscriptions : addressSubscriptions.values()) {
+            all.addAll(subscriptions);
+        }
+        return all.size();
+    }
+
+    public void blockConnected(Block block) {
+        queueBlockEvent("block_connected", block);
+    }
+
+    public void blockDisconnected(Block block) {
+        queueBlockEvent("block_disconnected", block);
+    }
+
+    public void transactionAccepted(final String transaction) {
+        publisher.execute(new Runnable() {
+            public void run() {
+                publishTransactionEvent(transaction);
+            }
+        });
+    }
+
+    /**
+     * Works out which addresses a block involves while still on the chain thread, where the block's body can be read, and queues its event.
+     */
+    private void queueBlockEvent(String type, Block block) {
+        final String event = type + " " + block.blockNum + " " + block.blockHash;
+        HashSet<String> involved = null;
+        if (hasAddressSubscriptions()) {
+            involved = new HashSet<>();
+            involved.add(block.getMiner());
+            for (String transaction : block.getTransactions()) {
+                involved.addAll(getChanges(transaction).keySet());
+            }
+        }
+        final HashSet<String> addresses = involved;
+        publisher.execute(new Runnable() {
+            public void run() {
+                publishBlockEvent(event, addresses);
+            }
+        });
+    }
+
+    private synchronized boolean hasAddressSubscriptions() {
+        return !addressSubscriptions.isEmpty();
+    }
+
+    private synchronized void publishTransactionEvent(String transaction) {
+        if (transactionSubscriptions.isEmpty() && addressSubscriptions.isEmpty()) {
+            return;
+        }
+        String hash = Inventory.transactionHash(transaction);
+        publish(transactionSubscriptions, "tx_accepted " + hash);
+        if (addressSubscriptions.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Long> change : getChanges(transaction).entrySet()) {
+            ArrayList<Subscription> subscriptions = addressSubscriptions.get(change.getKey());
+            if (subscriptions != null) {
+                publish(subscriptions, "address " + change.getKey() + " tx_accepted " + hash + " " + change.getValue());
+            }
+        }
+    }
+
+    private synchronized void publishBlockEvent(String event, HashSet<String> involved) {
+        publish(blockSubscriptions, event);
+        if (involved == null) {
+            return;
+        }
+        for (String address : involved) {
+            ArrayList<Subscription> subscriptions = addressSubscriptions.get(address);
+            if (subscriptions != null) {
+                publish(subscriptions, "address " + address + " " + event);
+            }
+        }
+    }
+
+    /**
+     * Queues an event for each of the subscriptions, dropping those that have fallen too far behind. Called with the lock held.
+     */
+    private void publish(ArrayList<Subscription> subscriptions, String event) {
+        ArrayList<Subscription> dropped = null;
+        for (Subscription subscription : subscriptions) {
+            if (!subscription.offer(event)) {
+                if (dropped == null) {
+                    dropped = new ArrayList<>();
+                }
+                dropped.add(subscription);
+            }
+        }
+        if (dropped != null) {
+            for (Subscription subscription : dropped) {
+                System.out.println(ANSI_RED + "[rpc] " + ANSI_RESET + "- Dropping a subscriber that fell " + Subscription.MAX_QUEUED_EVENTS + " events behind");
+                unsubscribe(subscription);
+            }
+        }
+    }
+
+    /**
+     * Transaction format:
+     * InputAddress;InputAmount;OutputAddress1;OutputAmount1;OutputAddress2;OutputAmount2...;SignatureData;SignatureIndex
+     *
+     * @return {@link LinkedHashMap} Net change the transaction makes to each address it involves, in the order they appear
+     */
+    private static LinkedHashMap<String, Long> getChanges(String transaction) {
+        LinkedHashMap<String, Long> changes = new LinkedHashMap<>();
+        String[] transactionParts = transaction.split(";");
+        if (transactionParts.length < 4) {
+            return changes;
+        }
+        try {
+            changes.put(transactionParts[0], -Long.parseLong(transactionParts[1]));
+            for (int j = 2; j < transactionParts.length - 2; j += 2) {
+                Long change = changes.get(transactionParts[j]);
+                changes.put(transactionParts[j], (change == null ? 0L : change) + Long.parseLong(transactionParts[j + 1]));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println(ANSI_RED + "[rpc] " + ANSI_RESET + "- Can't work out the addresses of a badly formatted transaction");
+        }
+        return changes;
+    }
+}
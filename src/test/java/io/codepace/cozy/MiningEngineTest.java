@@ -0,0 +1,122 @@
+package io.codepace.cozy;
+
+import io.codepace.cozy.bench.SampleData;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link MiningEngine#search(String, int)}, on the calling thread and split across the pool, against the single-threaded loop
+ * Certificate.getMinCertificateScoreWithNonce() used to run.
+ */
+public class MiningEngineTest {
+    private static final String MESSAGE = new Certificate(SampleData.randomAddress(), "TEST", 100000, "Codepace", 1000, SampleData.randomHex(64), 7, "a,b").getCertificateMessage();
+
+    @Test
+    public void matchesTheSequentialScan() throws Exception {
+        for (int maxNonce : new int[]{1, 2, 1000, MiningEngine.PROGRESS_INTERVAL + 1, MiningEngine.MIN_NONCES_PER_SLICE * 2 + 123}) {
+            MiningEngine.Result expected = sequentialScan(MESSAGE, maxNonce);
+            MiningEngine.Progress progress = new MiningEngine.Progress();
+            MiningEngine.Result result = MiningEngine.search(MESSAGE, maxNonce, progress);
+            assertEquals("maxNonce " + maxNonce, expected.bestNonce, result.bestNonce);
+            assertEquals("maxNonce " + maxNonce, expected.score, result.score);
+            assertEquals("maxNonce " + maxNonce, maxNonce, progress.noncesChecked.get());
+        }
+    }
+
+    @Test
+    public void slicesCombineLikeOneScan() throws Exception {
+        int maxNonce = 5000;
+        MiningEngine.Result expected = sequentialScan(MESSAGE, maxNonce);
+        MiningEngine.Result best = new MiningEngine.Result(-1, Long.MAX_VALUE);
+        for (int from = 0; from < maxNonce; from += 700) {
+            MiningEngine.Result slice = MiningEngine.searchSlice(MESSAGE, from, Math.min(from + 700, maxNonce), new MiningEngine.Progress());
+            if (slice.beats(best)) {
+                best = slice;
+            }
+        }
+        assertEquals(expected.bestNonce, best.bestNonce);
+        assertEquals(expected.score, best.score);
+    }
+
+    @Test
+    public void tiesGoToTheLowerNonce() {
+        assertTrue(new MiningEngine.Result(3, 10).beats(new MiningEngine.Result(5, 10)));
+        assertFalse(new MiningEngine.Result(5, 10).beats(new MiningEngine.Result(3, 10)));
+        assertFalse(new MiningEngine.Result(3, 10).beats(new MiningEngine.Result(3, 10)));
+        assertTrue(new MiningEngine.Result(5, 9).beats(new MiningEngine.Result(3, 10)));
+        assertFalse(new MiningEngine.Result(3, 11).beats(new MiningEngine.Result(5, 10)));
+    }
+
+    @Test
+    public void noNonceBeatsAFoundOne() {
+        MiningEngine.Result none = new MiningEngine.Result(-1, Long.MAX_VALUE);
+        assertFalse(none.beats(none));
+        assertFalse(none.beats(new MiningEngine.Result(7, Long.MAX_VALUE)));
+        assertTrue(new MiningEngine.Result(7, Long.MAX_VALUE).beats(none));
+        assertTrue(new MiningEngine.Result(7, 1).beats(none));
+    }
+
+    @Test
+    public void emptyRangesFindNoNonce() {
+        for (int maxNonce : new int[]{0, -1, Integer.MIN_VALUE}) {
+            MiningEngine.Result result = MiningEngine.search(MESSAGE, maxNonce);
+            assertEquals(-1, result.bestNonce);
+            assertEquals(Long.MAX_VALUE, result.score);
+        }
+    }
+
+    @Test
+    public void negativeScoresFindNoNonce() throws Exception {
+        String message = MESSAGE;
+        for (int i = 0; sequentialScan(message, 1).bestNonce != -1; i++) { //About half of all messages score negative at nonce 0
+            message = MESSAGE + i;
+        }
+        MiningEngine.Result result = MiningEngine.search(message, 1);
+        assertEquals(-1, result.bestNonce);
+        assertEquals(Long.MAX_VALUE, result.score);
+    }
+
+    @Test
+    public void cancelledSearchesThrow() {
+        for (int maxNonce : new int[]{MiningEngine.PROGRESS_INTERVAL * 2, MiningEngine.MIN_NONCES_PER_SLICE * 4}) {
+            MiningEngine.Progress progress = new MiningEngine.Progress();
+            progress.cancel();
+            try {
+                MiningEngine.search(MESSAGE, maxNonce, progress);
+                fail("Cancelled search of " + maxNonce + " nonces finished");
+            } catch (CancellationException e) {
+                //Expected
+            }
+        }
+    }
+
+    /**
+     * The loop Certificate.getMinCertificateScoreWithNonce() ran before the MiningEngine: hash the whole message for every nonce, and keep
+     * the first nonce with the lowest positive score.
+     */
+    private static MiningEngine.Result sequentialScan(String certificateMessage, int maxNonce) throws Exception {
+        long score = Long.MAX_VALUE;
+        int bestNonce = -1;
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < maxNonce; i++) {
+            byte[] hash = md.digest((certificateMessage + ",{" + i + "}").getBytes(StandardCharsets.UTF_8));
+            long tempScore = 0L;
+            for (int j = 0; j < 8; j++) {
+                tempScore = (hash[j] & 0xff) + (tempScore << 8);
+            }
+            if (tempScore < score && tempScore > 0) {
+                score = tempScore;
+                bestNonce = i;
+            }
+        }
+        return new MiningEngine.Result(bestNonce, score);
+    }
+}
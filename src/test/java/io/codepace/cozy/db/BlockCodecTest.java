@@ -0,0 +1,138 @@
+package io.codepace.cozy.db;
+
+import io.codepace.cozy.Certificate;
+import io.codepace.cozy.bench.SampleData;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link BlockCodec} gives back exactly the text it was given, since block hashes and signatures are computed over the text: for
+ * the usual shapes, which are stored compactly, and for the ones that have to be stored as plain Strings.
+ */
+public class BlockCodecTest {
+
+    @Test
+    public void roundTripsSampleBlocks() {
+        for (int transactionCount : new int[]{0, 1, 10}) {
+            Block block = new Block(SampleData.sampleBlock(transactionCount));
+            byte[] encoded = BlockCodec.encodeBlock(block);
+            Block decoded = BlockCodec.decodeBlock(encoded);
+            assertEquals(block.getRawBlock(), decoded.getRawBlock());
+            assertEquals(block.blockHash, decoded.blockHash);
+            assertTrue("Encoding isn't smaller than the text", encoded.length < block.getRawBlock().getBytes(StandardCharsets.UTF_8).length);
+        }
+    }
+
+    @Test
+    public void roundTripsNonCanonicalHashes() {
+        String hash = SampleData.randomHex(64);
+        for (String odd : new String[]{hash.toLowerCase(), hash.substring(1), hash + "0", "0", "", "G" + hash.substring(1)}) {
+            Certificate certificate = new Certificate(SampleData.randomAddress(), "DATA", 10, "Auth", 5, odd, 3, "a,b");
+            ArrayList<String> transactions = new ArrayList<>();
+            transactions.add(SampleData.randomAddress() + ";5;" + SampleData.randomAddress() + ";5;" + SampleData.randomSignature() + ";1");
+            assertRoundTrip(new Block(1L, 5, odd, certificate, 150000, 1, odd, transactions, SampleData.randomSignature(), 0));
+        }
+    }
+
+    @Test
+    public void roundTripsNonCanonicalSignatures() {
+        String[] signatures = {
+                "QUJD:REVG,R0hJ", //Canonical Base64
+                "QUI=:QQ==,QUJD", //Canonical padding
+                "QUJ:QUI,QUJDRA", //Missing padding
+                "QUK=:QR==,QUJD", //Padding with leftover bits set
+                "a,b", "", ",", ":", "::", "a::b,", ",a:", "QUJD::,::QUJD", //Empty parts
+                "!!!!:ab-_,QUJD", "QUJD QUJD,x", "ünï,cödé" //Not Base64 at all
+        };
+        for (String signature : signatures) {
+            Certificate certificate = new Certificate(SampleData.randomAddress(), "DATA", 10, "Auth", 5, SampleData.randomHex(64), 3, signature);
+            ArrayList<String> transactions = new ArrayList<>();
+            transactions.add(SampleData.randomAddress() + ";5;" + SampleData.randomAddress() + ";5;" + signature + ";1");
+            assertRoundTrip(new Block(1L, 5, SampleData.randomHex(64), certificate, 150000, 1, SampleData.randomHex(64), transactions, signature, 0));
+            assertEquals(certificate.getFullCertificate(), BlockCodec.decodeCertificate(BlockCodec.encodeCertificate(certificate)).getFullCertificate());
+        }
+    }
+
+    @Test
+    public void roundTripsOddTransactions() {
+        String address = SampleData.randomAddress();
+        String signature = SampleData.randomSignature();
+        String[] transactions = {
+                address + ";100;" + address + ";100;" + signature + ";1",
+                address + ";100;" + address + ";60;" + address + ";40;" + signature + ";12",
+                address + ";0100;" + address + ";+100;" + signature + ";007", //Numbers that don't survive Long.toString
+                address + ";-0;" + address + ";1e3;" + signature + ";x",
+                address + ";99999999999999999999;" + address + ";1;" + signature + ";1", //Out of range for a long
+                address + ";100;" + address + ";100;" + signature + ";1;", //Trailing separator
+                address + ";100;" + address + ";" + signature + ";1", //Odd number of parts
+                ";;;;;", "a;b;c;d;e;f", "short", "", "ünïcödé;1;x;1;s;1"
+        };
+        for (String transaction : transactions) {
+            assertEquals(transaction, BlockCodec.decodeTransaction(BlockCodec.encodeTransaction(transaction)));
+        }
+    }
+
+    @Test
+    public void roundTripsNumberExtremes() {
+        Certificate certificate = new Certificate(SampleData.randomAddress(), "DATA", Integer.MAX_VALUE, "Auth", Integer.MIN_VALUE, SampleData.randomHex(64), Long.MIN_VALUE, "a,b");
+        assertRoundTrip(new Block(Long.MAX_VALUE, Integer.MAX_VALUE, SampleData.randomHex(64), certificate, Long.MIN_VALUE, Integer.MIN_VALUE, SampleData.randomHex(64), new ArrayList<String>(), "a,b", -1));
+        assertRoundTrip(new Block(-1L, 0, SampleData.randomHex(64), certificate, 0, -1, SampleData.randomHex(64), new ArrayList<String>(), "a,b", Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void rejectsTamperedBlocks() {
+        Block block = new Block(SampleData.sampleBlock(2));
+        byte[] encoded = BlockCodec.encodeBlock(block);
+        for (int i = 0; i < encoded.length; i += 53) {
+            byte[] tampered = Arrays.copyOf(encoded, encoded.length);
+            tampered[i] ^= 0x01;
+            try {
+                Block decoded = BlockCodec.decodeBlock(tampered);
+                //A flip can land in the miner signature, which isn't part of the block hash and is checked against it when the block is
+                //validated, or in a bit that makes no difference (an empty signature part reads the same as text or as Base64)
+                assertEquals(block.getBlockData(), decoded.getBlockData());
+            } catch (BlockFormatException e) {
+                //Expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedAndPaddedBlocks() {
+        byte[] encoded = BlockCodec.encodeBlock(new Block(SampleData.sampleBlock(2)));
+        for (int length = 0; length < encoded.length; length += 41) {
+            assertMalformed(Arrays.copyOf(encoded, length));
+        }
+        assertMalformed(Arrays.copyOf(encoded, encoded.length - 1));
+        assertMalformed(Arrays.copyOf(encoded, encoded.length + 1));
+    }
+
+    @Test
+    public void rejectsOtherVersions() {
+        byte[] encoded = BlockCodec.encodeBlock(new Block(SampleData.sampleBlock(0)));
+        encoded[0] = (byte) (BlockCodec.FORMAT_VERSION + 1);
+        assertMalformed(encoded);
+    }
+
+    private static void assertRoundTrip(Block block) {
+        Block decoded = BlockCodec.decodeBlock(BlockCodec.encodeBlock(block));
+        assertEquals(block.getRawBlock(), decoded.getRawBlock());
+        assertEquals(block.blockHash, decoded.blockHash);
+    }
+
+    private static void assertMalformed(byte[] encoded) {
+        try {
+            BlockCodec.decodeBlock(encoded);
+            fail("Decoded a malformed block");
+        } catch (BlockFormatException e) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package io.codepace.cozy.db;
+
+import io.codepace.cozy.Certificate;
+import io.codepace.cozy.bench.BlockParseBenchmark;
+import io.codepace.cozy.bench.SampleData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the single-pass {@link BlockParser}, through the Block and Certificate String constructors, against the split-based parsing it
+ * replaced, and that malformed input is rejected with a {@link BlockFormatException}.
+ */
+public class BlockParserTest {
+
+    @Test
+    public void parsesLikeTheLegacyParser() {
+        for (int transactionCount : new int[]{0, 1, 2, 10}) {
+            String rawBlock = SampleData.sampleBlock(transactionCount);
+            Block parsed = new Block(rawBlock);
+            Block legacy = BlockParseBenchmark.legacyParse(rawBlock);
+            assertEquals(legacy.timestamp, parsed.timestamp);
+            assertEquals(legacy.blockNum, parsed.blockNum);
+            assertEquals(legacy.previousBlockHash, parsed.previousBlockHash);
+            assertEquals(legacy.difficulty, parsed.difficulty);
+            assertEquals(legacy.winningNonce, parsed.winningNonce);
+            assertEquals(legacy.ledgerHash, parsed.ledgerHash);
+            assertEquals(legacy.getTransactions(), parsed.getTransactions());
+            assertEquals(legacy.getCertificate().getFullCertificate(), parsed.getCertificate().getFullCertificate());
+            assertEquals(legacy.getMinerSignature(), parsed.getMinerSignature());
+            assertEquals(legacy.getMinerSignatureIndex(), parsed.getMinerSignatureIndex());
+            assertEquals(legacy.blockHash, parsed.blockHash);
+            assertEquals(rawBlock, parsed.getRawBlock());
+        }
+    }
+
+    @Test
+    public void emptyTransactionSectionIsOneEmptyTransaction() {
+        Block block = new Block(SampleData.sampleBlock(0));
+        ArrayList<String> expected = new ArrayList<>();
+        expected.add("");
+        assertEquals(expected, block.getTransactions());
+    }
+
+    @Test
+    public void parsesCertificatesLikeTheConstructor() {
+        Certificate certificate = new Certificate(SampleData.randomAddress(), "DATA", 100000, "Codepace", 1000, SampleData.randomHex(64), 7, SampleData.randomSignature());
+        Certificate parsed = new Certificate(certificate.getFullCertificate());
+        assertEquals(certificate.redeemAddress, parsed.redeemAddress);
+        assertEquals(certificate.arbitraryData, parsed.arbitraryData);
+        assertEquals(certificate.maxNonce, parsed.maxNonce);
+        assertEquals(certificate.authorityName, parsed.authorityName);
+        assertEquals(certificate.blockNum, parsed.blockNum);
+        assertEquals(certificate.prevBlockHash, parsed.prevBlockHash);
+        assertEquals(certificate.signatureData, parsed.signatureData);
+        assertEquals(certificate.signatureIndex, parsed.signatureIndex);
+    }
+
+    @Test
+    public void rejectsTruncatedBlocks() {
+        String rawBlock = SampleData.sampleBlock(2);
+        for (int length = 0; length < rawBlock.length(); length += 97) {
+            assertMalformed(rawBlock.substring(0, length));
+        }
+        assertMalformed(rawBlock.substring(0, rawBlock.length() - 1));
+    }
+
+    @Test
+    public void rejectsTrailingData() {
+        assertMalformed(SampleData.sampleBlock(1) + ",{}");
+    }
+
+    @Test
+    public void rejectsBadNumbers() {
+        String rawBlock = SampleData.sampleBlock(1);
+        String timestamp = rawBlock.substring(1, rawBlock.indexOf(':'));
+        assertMalformed("{" + timestamp + "x" + rawBlock.substring(timestamp.length() + 1));
+        assertMalformed("{:" + rawBlock.substring(timestamp.length() + 2));
+        assertMalformed("{99999999999999999999" + rawBlock.substring(timestamp.length() + 1));
+        //blockNum is an int
+        String afterTimestamp = rawBlock.substring(timestamp.length() + 2);
+        assertMalformed("{" + timestamp + ":4294967296" + afterTimestamp.substring(afterTimestamp.indexOf(':')));
+    }
+
+    @Test
+    public void rejectsMissingSeparators() {
+        String rawBlock = SampleData.sampleBlock(1);
+        assertMalformed(rawBlock.substring(1));
+        int ledger = rawBlock.indexOf("},{");
+        assertMalformed(rawBlock.substring(0, ledger + 1) + rawBlock.substring(ledger + 2));
+    }
+
+    @Test
+    public void rejectsMalformedCertificates() {
+        Certificate certificate = new Certificate(SampleData.randomAddress(), "DATA", 100000, "Codepace", 1000, SampleData.randomHex(64), 7, "a,b");
+        String raw = certificate.getFullCertificate();
+        for (String malformed : new String[]{"", raw.substring(0, raw.length() - 1), raw + "}", raw.replace(":100000:", ":1e5:"), raw.replace("{7}", "{}")}) {
+            try {
+                new Certificate(malformed);
+                fail("Parsed malformed certificate " + malformed);
+            } catch (BlockFormatException e) {
+                //Expected
+            }
+        }
+    }
+
+    @Test
+    public void reportsThePositionOfTheError() {
+        BlockParser parser = new BlockParser("{12:3x4}");
+        parser.expect('{');
+        assertEquals(12L, parser.readLong(':'));
+        try {
+            parser.readLong('}');
+            fail("Read a number with a letter in it");
+        } catch (BlockFormatException e) {
+            assertEquals(5, e.position);
+        }
+    }
+
+    @Test
+    public void readListDropsTrailingEmptyElementsLikeSplit() {
+        for (String list : new String[]{"", "a", "a*b", "a**b", "a*b*", "a**", "*a", "*"}) {
+            BlockParser parser = new BlockParser(list + "}");
+            ArrayList<String> expected = new ArrayList<>();
+            for (String element : list.split("\\*")) {
+                expected.add(element);
+            }
+            if (expected.isEmpty()) {
+                expected.add(""); //"*".split() gives nothing, where a block always has at least the one empty transaction
+            }
+            assertEquals("List " + list, expected, parser.readList('*', '}'));
+        }
+    }
+
+    private static void assertMalformed(String rawBlock) {
+        try {
+            new Block(rawBlock);
+            fail("Parsed malformed block " + (rawBlock.length() > 60 ? rawBlock.substring(0, 60) + "..." : rawBlock));
+        } catch (BlockFormatException e) {
+            //Expected
+        }
+    }
+}